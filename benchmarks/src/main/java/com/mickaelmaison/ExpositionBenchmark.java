@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mickaelmaison;
+
+import com.yammer.metrics.core.MetricName;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+import org.apache.kafka.common.metrics.KafkaMetric;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full scrape of a broker: Kafka and Yammer metrics rendered by {@link MetricsHttpHandler}, without the HTTP transport.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class ExpositionBenchmark {
+
+    private static final Map<String, String> FORMATS = new HashMap<>();
+
+    static {
+        FORMATS.put("text", TextFormat.CONTENT_TYPE_004);
+        FORMATS.put("openmetrics", TextFormat.CONTENT_TYPE_OPENMETRICS_100);
+        FORMATS.put("protobuf", ProtobufFormat.CONTENT_TYPE);
+    }
+
+    // Split evenly between Kafka and Yammer metrics
+    @Param({"10000", "100000", "1000000"})
+    public int metrics;
+
+    @Param({"text", "openmetrics", "protobuf"})
+    public String format;
+
+    private List<MetricName> names;
+    private MetricsHttpHandler handler;
+    private String contentType;
+    private ExpositionBuffer buffer;
+
+    @Setup
+    public void setup() {
+        PrometheusMetricsReporterConfig config = new PrometheusMetricsReporterConfig(Collections.emptyMap());
+        StreamingCollectorRegistry streamingRegistry = new StreamingCollectorRegistry();
+        KafkaMetricsCollector kafkaCollector = new KafkaMetricsCollector(config);
+        kafkaCollector.setPrefix("kafka.server");
+        for (KafkaMetric metric : SyntheticMetrics.kafkaMetrics(metrics / 2)) {
+            kafkaCollector.addMetric(metric);
+        }
+        streamingRegistry.register(kafkaCollector);
+        names = SyntheticMetrics.registerYammerMetrics(metrics / 2);
+        streamingRegistry.register(new YammerMetricsCollector(config));
+
+        handler = new MetricsHttpHandler(streamingRegistry, new CollectorRegistry(), config);
+        contentType = FORMATS.get(format);
+        buffer = new ExpositionBuffer();
+    }
+
+    @TearDown
+    public void tearDown() {
+        SyntheticMetrics.removeYammerMetrics(names);
+    }
+
+    @Benchmark
+    public int scrape() throws IOException {
+        buffer.reset();
+        handler.write(buffer, contentType, null, Collections.emptyList());
+        return buffer.size();
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mickaelmaison;
+
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.stats.Snapshot;
+import io.prometheus.client.Collector;
+import org.apache.kafka.common.metrics.KafkaMetric;
+import org.apache.kafka.server.metrics.KafkaYammerMetrics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per metric work done when metrics are registered or converted: naming, label parsing, filtering
+ * and building the samples of a family.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class NamingBenchmark {
+
+    private KafkaMetricsCollector kafkaCollector;
+    private KafkaMetric kafkaMetric;
+    private MetricName yammerMetricName;
+    private PrometheusMetricsReporterConfig config;
+    private List<String> labelNames;
+    private List<String> labelValues;
+    private List<String> quantileLabelNames;
+    private List<List<String>> quantileLabelValues;
+    private Snapshot snapshot;
+
+    @Setup
+    public void setup() {
+        config = new PrometheusMetricsReporterConfig(Collections.singletonMap(PrometheusMetricsReporterConfig.ALLOWLIST_CONFIG,
+                "kafka_server_replicamanager_.*,kafka_log_log_.*,kafka_consumer_consumer_fetch_manager_metrics_.*"));
+        kafkaCollector = new KafkaMetricsCollector(config);
+        kafkaCollector.setPrefix("kafka.consumer");
+        kafkaMetric = SyntheticMetrics.kafkaMetrics(1).get(0);
+
+        LinkedHashMap<String, String> tags = new LinkedHashMap<>();
+        tags.put("topic", "my-topic");
+        tags.put("partition", "12");
+        yammerMetricName = KafkaYammerMetrics.getMetricName("kafka.log", "Log", "Size", tags);
+        labelNames = Arrays.asList("topic", "partition");
+        labelValues = Arrays.asList("my-topic", "12");
+        quantileLabelNames = Arrays.asList("topic", "partition", "quantile");
+        quantileLabelValues = new ArrayList<>();
+        for (String quantile : Quantiles.DEFAULT.labels) {
+            quantileLabelValues.add(Arrays.asList("my-topic", "12", quantile));
+        }
+        double[] values = new double[1028];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i;
+        }
+        snapshot = new Snapshot(values);
+    }
+
+    @Benchmark
+    public String kafkaMetricName() {
+        return kafkaCollector.metricName(kafkaMetric.metricName());
+    }
+
+    @Benchmark
+    public String yammerMetricName() {
+        return YammerMetricsCollector.metricName(yammerMetricName);
+    }
+
+    @Benchmark
+    public Map<String, String> labelsFromScope() {
+        return YammerMetricsCollector.labelsFromScope(yammerMetricName.getScope());
+    }
+
+    @Benchmark
+    public boolean isAllowed() {
+        return config.isAllowed("kafka_server_brokertopicmetrics_bytesinpersec");
+    }
+
+    @Benchmark
+    public Collector.MetricFamilySamples familySamplesBuilder() {
+        return new MetricFamilySamplesBuilder("kafka_log_log_size", Collector.Type.SUMMARY, "")
+                .addSample("kafka_log_log_size_count", 1028, labelNames, labelValues)
+                .addSample("kafka_log_log_size_sum", 525825, labelNames, labelValues)
+                .addQuantileSamples("kafka_log_log_size", snapshot, Quantiles.DEFAULT, quantileLabelNames, quantileLabelValues)
+                .build();
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mickaelmaison;
+
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.core.Timer;
+import org.apache.kafka.common.metrics.KafkaMetric;
+import org.apache.kafka.common.metrics.Measurable;
+import org.apache.kafka.common.metrics.MetricConfig;
+import org.apache.kafka.common.metrics.stats.CumulativeSum;
+import org.apache.kafka.common.utils.Time;
+import org.apache.kafka.server.metrics.KafkaYammerMetrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Metrics shaped like the per partition metrics of a broker: a few metric names, each with a series
+ * for every topic partition.
+ */
+public class SyntheticMetrics {
+
+    static final int PARTITIONS_PER_TOPIC = 10;
+    private static final String[] KAFKA_NAMES = {"records-lag", "records-lead", "fetch-size-avg", "bytes-consumed-total", "records-consumed-total"};
+    // One name per Yammer type, in the order the types are registered
+    private static final String[] YAMMER_NAMES = {"NumLogSegments", "BytesInPerSec", "Size", "LocalTimeMs"};
+
+    private static final MetricConfig METRIC_CONFIG = new MetricConfig();
+
+    /**
+     * Kafka metrics spread over the topic partitions, the names ending with -total are cumulative sums.
+     */
+    static List<KafkaMetric> kafkaMetrics(int count) {
+        List<KafkaMetric> metrics = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String name = KAFKA_NAMES[i % KAFKA_NAMES.length];
+            int partition = i / KAFKA_NAMES.length;
+            Map<String, String> tags = new LinkedHashMap<>();
+            tags.put("client-id", "consumer-1");
+            tags.put("topic", "topic-" + partition / PARTITIONS_PER_TOPIC);
+            tags.put("partition", String.valueOf(partition % PARTITIONS_PER_TOPIC));
+            Measurable measurable;
+            if (name.endsWith("-total")) {
+                CumulativeSum sum = new CumulativeSum();
+                sum.record(METRIC_CONFIG, i, 0);
+                measurable = sum;
+            } else {
+                double value = i;
+                measurable = (config, now) -> value;
+            }
+            metrics.add(new KafkaMetric(new Object(),
+                    new org.apache.kafka.common.MetricName(name, "consumer-fetch-manager-metrics", "", tags),
+                    measurable, METRIC_CONFIG, Time.SYSTEM));
+        }
+        return metrics;
+    }
+
+    /**
+     * Register Yammer counters, meters, histograms and timers in the Kafka registry, cycling through the types.
+     */
+    static List<MetricName> registerYammerMetrics(int count) {
+        MetricsRegistry registry = KafkaYammerMetrics.defaultRegistry();
+        List<MetricName> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int partition = i / YAMMER_NAMES.length;
+            LinkedHashMap<String, String> tags = new LinkedHashMap<>();
+            tags.put("topic", "topic-" + partition / PARTITIONS_PER_TOPIC);
+            tags.put("partition", String.valueOf(partition % PARTITIONS_PER_TOPIC));
+            MetricName name = KafkaYammerMetrics.getMetricName("kafka.log", "Log", YAMMER_NAMES[i % YAMMER_NAMES.length], tags);
+            names.add(name);
+            switch (i % YAMMER_NAMES.length) {
+                case 0:
+                    registry.newCounter(name).inc(i);
+                    break;
+                case 1:
+                    Meter meter = registry.newMeter(name, "bytes", TimeUnit.SECONDS);
+                    meter.mark(i);
+                    break;
+                case 2:
+                    Histogram histogram = registry.newHistogram(name, true);
+                    for (int j = 0; j < 10; j++) {
+                        histogram.update(i + j);
+                    }
+                    break;
+                default:
+                    Timer timer = registry.newTimer(name, TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+                    for (int j = 0; j < 10; j++) {
+                        timer.update(i + j, TimeUnit.MILLISECONDS);
+                    }
+            }
+        }
+        return names;
+    }
+
+    static void removeYammerMetrics(List<MetricName> names) {
+        MetricsRegistry registry = KafkaYammerMetrics.defaultRegistry();
+        for (MetricName name : names) {
+            registry.removeMetric(name);
+        }
+    }
+}
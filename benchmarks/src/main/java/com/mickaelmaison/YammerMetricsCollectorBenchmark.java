@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mickaelmaison;
+
+import com.yammer.metrics.core.MetricName;
+import io.prometheus.client.Collector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class YammerMetricsCollectorBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public int metrics;
+
+    private List<MetricName> names;
+    private YammerMetricsCollector collector;
+    private ExpositionBuffer buffer;
+
+    @Setup
+    public void setup() {
+        names = SyntheticMetrics.registerYammerMetrics(metrics);
+        collector = new YammerMetricsCollector(new PrometheusMetricsReporterConfig(Collections.emptyMap()));
+        buffer = new ExpositionBuffer();
+    }
+
+    @TearDown
+    public void tearDown() {
+        SyntheticMetrics.removeYammerMetrics(names);
+    }
+
+    @Benchmark
+    public List<Collector.MetricFamilySamples> collect() {
+        return collector.collect();
+    }
+
+    @Benchmark
+    public int write() {
+        buffer.reset();
+        collector.write(buffer);
+        return buffer.size();
+    }
+
+    @Benchmark
+    public int writeProtobuf() {
+        buffer.reset();
+        collector.writeProtobuf(buffer);
+        return buffer.size();
+    }
+}
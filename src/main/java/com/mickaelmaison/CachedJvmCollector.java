@@ -0,0 +1,231 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mickaelmaison;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CounterMetricFamily;
+import io.prometheus.client.GaugeMetricFamily;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A JVM collector whose MXBean reads are too expensive to do on every scrape. The values are read by a background
+ * thread at a fixed interval and kept in primitive fields, so scrapes only build the samples. The metrics have
+ * the same names as the ones of the simpleclient_hotspot collectors they replace.
+ */
+public abstract class CachedJvmCollector extends Collector {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CachedJvmCollector.class.getName());
+    private static final ScheduledExecutorService REFRESHER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "prometheus-jvm-metrics");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ScheduledFuture<?> refresher;
+
+    /**
+     * Read the values once, so they are available to the first scrape, and then every intervalMs on the background thread.
+     */
+    void start(long intervalMs) {
+        refresh();
+        refresher = REFRESHER.scheduleWithFixedDelay(() -> {
+            try {
+                refresh();
+            } catch (Exception e) {
+                LOG.error("Failed reading the JVM metrics of {}", getClass().getSimpleName(), e);
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        if (refresher != null) {
+            refresher.cancel(false);
+        }
+    }
+
+    abstract void refresh();
+
+    /**
+     * Replaces {@link io.prometheus.client.hotspot.ThreadExports}, which reads the info of every thread on each scrape.
+     */
+    static final class Threads extends CachedJvmCollector {
+
+        private static final Thread.State[] STATES = Thread.State.values();
+
+        private final ThreadMXBean bean;
+        private volatile int current;
+        private volatile int daemon;
+        private volatile int peak;
+        private volatile long started;
+        private volatile int deadlocked;
+        private volatile int deadlockedMonitor;
+        // The counts of each Thread.State, followed by the threads with an invalid id or that ended while being read
+        private volatile int[] states = new int[STATES.length + 1];
+
+        Threads() {
+            this(ManagementFactory.getThreadMXBean());
+        }
+
+        Threads(ThreadMXBean bean) {
+            this.bean = bean;
+        }
+
+        @Override
+        void refresh() {
+            current = bean.getThreadCount();
+            daemon = bean.getDaemonThreadCount();
+            peak = bean.getPeakThreadCount();
+            started = bean.getTotalStartedThreadCount();
+            deadlocked = length(bean.findDeadlockedThreads());
+            deadlockedMonitor = length(bean.findMonitorDeadlockedThreads());
+            int[] counts = new int[STATES.length + 1];
+            long[] ids = bean.getAllThreadIds();
+            int valid = 0;
+            for (long id : ids) {
+                if (id > 0) {
+                    ids[valid++] = id;
+                }
+            }
+            counts[STATES.length] = ids.length - valid;
+            for (ThreadInfo info : bean.getThreadInfo(Arrays.copyOf(ids, valid), 0)) {
+                counts[info != null ? info.getThreadState().ordinal() : STATES.length]++;
+            }
+            states = counts;
+        }
+
+        private static int length(long[] threads) {
+            return threads == null ? 0 : threads.length;
+        }
+
+        @Override
+        public List<MetricFamilySamples> collect() {
+            List<MetricFamilySamples> mfs = new ArrayList<>();
+            mfs.add(new GaugeMetricFamily("jvm_threads_current", "Current thread count of a JVM", current));
+            mfs.add(new GaugeMetricFamily("jvm_threads_daemon", "Daemon thread count of a JVM", daemon));
+            mfs.add(new GaugeMetricFamily("jvm_threads_peak", "Peak thread count of a JVM", peak));
+            mfs.add(new CounterMetricFamily("jvm_threads_started_total", "Started thread count of a JVM", started));
+            mfs.add(new GaugeMetricFamily("jvm_threads_deadlocked",
+                    "Cycles of JVM-threads that are in deadlock waiting to acquire object monitors or ownable synchronizers", deadlocked));
+            mfs.add(new GaugeMetricFamily("jvm_threads_deadlocked_monitor",
+                    "Cycles of JVM-threads that are in deadlock waiting to acquire object monitors", deadlockedMonitor));
+            GaugeMetricFamily byState = new GaugeMetricFamily("jvm_threads_state", "Current count of threads by state",
+                    Collections.singletonList("state"));
+            int[] counts = states;
+            for (Thread.State state : STATES) {
+                byState.addMetric(Collections.singletonList(state.name()), counts[state.ordinal()]);
+            }
+            byState.addMetric(Collections.singletonList("UNKNOWN"), counts[STATES.length]);
+            mfs.add(byState);
+            return mfs;
+        }
+    }
+
+    /**
+     * Replaces {@link io.prometheus.client.hotspot.BufferPoolsExports}, which reads the pools by reflection.
+     */
+    static final class BufferPools extends CachedJvmCollector {
+
+        private final List<BufferPoolMXBean> beans;
+        private final List<List<String>> pools = new ArrayList<>();
+        // The used bytes, capacity and count of each pool
+        private volatile long[] values;
+
+        BufferPools() {
+            beans = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class);
+            for (BufferPoolMXBean bean : beans) {
+                pools.add(Collections.singletonList(bean.getName()));
+            }
+            values = new long[beans.size() * 3];
+        }
+
+        @Override
+        void refresh() {
+            long[] values = new long[beans.size() * 3];
+            for (int i = 0; i < beans.size(); i++) {
+                BufferPoolMXBean bean = beans.get(i);
+                values[i * 3] = bean.getMemoryUsed();
+                values[i * 3 + 1] = bean.getTotalCapacity();
+                values[i * 3 + 2] = bean.getCount();
+            }
+            this.values = values;
+        }
+
+        @Override
+        public List<MetricFamilySamples> collect() {
+            List<String> labelNames = Collections.singletonList("pool");
+            GaugeMetricFamily used = new GaugeMetricFamily("jvm_buffer_pool_used_bytes", "Used bytes of a given JVM buffer pool.", labelNames);
+            GaugeMetricFamily capacity = new GaugeMetricFamily("jvm_buffer_pool_capacity_bytes", "Bytes capacity of a given JVM buffer pool.", labelNames);
+            GaugeMetricFamily buffers = new GaugeMetricFamily("jvm_buffer_pool_used_buffers", "Used buffers of a given JVM buffer pool.", labelNames);
+            long[] values = this.values;
+            for (int i = 0; i < pools.size(); i++) {
+                used.addMetric(pools.get(i), values[i * 3]);
+                capacity.addMetric(pools.get(i), values[i * 3 + 1]);
+                buffers.addMetric(pools.get(i), values[i * 3 + 2]);
+            }
+            List<MetricFamilySamples> mfs = new ArrayList<>();
+            mfs.add(used);
+            mfs.add(capacity);
+            mfs.add(buffers);
+            return mfs;
+        }
+    }
+
+    /**
+     * Replaces {@link io.prometheus.client.hotspot.ClassLoadingExports}.
+     */
+    static final class ClassLoading extends CachedJvmCollector {
+
+        private final ClassLoadingMXBean bean = ManagementFactory.getClassLoadingMXBean();
+        private volatile int loaded;
+        private volatile long loadedTotal;
+        private volatile long unloadedTotal;
+
+        @Override
+        void refresh() {
+            loaded = bean.getLoadedClassCount();
+            loadedTotal = bean.getTotalLoadedClassCount();
+            unloadedTotal = bean.getUnloadedClassCount();
+        }
+
+        @Override
+        public List<MetricFamilySamples> collect() {
+            List<MetricFamilySamples> mfs = new ArrayList<>();
+            mfs.add(new GaugeMetricFamily("jvm_classes_currently_loaded",
+                    "The number of classes that are currently loaded in the JVM", loaded));
+            mfs.add(new CounterMetricFamily("jvm_classes_loaded_total",
+                    "The total number of classes that have been loaded since the JVM has started execution", loadedTotal));
+            mfs.add(new CounterMetricFamily("jvm_classes_unloaded_total",
+                    "The total number of classes that have been unloaded since the JVM has started execution", unloadedTotal));
+            return mfs;
+        }
+    }
+}
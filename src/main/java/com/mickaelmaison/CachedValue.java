@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mickaelmaison;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * The last known value of a metric. Metrics in a refresh tier are evaluated at most once per refresh interval,
+ * scrapes in between are served the cached value.
+ * <p>
+ * If metrics have a timeout, the slow and tiered ones are always evaluated on a separate thread, so a metric blocked
+ * from its very first evaluation can't hold up scrapes. Scrapes only wait for them until the timeout or the
+ * {@link CollectionDeadline} of the scrape, whichever comes first. Scrapes that stop waiting, or start after the
+ * deadline passed, or find all the evaluator threads busy, are served the last known value, or omit the metric if it
+ * has none, while a running evaluation carries on for the next scrapes.
+ * <p>
+ * The value is kept as the bits of a double so serving it doesn't allocate. Non-numeric values are stored
+ * as {@link #NOT_NUMERIC}, a NaN that can't be confused with a numeric value as {@link Double#doubleToLongBits(double)}
+ * normalizes all NaNs.
+ */
+public class CachedValue {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CachedValue.class.getName());
+    private static final AtomicInteger THREAD_NUMBER = new AtomicInteger();
+    private static final int EVALUATOR_THREADS = 4;
+    private static final int EVALUATOR_QUEUE_SIZE = 1024;
+    // Each metric has at most one evaluation running or queued. Evaluations rejected when the queue is full are
+    // served the cached value, so metrics blocked forever can't make the pool grow.
+    private static final ThreadPoolExecutor EVALUATORS = new ThreadPoolExecutor(EVALUATOR_THREADS, EVALUATOR_THREADS,
+            60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(EVALUATOR_QUEUE_SIZE), r -> {
+                Thread thread = new Thread(r, "prometheus-metric-evaluator-" + THREAD_NUMBER.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }, new ThreadPoolExecutor.AbortPolicy());
+
+    static {
+        EVALUATORS.allowCoreThreadTimeOut(true);
+    }
+
+    static final long NOT_NUMERIC = 0x7ff8000000000001L;
+
+    private final String name;
+    private final Supplier<Object> metric;
+    private final long intervalNanos;
+    private final long timeoutNanos;
+    private volatile long bits = NOT_NUMERIC;
+    private volatile long refreshedNanos;
+    // The evaluation running on a separate thread, guarded by this
+    private Future<?> pending;
+
+    public CachedValue(String name, Supplier<Object> metric, long intervalMs, long timeoutMs) {
+        this.name = name;
+        this.metric = metric;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMs);
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        // Evaluated on the first read
+        this.refreshedNanos = System.nanoTime() - intervalNanos;
+    }
+
+    /**
+     * The bits of the value, evaluating the metric again if the cached value is older than the interval.
+     * The age of the cached values served and the evaluations that missed their deadline are recorded in the stats.
+     */
+    long get(ReporterMetrics.CollectorStats stats) {
+        long now = System.nanoTime();
+        long age = now - refreshedNanos;
+        if (age < intervalNanos) {
+            stats.recordCachedAge(age);
+            return bits;
+        }
+        return timeoutNanos > 0 ? evaluate(stats, now) : refresh(now);
+    }
+
+    private synchronized long refresh(long now) {
+        // Another scrape may have refreshed the value while this one was waiting
+        if (now - refreshedNanos >= intervalNanos) {
+            update(bits(metric.get()));
+        }
+        return bits;
+    }
+
+    private long evaluate(ReporterMetrics.CollectorStats stats, long now) {
+        long wait = Math.min(timeoutNanos, CollectionDeadline.remainingNanos(now));
+        if (wait <= 0) {
+            // The scrape is already out of time, so it doesn't start an evaluation it couldn't wait for
+            stats.recordDeadlineMissed();
+            return lastValue(stats);
+        }
+        Future<?> future;
+        synchronized (this) {
+            if (pending == null) {
+                try {
+                    pending = EVALUATORS.submit(() -> {
+                        try {
+                            update(bits(metric.get()));
+                        } finally {
+                            synchronized (this) {
+                                pending = null;
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException ree) {
+                    LOG.debug("No thread available to evaluate metric {}, serving its last value", name);
+                    stats.recordDeadlineMissed();
+                    return lastValue(stats);
+                }
+            }
+            future = pending;
+        }
+        try {
+            future.get(wait, TimeUnit.NANOSECONDS);
+            return bits;
+        } catch (TimeoutException te) {
+            LOG.debug("Metric {} didn't evaluate in time, serving its last value", name);
+            stats.recordDeadlineMissed();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ee) {
+            // Fail like a metric evaluated on the scrape thread
+            if (ee.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ee.getCause();
+            }
+            throw new IllegalStateException("Failed evaluating metric " + name, ee.getCause());
+        }
+        return lastValue(stats);
+    }
+
+    private long lastValue(ReporterMetrics.CollectorStats stats) {
+        long value = bits;
+        if (isNumeric(value)) {
+            stats.recordCachedAge(System.nanoTime() - refreshedNanos);
+        }
+        return value;
+    }
+
+    private void update(long value) {
+        bits = value;
+        refreshedNanos = System.nanoTime();
+    }
+
+    static long bits(Object value) {
+        return value instanceof Number ? Double.doubleToLongBits(((Number) value).doubleValue()) : NOT_NUMERIC;
+    }
+
+    static boolean isNumeric(long bits) {
+        return bits != NOT_NUMERIC;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mickaelmaison;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caps the number of series of a collector, per metric family and in total.
+ * <p>
+ * The decision is made once, when a metric is registered, so scrapes don't pay for it. Admitted series are tracked
+ * by a 64-bit hash of their name and labels in an open addressing set, which keeps the memory cost to a few bytes
+ * per series. Series that are not admitted are summed into the {@link #OVERFLOW} series of their family.
+ * A hash collision only lets a series bypass the limits.
+ */
+public class CardinalityLimiter {
+
+    public static final String OVERFLOW = "__overflow__";
+
+    private static final int MIN_CAPACITY = 16;
+
+    private final int maxSeriesPerFamily;
+    private final int maxSeries;
+    private final Map<String, Integer> familySeries = new HashMap<>();
+    // 0 marks an empty slot, hash() never returns it
+    private long[] hashes = new long[MIN_CAPACITY];
+    private int size;
+
+    public CardinalityLimiter(PrometheusMetricsReporterConfig config) {
+        this(config.maxSeriesPerFamily(), config.maxSeries());
+    }
+
+    CardinalityLimiter(int maxSeriesPerFamily, int maxSeries) {
+        this.maxSeriesPerFamily = maxSeriesPerFamily;
+        this.maxSeries = maxSeries;
+    }
+
+    /**
+     * Whether the series fits within the limits. Returns false if it should go to the overflow series of its family.
+     */
+    public synchronized boolean admit(String family, List<String> labelNames, List<String> labelValues) {
+        long hash = hash(family, labelNames, labelValues);
+        if (indexOf(hash) >= 0) {
+            return true;
+        }
+        int count = familySeries.getOrDefault(family, 0);
+        if (count >= maxSeriesPerFamily || size >= maxSeries) {
+            return false;
+        }
+        familySeries.put(family, count + 1);
+        insert(hash);
+        return true;
+    }
+
+    /**
+     * Release the slot of an admitted series that was removed.
+     */
+    public synchronized void release(String family, List<String> labelNames, List<String> labelValues) {
+        int index = indexOf(hash(family, labelNames, labelValues));
+        if (index < 0) {
+            return;
+        }
+        delete(index);
+        familySeries.computeIfPresent(family, (name, count) -> count > 1 ? count - 1 : null);
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    static long hash(String family, List<String> labelNames, List<String> labelValues) {
+        long h = family.hashCode();
+        for (int i = 0; i < labelNames.size(); i++) {
+            h = h * 0x9E3779B97F4A7C15L + labelNames.get(i).hashCode();
+            h = h * 0x9E3779B97F4A7C15L + labelValues.get(i).hashCode();
+        }
+        // Murmur3 finalizer, so the low bits used for the slot depend on all the input
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+
+    private int indexOf(long hash) {
+        int mask = hashes.length - 1;
+        for (int i = (int) hash & mask; hashes[i] != 0; i = (i + 1) & mask) {
+            if (hashes[i] == hash) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void insert(long hash) {
+        // Keep the load factor under 0.5 so probe sequences stay short
+        if ((size + 1) * 2 > hashes.length) {
+            long[] previous = hashes;
+            hashes = new long[previous.length * 2];
+            for (long h : previous) {
+                if (h != 0) {
+                    place(h);
+                }
+            }
+        }
+        place(hash);
+        size++;
+    }
+
+    private void place(long hash) {
+        int mask = hashes.length - 1;
+        int i = (int) hash & mask;
+        while (hashes[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        hashes[i] = hash;
+    }
+
+    private void delete(int index) {
+        // Backward shift deletion, so lookups never need tombstones
+        int mask = hashes.length - 1;
+        int hole = index;
+        for (int i = (index + 1) & mask; hashes[i] != 0; i = (i + 1) & mask) {
+            int home = (int) hashes[i] & mask;
+            // Move the entry into the hole if its home slot isn't between the hole and its current slot
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                hashes[hole] = hashes[i];
+                hole = i;
+            }
+        }
+        hashes[hole] = 0;
+        size--;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mickaelmaison;
+
+/**
+ * The time by which the collection of a scrape should be done. It's attached to the thread collecting the metrics,
+ * and to the {@link ParallelCollection} threads working for it, so slow metrics don't make the scrape wait past it.
+ */
+public final class CollectionDeadline {
+
+    static final long NONE = Long.MIN_VALUE;
+    private static final ThreadLocal<Long> DEADLINE = new ThreadLocal<>();
+
+    private CollectionDeadline() {
+    }
+
+    /**
+     * The deadline of the collection running on this thread as a {@link System#nanoTime()}, or {@link #NONE}.
+     */
+    public static long get() {
+        Long deadline = DEADLINE.get();
+        return deadline != null ? deadline : NONE;
+    }
+
+    /**
+     * Attach a deadline to this thread, {@link #NONE} removes it.
+     */
+    public static void set(long deadlineNanos) {
+        if (deadlineNanos == NONE) {
+            DEADLINE.remove();
+        } else {
+            DEADLINE.set(deadlineNanos);
+        }
+    }
+
+    /**
+     * How long in nanoseconds is left until the deadline of this thread, {@link Long#MAX_VALUE} if it has none.
+     */
+    static long remainingNanos(long now) {
+        Long deadline = DEADLINE.get();
+        return deadline != null ? deadline - now : Long.MAX_VALUE;
+    }
+}
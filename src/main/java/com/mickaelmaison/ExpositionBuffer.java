@@ -0,0 +1,268 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mickaelmaison;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.exporter.common.TextFormat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Growable byte buffer the text exposition format is rendered into.
+ * Buffers are pooled so large scrapes don't reallocate their output every time.
+ */
+public class ExpositionBuffer extends OutputStream {
+
+    private static final int INITIAL_CAPACITY = 1 << 16;
+    // Don't keep very large buffers around after an unusually big scrape
+    private static final int MAX_POOLED_CAPACITY = 32 << 20;
+    private static final BlockingQueue<ExpositionBuffer> POOL = new ArrayBlockingQueue<>(4);
+
+    private byte[] buf;
+    private int count;
+
+    ExpositionBuffer() {
+        this(INITIAL_CAPACITY);
+    }
+
+    ExpositionBuffer(int capacity) {
+        this.buf = new byte[capacity];
+    }
+
+    public static ExpositionBuffer acquire() {
+        ExpositionBuffer buffer = POOL.poll();
+        return buffer != null ? buffer : new ExpositionBuffer();
+    }
+
+    public void release() {
+        count = 0;
+        if (buf.length <= MAX_POOLED_CAPACITY) {
+            POOL.offer(this);
+        }
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(count + 1);
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b) {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(count + len);
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    /**
+     * Write a double the same way as {@link Collector#doubleToGoString(double)}.
+     * Integral values, which most metrics are, are formatted without allocating.
+     */
+    public void writeDouble(double d) {
+        if (d == Double.POSITIVE_INFINITY) {
+            writeAscii("+Inf");
+        } else if (d == Double.NEGATIVE_INFINITY) {
+            writeAscii("-Inf");
+        } else if (d == (long) d && Math.abs(d) < 1e7 && (d != 0 || 1 / d > 0)) {
+            // Double.toString() only uses the plain notation in that range
+            writeLong((long) d);
+            write('.');
+            write('0');
+        } else {
+            writeAscii(Double.toString(d));
+        }
+    }
+
+    public void writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            writeAscii(Long.toString(value));
+            return;
+        }
+        if (value < 0) {
+            write('-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value / 10; v > 0; v /= 10) {
+            digits++;
+        }
+        ensureCapacity(count + digits);
+        for (int i = count + digits - 1; i >= count; i--) {
+            buf[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        count += digits;
+    }
+
+    /**
+     * Write a protobuf base 128 varint.
+     */
+    public void writeVarint(long value) {
+        ensureCapacity(count + 10);
+        while ((value & ~0x7FL) != 0) {
+            buf[count++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[count++] = (byte) value;
+    }
+
+    /**
+     * Write a double as a protobuf fixed64, in little endian order.
+     */
+    public void writeFixed64(double d) {
+        long bits = Double.doubleToLongBits(d);
+        ensureCapacity(count + 8);
+        for (int i = 0; i < 8; i++) {
+            buf[count++] = (byte) bits;
+            bits >>>= 8;
+        }
+    }
+
+    /**
+     * Insert a varint at the given position, shifting everything written after it.
+     * This is used to prefix a message with its length once it has been written.
+     */
+    public void insertVarint(int position, long value) {
+        int size = varintSize(value);
+        ensureCapacity(count + size);
+        System.arraycopy(buf, position, buf, position + size, count - position);
+        int end = count;
+        count = position;
+        writeVarint(value);
+        count = end + size;
+    }
+
+    static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private void writeAscii(String s) {
+        ensureCapacity(count + s.length());
+        for (int i = 0; i < s.length(); i++) {
+            buf[count++] = (byte) s.charAt(i);
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public void reset() {
+        count = 0;
+    }
+
+    /**
+     * Discard everything written after the given size.
+     */
+    public void truncate(int size) {
+        count = size;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buf, count);
+    }
+
+    /**
+     * A view of the content, only valid until the buffer is written to or released.
+     */
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(buf, 0, count);
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buf, 0, count);
+    }
+
+    public void writeTo(ExpositionBuffer out) {
+        out.write(buf, 0, count);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(capacity, buf.length << 1));
+        }
+    }
+
+    /**
+     * The {@code # HELP} and {@code # TYPE} lines of a metric family, encoded as {@link TextFormat#write004} does.
+     */
+    static byte[] header(String name, Collector.Type type, String help) {
+        ExpositionBuffer buffer = new ExpositionBuffer(128);
+        Collector.MetricFamilySamples family = new Collector.MetricFamilySamples(name, type, help, Collections.emptyList());
+        try (Writer writer = new OutputStreamWriter(buffer, StandardCharsets.UTF_8)) {
+            TextFormat.write004(writer, Collections.enumeration(Collections.singletonList(family)));
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * The name and labels of a sample followed by a space, encoded as {@link TextFormat#write004} does.
+     */
+    static byte[] samplePrefix(String name, List<String> labelNames, List<String> labelValues) {
+        StringBuilder sb = new StringBuilder(name);
+        if (!labelNames.isEmpty()) {
+            sb.append('{');
+            for (int i = 0; i < labelNames.size(); i++) {
+                sb.append(labelNames.get(i)).append("=\"");
+                String value = labelValues.get(i);
+                for (int j = 0; j < value.length(); j++) {
+                    char c = value.charAt(j);
+                    switch (c) {
+                        case '\\':
+                            sb.append("\\\\");
+                            break;
+                        case '\"':
+                            sb.append("\\\"");
+                            break;
+                        case '\n':
+                            sb.append("\\n");
+                            break;
+                        default:
+                            sb.append(c);
+                    }
+                }
+                sb.append("\",");
+            }
+            sb.append('}');
+        }
+        sb.append(' ');
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mickaelmaison;
+
+import com.yammer.metrics.core.Sampling;
+import org.apache.kafka.common.config.ConfigException;
+
+import java.util.Arrays;
+
+/**
+ * Bucket counts of a Yammer histogram or timer exposed as a Prometheus histogram.
+ * <p>
+ * Yammer only keeps a sample of the recorded values, so the counts can't be exact. On each update the values
+ * recorded since the previous update, known from the count, are spread over the buckets like the values
+ * of the current sample are. The counts only ever go up so the buckets can be aggregated with rate().
+ */
+public class HistogramBuckets {
+
+    final double[] bounds;
+    // Count of each bucket, not cumulative, the last one is +Inf
+    final long[] counts;
+    long count;
+
+    public HistogramBuckets(double[] bounds) {
+        this.bounds = bounds;
+        this.counts = new long[bounds.length + 1];
+    }
+
+    /**
+     * Parse increasing bucket upper bounds separated by ';'. The +Inf bucket is implied.
+     */
+    public static double[] parseBounds(String config, String bounds) {
+        String[] parts = bounds.split(";");
+        double[] values = new double[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            try {
+                values[i] = Double.parseDouble(parts[i].trim());
+            } catch (NumberFormatException nfe) {
+                throw new ConfigException(config, bounds, "Invalid bucket bound " + parts[i]);
+            }
+            if (Double.isInfinite(values[i]) || Double.isNaN(values[i]) || (i > 0 && values[i] <= values[i - 1])) {
+                throw new ConfigException(config, bounds, "Bucket bounds must be finite and increasing");
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Add the values recorded since the previous update. The sample is only read if there are new values.
+     * Callers must hold the lock of this object until they've read the counts.
+     */
+    void update(long newCount, Sampling sampling) {
+        long delta = newCount - count;
+        if (delta < 0) {
+            // The metric was cleared
+            Arrays.fill(counts, 0);
+            delta = newCount;
+        }
+        count = newCount;
+        if (delta == 0) {
+            return;
+        }
+        double[] values = sampling.getSnapshot().getValues();
+        if (values.length == 0) {
+            counts[bounds.length] += delta;
+            return;
+        }
+        // The values of the snapshot are sorted
+        long allocated = 0;
+        int below = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            while (below < values.length && values[below] <= bounds[i]) {
+                below++;
+            }
+            long cumulative = Math.round((double) delta * below / values.length);
+            counts[i] += cumulative - allocated;
+            allocated = cumulative;
+        }
+        counts[bounds.length] += delta - allocated;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mickaelmaison;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Predicate;
+import io.prometheus.client.hotspot.BufferPoolsExports;
+import io.prometheus.client.hotspot.ClassLoadingExports;
+import io.prometheus.client.hotspot.GarbageCollectorExports;
+import io.prometheus.client.hotspot.MemoryAllocationExports;
+import io.prometheus.client.hotspot.MemoryPoolsExports;
+import io.prometheus.client.hotspot.StandardExports;
+import io.prometheus.client.hotspot.ThreadExports;
+import io.prometheus.client.hotspot.VersionInfoExports;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * The JVM collectors registered in the registry of the reporters. Each collector is only registered once,
+ * whichever reporter selects it first.
+ */
+public class JvmCollectors {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JvmCollectors.class.getName());
+
+    static final String DEFAULT_REGISTRY = "default_registry";
+    static final Map<String, Supplier<Collector>> COLLECTORS = new LinkedHashMap<>();
+    static {
+        COLLECTORS.put("standard", StandardExports::new);
+        COLLECTORS.put("memory", MemoryPoolsExports::new);
+        COLLECTORS.put("memory_allocations", MemoryAllocationExports::new);
+        COLLECTORS.put("buffer_pools", BufferPoolsExports::new);
+        COLLECTORS.put("gc", GarbageCollectorExports::new);
+        COLLECTORS.put("threads", ThreadExports::new);
+        COLLECTORS.put("classloading", ClassLoadingExports::new);
+        COLLECTORS.put("version", VersionInfoExports::new);
+    }
+    // Replace the collectors above when the JVM metrics are refreshed in the background
+    static final Map<String, Supplier<CachedJvmCollector>> CACHED_COLLECTORS = new LinkedHashMap<>();
+    static {
+        CACHED_COLLECTORS.put("threads", CachedJvmCollector.Threads::new);
+        CACHED_COLLECTORS.put("buffer_pools", CachedJvmCollector.BufferPools::new);
+        CACHED_COLLECTORS.put("classloading", CachedJvmCollector.ClassLoading::new);
+    }
+
+    private final CollectorRegistry registry;
+    // The collectors registered by name, null if the registration failed
+    private final Map<String, Collector> registered = new HashMap<>();
+
+    public JvmCollectors(CollectorRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Register the given collectors, and if enabled a collector exposing the metrics other libraries
+     * registered in {@link CollectorRegistry#defaultRegistry}. If refreshIntervalMs is positive,
+     * the collectors with expensive MXBean reads are replaced by ones refreshed at that interval.
+     */
+    public synchronized void register(List<String> names, long refreshIntervalMs, boolean defaultRegistryEnabled) {
+        for (String name : names) {
+            Supplier<CachedJvmCollector> cachedCollector = CACHED_COLLECTORS.get(name);
+            if (refreshIntervalMs > 0 && cachedCollector != null) {
+                register(name, () -> {
+                    CachedJvmCollector collector = cachedCollector.get();
+                    collector.start(refreshIntervalMs);
+                    return collector;
+                });
+            } else {
+                register(name, COLLECTORS.get(name));
+            }
+        }
+        if (defaultRegistryEnabled) {
+            register(DEFAULT_REGISTRY, DefaultRegistryCollector::new);
+        }
+    }
+
+    private void register(String name, Supplier<? extends Collector> supplier) {
+        if (registered.containsKey(name)) {
+            return;
+        }
+        Collector collector = supplier.get();
+        try {
+            registry.register(collector);
+            registered.put(name, collector);
+        } catch (IllegalArgumentException iae) {
+            // Usually JVM metrics also registered in the default registry by the application
+            LOG.warn("Not registering the {} collector: {}", name, iae.getMessage());
+            stop(collector);
+            registered.put(name, null);
+        }
+    }
+
+    /**
+     * Unregister all the collectors and stop refreshing the cached ones. Called once the last reporter is closed.
+     */
+    public synchronized void unregister() {
+        for (Collector collector : registered.values()) {
+            if (collector != null) {
+                registry.unregister(collector);
+                stop(collector);
+            }
+        }
+        registered.clear();
+    }
+
+    private static void stop(Collector collector) {
+        if (collector instanceof CachedJvmCollector) {
+            ((CachedJvmCollector) collector).stop();
+        }
+    }
+
+    private static class DefaultRegistryCollector extends Collector {
+
+        @Override
+        public List<MetricFamilySamples> collect() {
+            return Collections.list(CollectorRegistry.defaultRegistry.metricFamilySamples());
+        }
+
+        @Override
+        public List<MetricFamilySamples> collect(Predicate<String> sampleNameFilter) {
+            return Collections.list(CollectorRegistry.defaultRegistry.filteredMetricFamilySamples(sampleNameFilter));
+        }
+    }
+}
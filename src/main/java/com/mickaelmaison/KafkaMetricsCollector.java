@@ -19,64 +19,509 @@ package com.mickaelmaison;
 import io.prometheus.client.Collector;
 import org.apache.kafka.common.MetricName;
 import org.apache.kafka.common.metrics.KafkaMetric;
+import org.apache.kafka.common.metrics.Measurable;
+import org.apache.kafka.common.metrics.stats.Avg;
+import org.apache.kafka.common.metrics.stats.CumulativeSum;
+import org.apache.kafka.common.metrics.stats.Rate;
+import org.apache.kafka.common.metrics.stats.WindowedSum;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
-public class KafkaMetricsCollector extends Collector {
+public class KafkaMetricsCollector extends StreamingCollector {
 
     private static final Logger LOG = LoggerFactory.getLogger(KafkaMetricsCollector.class.getName());
+    private static final ReporterMetrics.CollectorStats STATS = ReporterMetrics.INSTANCE.kafka;
 
-    private final Map<MetricName, KafkaMetric> metrics;
+    private final Map<MetricName, MetricWrapper> metrics;
+    // The allowed metrics grouped by Prometheus name, so each family is only described once.
+    // They are sorted by name so filtered scrapes only visit the matching families.
+    private final ConcurrentNavigableMap<String, MetricFamily> families;
+    private final Map<String, String> labelNames;
     private final PrometheusMetricsReporterConfig config;
-    private String prefix;
+    private final ParallelCollection parallel;
+    // Metrics added and removed by Kafka, applied in order when the collector is collected or drained
+    private final Queue<Registration> registrations = new ConcurrentLinkedQueue<>();
+    private CardinalityLimiter limiter;
+    private volatile String prefix;
+    // Labels added to all the series, so the series of the clients sharing the endpoint don't collide
+    private volatile String[] contextLabelNames = new String[0];
+    private volatile String[] contextLabelValues = new String[0];
 
     public KafkaMetricsCollector(PrometheusMetricsReporterConfig config) {
         this.config = config;
+        this.parallel = new ParallelCollection(config);
         this.metrics = new ConcurrentHashMap<>();
+        this.families = new ConcurrentSkipListMap<>();
+        this.labelNames = new ConcurrentHashMap<>();
+        this.limiter = new CardinalityLimiter(config);
     }
 
     public void setPrefix(String prefix) {
+        setContext(prefix, Collections.emptyMap());
+    }
+
+    /**
+     * Set the namespace of the metrics, and the labels added to all of them.
+     */
+    public synchronized void setContext(String prefix, Map<String, String> labels) {
+        applyRegistrations();
         this.prefix = prefix;
+        String[] names = new String[labels.size()];
+        String[] values = new String[labels.size()];
+        int i = 0;
+        for (Map.Entry<String, String> label : labels.entrySet()) {
+            names[i] = Collector.sanitizeMetricName(label.getKey());
+            values[i] = label.getValue();
+            i++;
+        }
+        contextLabelNames = names;
+        contextLabelValues = values;
+        // The namespace is part of every name, so all cached descriptors have to be rebuilt
+        families.clear();
+        limiter = new CardinalityLimiter(config);
+        for (Map.Entry<MetricName, MetricWrapper> entry : metrics.entrySet()) {
+            MetricWrapper wrapper = wrap(entry.getValue().metric);
+            entry.setValue(wrapper);
+            addToFamily(wrapper);
+        }
     }
 
     @Override
     public List<MetricFamilySamples> collect() {
-        List<MetricFamilySamples> samples = new ArrayList<>();
+        drain();
+        long start = System.nanoTime();
+        try {
+            if (parallel.isEnabled(metrics.size())) {
+                return parallel.map(new ArrayList<>(families.values()), KafkaMetricsCollector::collect);
+            }
+            List<MetricFamilySamples> samples = new ArrayList<>();
+            for (MetricFamily family : families.values()) {
+                MetricFamilySamples familySamples = collect(family);
+                if (familySamples != null) {
+                    samples.add(familySamples);
+                }
+            }
+            return samples;
+        } finally {
+            STATS.recordCollection(start);
+        }
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect(NameSelector selector) {
+        drain();
+        long start = System.nanoTime();
+        try {
+            List<MetricFamilySamples> samples = new ArrayList<>();
+            for (MetricFamily family : selector.select(families)) {
+                MetricFamilySamples familySamples = collect(family);
+                if (familySamples != null) {
+                    samples.add(familySamples);
+                }
+            }
+            return samples;
+        } finally {
+            STATS.recordCollection(start);
+        }
+    }
+
+    private static MetricFamilySamples collect(MetricFamily family) {
+        MetricFamilySamplesBuilder builder = new MetricFamilySamplesBuilder(family.name, family.exposedType, family.help);
+        collect(family, builder);
+        return builder.isEmpty() ? null : builder.build();
+    }
+
+    /**
+     * Collect families with the same name from several collectors into a single family.
+     */
+    static MetricFamilySamples collect(List<MetricFamily> families) {
+        MetricFamily first = families.get(0);
+        MetricFamilySamplesBuilder builder = new MetricFamilySamplesBuilder(first.name, first.exposedType, first.help);
+        for (MetricFamily family : families) {
+            if (family.exposedType == first.exposedType) {
+                collect(family, builder);
+            }
+        }
+        return builder.isEmpty() ? null : builder.build();
+    }
+
+    private static void collect(MetricFamily family, MetricFamilySamplesBuilder builder) {
+        if (family.rollup != null) {
+            Rollup.Values values = family.rollupValues();
+            STATS.recordFamily(values.convert(builder), 0);
+            return;
+        }
+        int emitted = 0;
+        int skipped = 0;
+        for (MetricWrapper wrapper : family.series.values()) {
+            if (convert(wrapper, builder)) {
+                emitted++;
+            } else {
+                skipped++;
+            }
+        }
+        MetricWrapper overflow = family.overflowSeries;
+        if (overflow != null) {
+            double total = family.overflowTotal();
+            if (!Double.isNaN(total)) {
+                builder.addSample(overflow.name, total, overflow.labelNames, overflow.labelValues);
+                emitted++;
+            }
+        }
+        STATS.recordFamily(emitted, skipped);
+    }
+
+    @Override
+    public void write(ExpositionBuffer buffer) {
+        drain();
+        long start = System.nanoTime();
+        if (parallel.isEnabled(metrics.size())) {
+            parallel.write(new ArrayList<>(families.values()), buffer, KafkaMetricsCollector::write);
+        } else {
+            for (MetricFamily family : families.values()) {
+                write(family, buffer);
+            }
+        }
+        STATS.recordCollection(start);
+    }
+
+    private static void write(MetricFamily family, ExpositionBuffer buffer) {
+        int start = buffer.size();
+        buffer.write(family.header);
+        if (writeSeries(family, buffer) == 0) {
+            buffer.truncate(start);
+        }
+    }
+
+    /**
+     * Write families with the same name from several collectors as a single family.
+     */
+    static void write(List<MetricFamily> families, ExpositionBuffer buffer) {
+        MetricFamily first = families.get(0);
+        int start = buffer.size();
+        buffer.write(first.header);
+        int emitted = 0;
+        for (MetricFamily family : families) {
+            if (family.exposedType == first.exposedType) {
+                emitted += writeSeries(family, buffer);
+            }
+        }
+        if (emitted == 0) {
+            buffer.truncate(start);
+        }
+    }
+
+    /**
+     * Write the series of a family after its header, returns the number of series written.
+     */
+    private static int writeSeries(MetricFamily family, ExpositionBuffer buffer) {
+        if (family.rollup != null) {
+            int emitted = family.rollupValues().write(buffer);
+            STATS.recordFamily(emitted, 0);
+            return emitted;
+        }
+        int emitted = 0;
+        int skipped = 0;
+        for (MetricWrapper wrapper : family.series.values()) {
+            long value = wrapper.value();
+            if (CachedValue.isNumeric(value)) {
+                emitted++;
+                buffer.write(wrapper.samplePrefix);
+                buffer.writeDouble(Double.longBitsToDouble(value));
+                buffer.write('\n');
+            } else {
+                skipped++;
+            }
+        }
+        MetricWrapper overflow = family.overflowSeries;
+        if (overflow != null) {
+            double total = family.overflowTotal();
+            if (!Double.isNaN(total)) {
+                emitted++;
+                buffer.write(overflow.samplePrefix);
+                buffer.writeDouble(total);
+                buffer.write('\n');
+            }
+        }
+        STATS.recordFamily(emitted, skipped);
+        return emitted;
+    }
+
+    @Override
+    public void writeProtobuf(ExpositionBuffer buffer) {
+        drain();
+        long start = System.nanoTime();
+        if (parallel.isEnabled(metrics.size())) {
+            parallel.write(new ArrayList<>(families.values()), buffer, KafkaMetricsCollector::writeProtobuf);
+        } else {
+            for (MetricFamily family : families.values()) {
+                writeProtobuf(family, buffer);
+            }
+        }
+        STATS.recordCollection(start);
+    }
+
+    private static void writeProtobuf(MetricFamily family, ExpositionBuffer buffer) {
+        int start = ProtobufFormat.startFamily(buffer, family.protobufHeader);
+        writeProtobufSeries(family, buffer);
+        ProtobufFormat.endFamily(buffer, start, family.protobufHeader);
+    }
+
+    /**
+     * Write families with the same name from several collectors as a single family in the protobuf format.
+     */
+    static void writeProtobuf(List<MetricFamily> families, ExpositionBuffer buffer) {
+        MetricFamily first = families.get(0);
+        int start = ProtobufFormat.startFamily(buffer, first.protobufHeader);
+        for (MetricFamily family : families) {
+            if (family.exposedType == first.exposedType) {
+                writeProtobufSeries(family, buffer);
+            }
+        }
+        ProtobufFormat.endFamily(buffer, start, first.protobufHeader);
+    }
+
+    private static void writeProtobufSeries(MetricFamily family, ExpositionBuffer buffer) {
+        if (family.rollup != null) {
+            STATS.recordFamily(family.rollupValues().writeProtobuf(buffer), 0);
+            return;
+        }
+        int emitted = 0;
+        int skipped = 0;
+        for (MetricWrapper wrapper : family.series.values()) {
+            long value = wrapper.value();
+            if (CachedValue.isNumeric(value)) {
+                ProtobufFormat.writeValue(buffer, family.type, wrapper.protobufLabels, Double.longBitsToDouble(value));
+                emitted++;
+            } else {
+                skipped++;
+            }
+        }
+        MetricWrapper overflow = family.overflowSeries;
+        if (overflow != null) {
+            double total = family.overflowTotal();
+            if (!Double.isNaN(total)) {
+                ProtobufFormat.writeValue(buffer, family.type, overflow.protobufLabels, total);
+                emitted++;
+            }
+        }
+        STATS.recordFamily(emitted, skipped);
+    }
+
+    /**
+     * Queue a metric to be added. This only costs a queue offer, so it can be called from Kafka's callbacks
+     * without slowing down the creation of metrics.
+     */
+    public void queueAddition(KafkaMetric metric) {
+        registrations.offer(new Registration(metric, true));
+    }
+
+    /**
+     * Queue a metric to be removed, after the additions and removals queued before.
+     */
+    public void queueRemoval(KafkaMetric metric) {
+        registrations.offer(new Registration(metric, false));
+    }
+
+    /**
+     * Apply the queued additions and removals. This is done before each collection, and periodically by the reporter.
+     */
+    public void drain() {
+        if (!registrations.isEmpty()) {
+            synchronized (this) {
+                applyRegistrations();
+            }
+        }
+    }
+
+    private void applyRegistrations() {
+        Registration registration;
+        while ((registration = registrations.poll()) != null) {
+            if (registration.added) {
+                add(registration.metric);
+            } else {
+                remove(registration.metric);
+            }
+        }
+    }
+
+    public synchronized void addMetric(KafkaMetric metric) {
+        applyRegistrations();
+        add(metric);
+    }
 
-        for (Map.Entry<MetricName, KafkaMetric> entry : metrics.entrySet()) {
-            MetricName metricName = entry.getKey();
-            KafkaMetric kafkaMetric = entry.getValue();
-            LOG.trace("Collecting Kafka metric {}", metricName);
+    public synchronized void removeMetric(KafkaMetric metric) {
+        applyRegistrations();
+        remove(metric);
+    }
 
-            String name = metricName(metricName);
-            // TODO Filtering should take labels into account
-            if (!config.isAllowed(name)) {
-                LOG.info("Kafka metric {} is not allowed", name);
-                continue;
+    private void add(KafkaMetric metric) {
+        MetricWrapper wrapper = wrap(metric);
+        MetricWrapper previous = metrics.put(metric.metricName(), wrapper);
+        if (previous != null) {
+            removeFromFamily(previous);
+        } else if (!wrapper.allowed) {
+            // Counted once per metric, not when it's registered again or rewrapped by a context change
+            STATS.recordDropped();
+        }
+        addToFamily(wrapper);
+    }
+
+    private void remove(KafkaMetric metric) {
+        MetricWrapper previous = metrics.remove(metric.metricName());
+        if (previous != null) {
+            removeFromFamily(previous);
+        }
+    }
+
+    private void addToFamily(MetricWrapper wrapper) {
+        if (wrapper.allowed) {
+            MetricFamily family = families.computeIfAbsent(wrapper.name, name -> new MetricFamily(name, wrapper.type,
+                    wrapper.metric.metricName().description(), rollup(name)));
+            if (family.type != wrapper.type) {
+                LOG.warn("Kafka metric {} is ignored as its type {} is different from the existing {} metrics with the same name",
+                        wrapper.metric.metricName(), wrapper.type, family.type);
+            } else if (family.rollup != null) {
+                // Only the groups are exposed, so the series limits don't apply
+                wrapper.rollupGroup = family.rollup.group(wrapper.labelNames, wrapper.labelValues);
+                family.series.put(wrapper.metric.metricName(), wrapper);
+            } else if (limiter.admit(wrapper.name, wrapper.labelNames, wrapper.labelValues)) {
+                family.series.put(wrapper.metric.metricName(), wrapper);
+            } else {
+                LOG.debug("Kafka metric {} is over the series limits, it is added to the {} series", wrapper.metric.metricName(), CardinalityLimiter.OVERFLOW);
+                STATS.recordOverflow();
+                family.addOverflow(wrapper, Arrays.asList(contextLabelNames));
             }
-            LOG.info("Kafka metric {} is allowed", name);
-            LOG.info("labels " + metricName.tags());
-            MetricFamilySamples sample = convert(name, metricName.description(), kafkaMetric, metricName.tags());
-            if (sample != null) {
-                samples.add(sample);
+        }
+    }
+
+    private Rollup.Rule rollup(String name) {
+        Rollup.Rule rule = config.rollup(name);
+        // Groups keep the context labels, so the groups of different clients aren't merged into the same series
+        return rule != null ? rule.withLabels(Arrays.asList(contextLabelNames)) : null;
+    }
+
+    private void removeFromFamily(MetricWrapper wrapper) {
+        if (wrapper.allowed) {
+            families.computeIfPresent(wrapper.name, (name, family) -> {
+                if (family.series.remove(wrapper.metric.metricName()) != null) {
+                    if (family.rollup != null) {
+                        family.rollup.release(wrapper.rollupGroup);
+                    } else {
+                        limiter.release(wrapper.name, wrapper.labelNames, wrapper.labelValues);
+                    }
+                } else {
+                    family.overflow.remove(wrapper.metric.metricName());
+                }
+                return family.series.isEmpty() && family.overflow.isEmpty() ? null : family;
+            });
+        }
+    }
+
+    private MetricWrapper wrap(KafkaMetric metric) {
+        MetricName metricName = metric.metricName();
+        if (prefix == null) {
+            // The namespace is only known after contextChange(), the descriptor is rebuilt by setPrefix()
+            return new MetricWrapper(metric, null, null, null, null, false, null);
+        }
+        long start = System.nanoTime();
+        try {
+            return wrap(metric, metricName(metricName));
+        } finally {
+            ReporterMetrics.INSTANCE.recordStage(ReporterMetrics.Stage.REGISTRATION, System.nanoTime() - start);
+        }
+    }
+
+    private MetricWrapper wrap(KafkaMetric metric, String name) {
+        // TODO Filtering should take labels into account
+        boolean allowed = config.isAllowed(name) && !(config.isTotalsOnly() && isWindowed(metric));
+        LOG.debug("Kafka metric {} is {}", name, allowed ? "allowed" : "not allowed");
+
+        Map<String, String> tags = metric.metricName().tags();
+        String[] contextNames = contextLabelNames;
+        String[] contextValues = contextLabelValues;
+        String[] names = new String[tags.size() + contextNames.length];
+        String[] values = new String[names.length];
+        int i = 0;
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            names[i] = labelNames.computeIfAbsent(tag.getKey(), Collector::sanitizeMetricName);
+            values[i] = tag.getValue();
+            i++;
+        }
+        int tagCount = i;
+        for (int j = 0; j < contextNames.length; j++) {
+            // Client metrics usually already have a client_id tag
+            if (!Arrays.asList(names).subList(0, tagCount).contains(contextNames[j])) {
+                names[i] = contextNames[j];
+                values[i] = contextValues[j];
+                i++;
             }
         }
-        return samples;
+        if (i < names.length) {
+            names = Arrays.copyOf(names, i);
+            values = Arrays.copyOf(values, i);
+        }
+        String sanitized = Collector.sanitizeMetricName(name);
+        CachedValue cache = allowed ? config.cachedValue(sanitized, metric::metricValue) : null;
+        return new MetricWrapper(metric, sanitized, type(metric, sanitized), names, values, allowed, cache);
     }
 
-    public void addMetric(KafkaMetric metric) {
-        metrics.put(metric.metricName(), metric);
+    /**
+     * Cumulative stats only go up so they are exposed as counters. This requires the name to already end with
+     * _total, like Kafka cumulative metrics do by convention, so adding the type doesn't rename the series.
+     */
+    static Type type(KafkaMetric metric, String name) {
+        if (!name.endsWith("_total")) {
+            return Type.GAUGE;
+        }
+        // CumulativeCount is also a CumulativeSum
+        return measurable(metric) instanceof CumulativeSum ? Type.COUNTER : Type.GAUGE;
     }
 
-    public void removeMetric(KafkaMetric metric) {
-        metrics.remove(metric.metricName());
+    /**
+     * Rates and averages over Kafka's sample windows, computed from the samples on each read. The sensors recording
+     * them usually also have a cumulative metric, Prometheus computes the same from it with rate().
+     */
+    static boolean isWindowed(KafkaMetric metric) {
+        Measurable measurable = measurable(metric);
+        // WindowedCount is also a WindowedSum
+        return measurable instanceof Rate || measurable instanceof Avg || measurable instanceof WindowedSum;
+    }
+
+    private static Measurable measurable(KafkaMetric metric) {
+        try {
+            return metric.measurable();
+        } catch (IllegalStateException ise) {
+            // Not a measurable, for example a Gauge
+            return null;
+        }
+    }
+
+    /**
+     * The allowed families, sorted by name.
+     */
+    NavigableMap<String, MetricFamily> families() {
+        return families;
+    }
+
+    int size() {
+        return metrics.size();
+    }
+
+    ParallelCollection parallel() {
+        return parallel;
     }
 
     String metricName(MetricName metricName) {
@@ -95,22 +540,136 @@ public class KafkaMetricsCollector extends Collector {
         return prefix + '_' + group + '_' + name;
     }
 
-    static MetricFamilySamples convert(String name, String help, KafkaMetric metric, Map<String, String> labels) {
-        Object value = metric.metricValue();
-        if (!(value instanceof Number)) {
+    static boolean convert(MetricWrapper wrapper, MetricFamilySamplesBuilder builder) {
+        long value = wrapper.value();
+        if (!CachedValue.isNumeric(value)) {
             // Prometheus only accepts numeric metrics.
             // Kafka gauges can have arbitrary types, so skip them for now
             // TODO move non-numeric values to labels
-            return null;
+            return false;
+        }
+        builder.addSample(wrapper.name, Double.longBitsToDouble(value), wrapper.labelNames, wrapper.labelValues);
+        return true;
+    }
+
+    private static final class Registration {
+
+        final KafkaMetric metric;
+        final boolean added;
+
+        Registration(KafkaMetric metric, boolean added) {
+            this.metric = metric;
+            this.added = added;
+        }
+    }
+
+    /**
+     * Kafka metric with its Prometheus name and labels, computed once when the metric is registered.
+     */
+    static final class MetricWrapper {
+
+        final KafkaMetric metric;
+        final String name;
+        final Type type;
+        final List<String> labelNames;
+        final List<String> labelValues;
+        final boolean allowed;
+        final byte[] samplePrefix;
+        final byte[] protobufLabels;
+        // Only set for the metrics of a refresh tier, or when metrics have a timeout
+        final CachedValue cache;
+        // Index of the roll-up group, assigned before the wrapper is added to its family
+        Rollup.Group rollupGroup;
+
+        MetricWrapper(KafkaMetric metric, String name, Type type, String[] labelNames, String[] labelValues, boolean allowed, CachedValue cache) {
+            this.metric = metric;
+            this.name = name;
+            this.type = type;
+            this.labelNames = labelNames == null ? null : Arrays.asList(labelNames);
+            this.labelValues = labelValues == null ? null : Arrays.asList(labelValues);
+            this.allowed = allowed;
+            this.samplePrefix = allowed ? ExpositionBuffer.samplePrefix(name, this.labelNames, this.labelValues) : null;
+            this.protobufLabels = allowed ? ProtobufFormat.labels(this.labelNames, this.labelValues) : null;
+            this.cache = cache;
+        }
+
+        /**
+         * The value of the metric as the bits of a double, or {@link CachedValue#NOT_NUMERIC}.
+         */
+        long value() {
+            return cache != null ? cache.get(STATS) : CachedValue.bits(metric.metricValue());
+        }
+    }
+
+    /**
+     * All the allowed metrics sharing the same Prometheus name.
+     */
+    static final class MetricFamily {
+
+        final String name;
+        final Type type;
+        // The type of the exposed series, which a roll-up can change
+        final Type exposedType;
+        final String help;
+        final Rollup rollup;
+        final byte[] header;
+        final byte[] protobufHeader;
+        final Map<MetricName, MetricWrapper> series = new ConcurrentHashMap<>();
+        // The metrics over the series limits, exposed as a single series
+        final Map<MetricName, MetricWrapper> overflow = new ConcurrentHashMap<>();
+        volatile MetricWrapper overflowSeries;
+
+        MetricFamily(String name, Type type, String help, Rollup.Rule rule) {
+            this.name = name;
+            this.type = type;
+            this.help = help;
+            this.rollup = rule != null ? new Rollup(rule, name, type) : null;
+            this.exposedType = rollup != null ? rollup.type : type;
+            this.header = ExpositionBuffer.header(name, exposedType, help);
+            this.protobufHeader = ProtobufFormat.familyHeader(name, exposedType, help);
+        }
+
+        Rollup.Values rollupValues() {
+            Rollup.Values values = rollup.values();
+            for (MetricWrapper wrapper : series.values()) {
+                long value = wrapper.value();
+                if (CachedValue.isNumeric(value)) {
+                    values.add(wrapper.rollupGroup, Double.longBitsToDouble(value));
+                }
+            }
+            return values;
+        }
+
+        /**
+         * Add a metric to the overflow series. The context labels keep their value, so the overflow series
+         * of the clients sharing the endpoint don't collide.
+         */
+        void addOverflow(MetricWrapper wrapper, List<String> contextLabelNames) {
+            if (overflowSeries == null) {
+                String[] names = wrapper.labelNames.toArray(new String[0]);
+                String[] values = new String[names.length];
+                for (int i = 0; i < names.length; i++) {
+                    values[i] = contextLabelNames.contains(names[i]) ? wrapper.labelValues.get(i) : CardinalityLimiter.OVERFLOW;
+                }
+                overflowSeries = new MetricWrapper(null, name, type, names, values, true, null);
+            }
+            overflow.put(wrapper.metric.metricName(), wrapper);
+        }
+
+        /**
+         * The sum of the metrics over the series limits, or NaN if none of them has a numeric value.
+         */
+        double overflowTotal() {
+            double total = 0;
+            boolean numeric = false;
+            for (MetricWrapper wrapper : overflow.values()) {
+                long value = wrapper.value();
+                if (CachedValue.isNumeric(value)) {
+                    total += Double.longBitsToDouble(value);
+                    numeric = true;
+                }
+            }
+            return numeric ? total : Double.NaN;
         }
-        Map<String, String> sanitizedLabels = labels.entrySet().stream()
-                .collect(Collectors.toMap(
-                        e -> Collector.sanitizeMetricName(e.getKey()),
-                        Map.Entry::getValue,
-                        (v1, v2) -> { throw new IllegalStateException("Unexpected duplicate key " + v1); },
-                        LinkedHashMap::new));
-        return new MetricFamilySamplesBuilder(Type.GAUGE, help)
-                .addSample(name, ((Number) value).doubleValue(), sanitizedLabels)
-                .build();
     }
 }
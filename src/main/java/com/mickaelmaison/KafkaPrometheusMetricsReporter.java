@@ -16,9 +16,7 @@
  */
 package com.mickaelmaison;
 
-import io.prometheus.client.CollectorRegistry;
-import io.prometheus.client.exporter.HTTPServer;
-import io.prometheus.client.hotspot.DefaultExports;
+import org.apache.kafka.clients.CommonClientConfigs;
 import org.apache.kafka.common.config.ConfigException;
 import org.apache.kafka.common.metrics.KafkaMetric;
 import org.apache.kafka.common.metrics.MetricsContext;
@@ -27,50 +25,83 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 public class KafkaPrometheusMetricsReporter implements MetricsReporter {
 
     private static final Logger LOG = LoggerFactory.getLogger(KafkaPrometheusMetricsReporter.class.getName());
+    private static final long DRAIN_INTERVAL_MS = 1000L;
+    // Applies the metrics queued by the reporters, so they don't pile up if no scrape collects them
+    private static final ScheduledExecutorService DRAINER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "prometheus-metrics-registration");
+        thread.setDaemon(true);
+        return thread;
+    });
 
+    private PrometheusMetricsReporterConfig config;
     private KafkaMetricsCollector kafkaMetricsCollector;
-    private Optional<HTTPServer> httpServer;
+    private SharedEndpoint endpoint;
+    private String clientId;
+    private ScheduledFuture<?> drainer;
 
     @Override
     public void configure(Map<String, ?> map) {
-        PrometheusMetricsReporterConfig config = new PrometheusMetricsReporterConfig(map);
+        config = new PrometheusMetricsReporterConfig(map);
+        Object clientId = map.get(CommonClientConfigs.CLIENT_ID_CONFIG);
+        this.clientId = clientId != null ? clientId.toString() : "";
         kafkaMetricsCollector = new KafkaMetricsCollector(config);
-        // Add JVM metrics
-        DefaultExports.initialize();
-        httpServer = config.startHttpServer();
+        endpoint = SharedEndpoint.acquire(config);
     }
 
     @Override
     public void init(List<KafkaMetric> metrics) {
-        CollectorRegistry.defaultRegistry.register(kafkaMetricsCollector);
+        SharedKafkaMetricsCollector.INSTANCE.add(kafkaMetricsCollector, config);
         for (KafkaMetric metric : metrics) {
             metricChange(metric);
         }
+        drainer = DRAINER.scheduleWithFixedDelay(() -> {
+            try {
+                kafkaMetricsCollector.drain();
+            } catch (Exception e) {
+                LOG.error("Failed registering Kafka metrics", e);
+            }
+        }, DRAIN_INTERVAL_MS, DRAIN_INTERVAL_MS, TimeUnit.MILLISECONDS);
     }
 
+    /**
+     * Called by Kafka while creating metrics, sometimes under its locks, so the metric is only queued.
+     * It's registered before the next collection.
+     */
     @Override
     public void metricChange(KafkaMetric metric) {
-        LOG.info("Kafka metricChange " + metric.metricName());
-        kafkaMetricsCollector.addMetric(metric);
+        LOG.debug("Kafka metricChange {}", metric.metricName());
+        kafkaMetricsCollector.queueAddition(metric);
     }
 
     @Override
     public void metricRemoval(KafkaMetric metric) {
-        LOG.info("Kafka metricRemoval " + metric.metricName());
-        kafkaMetricsCollector.removeMetric(metric);
+        LOG.debug("Kafka metricRemoval {}", metric.metricName());
+        kafkaMetricsCollector.queueRemoval(metric);
     }
 
     @Override
     public void close() {
-        LOG.info("Closing the HTTP server");
+        if (drainer != null) {
+            drainer.cancel(false);
+        }
+        // The last reporter stops the endpoint, which pushes the metrics one last time, including this reporter's
+        if (endpoint != null) {
+            endpoint.release();
+            endpoint = null;
+        }
+        SharedKafkaMetricsCollector.INSTANCE.remove(kafkaMetricsCollector);
     }
 
     @Override
@@ -90,10 +121,18 @@ public class KafkaPrometheusMetricsReporter implements MetricsReporter {
     public void contextChange(MetricsContext metricsContext) {
         LOG.info("Kafka contextChange with " + metricsContext.contextLabels());
         String prefix = metricsContext.contextLabels().get(MetricsContext.NAMESPACE);
-        kafkaMetricsCollector.setPrefix(prefix);
+        Map<String, String> labels = new LinkedHashMap<>();
+        if (config.isContextLabelsEnabled()) {
+            labels.putAll(metricsContext.contextLabels());
+            labels.remove(MetricsContext.NAMESPACE);
+            if (!clientId.isEmpty()) {
+                labels.putIfAbsent(CommonClientConfigs.CLIENT_ID_CONFIG, clientId);
+            }
+        }
+        kafkaMetricsCollector.setContext(prefix, labels);
     }
 
     public int getPort() {
-        return httpServer.get().getPort();
+        return endpoint.httpServer().get().getPort();
     }
 }
@@ -20,45 +20,48 @@ import com.yammer.metrics.stats.Snapshot;
 import io.prometheus.client.Collector;
 
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 public class MetricFamilySamplesBuilder {
 
+    private final String name;
     private final Collector.Type type;
     private final String help;
     private final List<Collector.MetricFamilySamples.Sample> samples;
 
-    public MetricFamilySamplesBuilder(Collector.Type type, String help) {
+    public MetricFamilySamplesBuilder(String name, Collector.Type type, String help) {
+        this.name = name;
         this.type = type;
         this.help = help;
         this.samples = new ArrayList<>();
     }
 
-    MetricFamilySamplesBuilder addSample(String name, double value, Map<String, String> labels) {
-        samples.add(new Collector.MetricFamilySamples.Sample(
-                        Collector.sanitizeMetricName(name),
-                        new ArrayList<>(labels.keySet()),
-                        new ArrayList<>(labels.values()),
-                        value));
+    /**
+     * Add a sample whose name is already sanitized, the label lists are used as is and must not be modified.
+     */
+    MetricFamilySamplesBuilder addSample(String name, double value, List<String> labelNames, List<String> labelValues) {
+        samples.add(new Collector.MetricFamilySamples.Sample(name, labelNames, labelValues, value));
         return this;
     }
 
-    MetricFamilySamplesBuilder addQuantileSamples(String name, Snapshot snapshot, Map<String, String> labels) {
-        for (String quantile : Arrays.asList("0.50", "0.75", "0.95", "0.98", "0.99", "0.999")) {
-            Map<String, String> newLabels = new HashMap<>(labels);
-            newLabels.put("quantile", quantile);
-            addSample(name, snapshot.getValue(Double.parseDouble(quantile)), newLabels);
+    /**
+     * Add a sample for each quantile, all read from the same snapshot. The label lists already include the quantile label.
+     */
+    MetricFamilySamplesBuilder addQuantileSamples(String name, Snapshot snapshot, Quantiles quantiles, List<String> labelNames, List<List<String>> labelValues) {
+        for (int i = 0; i < quantiles.size(); i++) {
+            addSample(name, snapshot.getValue(quantiles.values[i]), labelNames, labelValues.get(i));
         }
         return this;
     }
 
+    boolean isEmpty() {
+        return samples.isEmpty();
+    }
+
     Collector.MetricFamilySamples build() {
         if (samples.isEmpty()) {
             throw new IllegalStateException("There are no samples");
         }
-        return new Collector.MetricFamilySamples(samples.get(0).name, type, help, samples);
+        return new Collector.MetricFamilySamples(name, type, help, samples);
     }
 }
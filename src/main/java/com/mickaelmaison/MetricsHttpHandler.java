@@ -0,0 +1,354 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mickaelmaison;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serves the metrics of the {@link StreamingCollectorRegistry} and of the {@link CollectorRegistry}.
+ * The format is negotiated from the Accept header: text 0.0.4, OpenMetrics text or delimited protobuf.
+ * Streaming collectors are rendered directly into a pooled buffer for full text 0.0.4 and protobuf scrapes,
+ * all other requests go through {@link TextFormat} like the simpleclient HTTPServer does.
+ * This is independent from the transport, requests are received by {@link MetricsHttpServer}.
+ */
+public class MetricsHttpHandler {
+
+    private static final String HEALTHY_PATH = "/-/healthy";
+    private static final byte[] HEALTHY_RESPONSE = "Exporter is Healthy.".getBytes(StandardCharsets.UTF_8);
+    private static final String ENDPOINTS_PATH = "/metrics/";
+    static final String SNAPSHOT_TIMESTAMP_NAME = "prometheus_metrics_reporter_snapshot_timestamp_seconds";
+    private static final String SNAPSHOT_TIMESTAMP_HELP = "Time the served metrics were rendered at, in seconds since the epoch";
+    private static final List<String> CONTENT_TYPES = Arrays.asList(
+            TextFormat.CONTENT_TYPE_004, TextFormat.CONTENT_TYPE_OPENMETRICS_100, ProtobufFormat.CONTENT_TYPE);
+
+    private final StreamingCollectorRegistry streamingRegistry;
+    private final CollectorRegistry registry;
+    private final PrometheusMetricsReporterConfig config;
+    // Full scrapes are cached separately for each format
+    private final Map<String, ScrapeCache> caches = new HashMap<>();
+    private final boolean prerendered;
+    private final long deadlineNanos;
+
+    public MetricsHttpHandler(StreamingCollectorRegistry streamingRegistry, CollectorRegistry registry, PrometheusMetricsReporterConfig config) {
+        this.streamingRegistry = streamingRegistry;
+        this.registry = registry;
+        this.config = config;
+        this.prerendered = config.prerenderIntervalMs() > 0;
+        this.deadlineNanos = TimeUnit.MILLISECONDS.toNanos(config.collectionDeadlineMs());
+        for (String contentType : CONTENT_TYPES) {
+            // Scrapes joining another one wait at most as long as it can take to collect
+            caches.put(contentType, new ScrapeCache(config.cacheTtlMs(), prerendered, config.collectionDeadlineMs()));
+        }
+    }
+
+    /**
+     * Render all the metrics and swap them in for the following scrapes. Called periodically in pre-rendering mode.
+     * Formats other than text 0.0.4 are only rendered once they have been requested.
+     */
+    public void prerender() throws IOException {
+        for (String contentType : CONTENT_TYPES) {
+            ScrapeCache cache = caches.get(contentType);
+            if (TextFormat.CONTENT_TYPE_004.equals(contentType) || !cache.isEmpty()) {
+                cache.refresh(() -> render(contentType));
+            }
+        }
+    }
+
+    public Response handle(Request request) throws IOException {
+        if (request.path.startsWith(HEALTHY_PATH)) {
+            return new Response(null, null, ByteBuffer.wrap(HEALTHY_RESPONSE), null);
+        }
+        long start = System.nanoTime();
+        String contentType = chooseContentType(request.header("accept"));
+        Set<String> names = parseQuery(request.query);
+        NameSelector selector = names.isEmpty() ? null : new NameSelector(names);
+        if (request.path.startsWith(ENDPOINTS_PATH)) {
+            NameSelector endpoint = config.httpEndpoint(request.path.substring(ENDPOINTS_PATH.length()));
+            if (endpoint == null) {
+                return Response.NOT_FOUND;
+            }
+            // The name[] parameters can narrow down the metrics of the endpoint
+            selector = selector == null ? endpoint : selector.restrictTo(endpoint);
+        }
+        boolean gzip = shouldUseCompression(request.header("accept-encoding"));
+        if (selector == null) {
+            // Full scrapes are shared between concurrent requests and cached
+            MetricsSnapshot snapshot = caches.get(contentType).get(() -> render(contentType));
+            byte[] body = gzip ? snapshot.gzipped() : snapshot.body();
+            ReporterMetrics.INSTANCE.recordScrape(System.nanoTime() - start, body.length);
+            return new Response(contentType, gzip ? "gzip" : null, ByteBuffer.wrap(body), null);
+        }
+
+        ExpositionBuffer buffer = ExpositionBuffer.acquire();
+        try {
+            write(buffer, contentType, selector, Collections.emptyList());
+            if (gzip) {
+                long compressionStart = System.nanoTime();
+                ExpositionBuffer compressed = ExpositionBuffer.acquire();
+                try (GZIPOutputStream os = new GZIPOutputStream(compressed)) {
+                    buffer.writeTo(os);
+                } catch (IOException | RuntimeException e) {
+                    compressed.release();
+                    throw e;
+                }
+                ReporterMetrics.INSTANCE.recordCompression(System.nanoTime() - compressionStart, buffer.size(), compressed.size());
+                buffer.release();
+                buffer = compressed;
+            }
+        } catch (IOException | RuntimeException e) {
+            buffer.release();
+            throw e;
+        }
+        ReporterMetrics.INSTANCE.recordScrape(System.nanoTime() - start, buffer.size());
+        // The pooled buffer is released once the response has been sent
+        return new Response(contentType, gzip ? "gzip" : null, buffer.asByteBuffer(), buffer::release);
+    }
+
+    private byte[] render(String contentType) throws IOException {
+        List<Collector.MetricFamilySamples> extra = Collections.emptyList();
+        if (prerendered) {
+            // The snapshot is served as is until the next rendering, so expose when it was created.
+            // Its age is time() minus this value.
+            extra = Collections.singletonList(new Collector.MetricFamilySamples(SNAPSHOT_TIMESTAMP_NAME, Collector.Type.GAUGE,
+                    SNAPSHOT_TIMESTAMP_HELP, Collections.singletonList(new Collector.MetricFamilySamples.Sample(
+                            SNAPSHOT_TIMESTAMP_NAME, Collections.emptyList(), Collections.emptyList(), System.currentTimeMillis() / 1000.0))));
+        }
+        ExpositionBuffer buffer = ExpositionBuffer.acquire();
+        try {
+            write(buffer, contentType, null, extra);
+            return buffer.toByteArray();
+        } finally {
+            buffer.release();
+        }
+    }
+
+    void write(ExpositionBuffer buffer, String contentType, NameSelector selector, List<Collector.MetricFamilySamples> extra) throws IOException {
+        long start = System.nanoTime();
+        if (deadlineNanos > 0) {
+            CollectionDeadline.set(start + deadlineNanos);
+        }
+        try {
+            writeFormat(buffer, contentType, selector, extra);
+        } finally {
+            CollectionDeadline.set(CollectionDeadline.NONE);
+            ReporterMetrics.INSTANCE.recordStage(ReporterMetrics.Stage.COLLECTION, System.nanoTime() - start);
+        }
+    }
+
+    private void writeFormat(ExpositionBuffer buffer, String contentType, NameSelector selector, List<Collector.MetricFamilySamples> extra) throws IOException {
+        if (ProtobufFormat.CONTENT_TYPE.equals(contentType)) {
+            if (selector == null) {
+                for (StreamingCollector collector : streamingRegistry.collectors()) {
+                    collector.writeProtobuf(buffer);
+                }
+                ProtobufFormat.write(buffer, registry.metricFamilySamples());
+            } else {
+                ProtobufFormat.write(buffer, Collections.enumeration(metricFamilySamples(selector)));
+            }
+            ProtobufFormat.write(buffer, Collections.enumeration(extra));
+            return;
+        }
+        Writer writer = new OutputStreamWriter(buffer, StandardCharsets.UTF_8);
+        if (selector == null && TextFormat.CONTENT_TYPE_004.equals(contentType)) {
+            for (StreamingCollector collector : streamingRegistry.collectors()) {
+                collector.write(buffer);
+            }
+            TextFormat.write004(writer, registry.metricFamilySamples());
+            TextFormat.write004(writer, Collections.enumeration(extra));
+        } else {
+            List<Collector.MetricFamilySamples> samples = metricFamilySamples(selector);
+            samples.addAll(extra);
+            TextFormat.writeFormat(contentType, writer, Collections.enumeration(samples));
+        }
+        writer.flush();
+    }
+
+    /**
+     * The metrics matching the selector, or all metrics if it's null. The streaming collectors only visit
+     * the families the selector can match.
+     */
+    private List<Collector.MetricFamilySamples> metricFamilySamples(NameSelector selector) {
+        List<Collector.MetricFamilySamples> samples = new ArrayList<>();
+        for (StreamingCollector collector : streamingRegistry.collectors()) {
+            for (Collector.MetricFamilySamples family : selector == null ? collector.collect() : collector.collect(selector)) {
+                Collector.MetricFamilySamples filtered = family.filter(selector);
+                if (filtered != null) {
+                    samples.add(filtered);
+                }
+            }
+        }
+        Enumeration<Collector.MetricFamilySamples> others = registry.filteredMetricFamilySamples(selector);
+        while (others.hasMoreElements()) {
+            samples.add(others.nextElement());
+        }
+        return samples;
+    }
+
+    /**
+     * The supported content type with the highest quality in the Accept header, text 0.0.4 by default.
+     */
+    static String chooseContentType(String accept) {
+        String chosen = TextFormat.CONTENT_TYPE_004;
+        if (accept == null) {
+            return chosen;
+        }
+        double best = 0;
+        for (String range : accept.split(",")) {
+            String[] parts = range.split(";");
+            String mediaType = parts[0].trim().toLowerCase();
+            double quality = 1.0;
+            String proto = null;
+            String encoding = null;
+            for (int i = 1; i < parts.length; i++) {
+                int idx = parts[i].indexOf('=');
+                if (idx < 0) {
+                    continue;
+                }
+                String name = parts[i].substring(0, idx).trim();
+                String value = parts[i].substring(idx + 1).trim();
+                if (name.equals("q")) {
+                    try {
+                        quality = Double.parseDouble(value);
+                    } catch (NumberFormatException nfe) {
+                        quality = 0;
+                    }
+                } else if (name.equals("proto")) {
+                    proto = value;
+                } else if (name.equals("encoding")) {
+                    encoding = value;
+                }
+            }
+            String contentType = null;
+            if (mediaType.equals("application/vnd.google.protobuf")) {
+                if ("io.prometheus.client.MetricFamily".equals(proto) && "delimited".equals(encoding)) {
+                    contentType = ProtobufFormat.CONTENT_TYPE;
+                }
+            } else if (mediaType.equals("application/openmetrics-text")) {
+                contentType = TextFormat.CONTENT_TYPE_OPENMETRICS_100;
+            } else if (mediaType.equals("text/plain") || mediaType.equals("text/*") || mediaType.equals("*/*")) {
+                contentType = TextFormat.CONTENT_TYPE_004;
+            }
+            if (contentType != null && quality > best) {
+                best = quality;
+                chosen = contentType;
+            }
+        }
+        return chosen;
+    }
+
+    private static boolean shouldUseCompression(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String encoding : acceptEncoding.split(",")) {
+            if (encoding.trim().equalsIgnoreCase("gzip")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static Set<String> parseQuery(String query) throws UnsupportedEncodingException {
+        Set<String> names = new HashSet<>();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                int idx = pair.indexOf("=");
+                if (idx != -1 && URLDecoder.decode(pair.substring(0, idx), "UTF-8").equals("name[]")) {
+                    names.add(URLDecoder.decode(pair.substring(idx + 1), "UTF-8"));
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * A parsed HTTP request, header names are lower case.
+     */
+    public static class Request {
+
+        final String method;
+        final String path;
+        final String query;
+        final Map<String, String> headers;
+
+        public Request(String method, String path, String query, Map<String, String> headers) {
+            this.method = method;
+            this.path = path;
+            this.query = query;
+            this.headers = headers;
+        }
+
+        String header(String name) {
+            return headers.get(name);
+        }
+    }
+
+    /**
+     * The response to a request. The body is only valid until {@link #release()} is called.
+     */
+    public static class Response {
+
+        static final Response NOT_FOUND = new Response(404, "Not Found", null, null, ByteBuffer.allocate(0), null);
+
+        final int status;
+        final String reason;
+        final String contentType;
+        final String contentEncoding;
+        final ByteBuffer body;
+        private final Runnable onRelease;
+
+        Response(String contentType, String contentEncoding, ByteBuffer body, Runnable onRelease) {
+            this(200, "OK", contentType, contentEncoding, body, onRelease);
+        }
+
+        Response(int status, String reason, String contentType, String contentEncoding, ByteBuffer body, Runnable onRelease) {
+            this.status = status;
+            this.reason = reason;
+            this.contentType = contentType;
+            this.contentEncoding = contentEncoding;
+            this.body = body;
+            this.onRelease = onRelease;
+        }
+
+        void release() {
+            if (onRelease != null) {
+                onRelease.run();
+            }
+        }
+    }
+}
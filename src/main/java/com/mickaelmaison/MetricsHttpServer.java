@@ -0,0 +1,426 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mickaelmaison;
+
+import io.prometheus.client.CollectorRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking HTTP/1.1 server exposing the metrics, with the same endpoints as the simpleclient HTTPServer.
+ * A single selector thread accepts connections and does all the network IO. Requests are handled by a pool
+ * of worker threads, or by virtual threads if enabled and supported by the JVM.
+ */
+public class MetricsHttpServer implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MetricsHttpServer.class.getName());
+
+    private static final int MAX_REQUEST_SIZE = 8192;
+    private static final long SELECT_TIMEOUT_MS = 500L;
+    private static final AtomicInteger THREAD_NUMBER = new AtomicInteger(1);
+
+    private final MetricsHttpHandler handler;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final ExecutorService workers;
+    private final Semaphore scrapes;
+    private final int maxConnections;
+    private final long requestTimeoutNanos;
+    // Connections with a response ready to be sent, picked up by the selector thread
+    private final Queue<Connection> responses = new ConcurrentLinkedQueue<>();
+    // Only accessed by the selector thread
+    private final Set<Connection> connections = new HashSet<>();
+    private final Thread selectorThread;
+    private volatile boolean running = true;
+
+    public MetricsHttpServer(PrometheusMetricsReporterConfig config, StreamingCollectorRegistry streamingRegistry, CollectorRegistry registry) throws IOException {
+        handler = new MetricsHttpHandler(streamingRegistry, registry, config);
+        scrapes = new Semaphore(config.httpMaxConcurrentScrapes());
+        maxConnections = config.httpMaxConnections();
+        requestTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.httpRequestTimeoutMs());
+
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(config.port()), config.httpBacklog());
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException ioe) {
+            closeQuietly(serverChannel);
+            closeQuietly(selector);
+            throw ioe;
+        }
+
+        workers = newWorkers(config);
+        selectorThread = newThread(this::run, "prometheus-http-selector");
+        selectorThread.start();
+    }
+
+    private static ExecutorService newWorkers(PrometheusMetricsReporterConfig config) {
+        if (config.httpVirtualThreadsEnabled()) {
+            try {
+                // Only available from Java 21
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                LOG.warn("Virtual threads are not supported by this JVM, using {} worker threads instead", config.httpWorkerThreads());
+            }
+        }
+        return Executors.newFixedThreadPool(config.httpWorkerThreads(), r -> newThread(r, "prometheus-http-" + THREAD_NUMBER.getAndIncrement()));
+    }
+
+    private static Thread newThread(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    public void prerender() throws IOException {
+        handler.prerender();
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            selectorThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        workers.shutdownNow();
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                selector.select(SELECT_TIMEOUT_MS);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    if (key.isReadable()) {
+                        connection.read();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.write();
+                    }
+                }
+                Connection connection;
+                while ((connection = responses.poll()) != null) {
+                    connection.startWrite();
+                }
+                expireConnections();
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.error("HTTP server failed", e);
+        } finally {
+            for (Connection connection : new ArrayList<>(connections)) {
+                connection.close();
+            }
+            Connection connection;
+            while ((connection = responses.poll()) != null) {
+                connection.releaseResponse();
+            }
+            closeQuietly(serverChannel);
+            closeQuietly(selector);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            if (connections.size() >= maxConnections) {
+                LOG.debug("Rejecting connection, there are already {} connections", maxConnections);
+                closeQuietly(channel);
+                continue;
+            }
+            channel.configureBlocking(false);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connections.add(connection);
+        }
+    }
+
+    private void expireConnections() {
+        long now = System.nanoTime();
+        for (Connection connection : new ArrayList<>(connections)) {
+            // Collection can't be interrupted, so connections are only expired while reading or writing
+            if (connection.state != State.PROCESSING && now - connection.lastActivity > requestTimeoutNanos) {
+                connection.close();
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ioe) {
+            LOG.debug("Failed closing {}", closeable, ioe);
+        }
+    }
+
+    private enum State {
+        READING,
+        PROCESSING,
+        WRITING,
+        CLOSED
+    }
+
+    private final class Connection {
+
+        private final SocketChannel channel;
+        private final ByteBuffer in = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+        private SelectionKey key;
+        private volatile State state = State.READING;
+        private long lastActivity = System.nanoTime();
+        // Set by the worker before the connection is added to responses
+        private ByteBuffer[] out;
+        // Bytes of out not written yet, the response is only released once all the buffers are drained
+        private long outRemaining;
+        private MetricsHttpHandler.Response response;
+        private boolean keepAlive;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read() {
+            try {
+                if (channel.read(in) < 0) {
+                    close();
+                    return;
+                }
+            } catch (IOException ioe) {
+                close();
+                return;
+            }
+            lastActivity = System.nanoTime();
+            parse();
+        }
+
+        private void parse() {
+            int end = headerEnd();
+            if (end < 0) {
+                if (!in.hasRemaining()) {
+                    keepAlive = false;
+                    respond(431, "Request Header Fields Too Large");
+                }
+                return;
+            }
+            String head = new String(in.array(), 0, end, StandardCharsets.ISO_8859_1);
+            in.flip();
+            in.position(end + 4);
+            in.compact();
+
+            String[] lines = head.split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/")) {
+                keepAlive = false;
+                respond(400, "Bad Request");
+                return;
+            }
+            Map<String, String> headers = new HashMap<>();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon > 0) {
+                    headers.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+                }
+            }
+            String method = requestLine[0];
+            String connectionHeader = headers.get("connection");
+            keepAlive = "HTTP/1.1".equals(requestLine[2])
+                    ? !"close".equalsIgnoreCase(connectionHeader)
+                    : "keep-alive".equalsIgnoreCase(connectionHeader);
+            if (!"GET".equals(method) && !"HEAD".equals(method)) {
+                // Request bodies are not read, so the connection can't be reused
+                keepAlive = false;
+                respond(405, "Method Not Allowed");
+                return;
+            }
+            String target = requestLine[1];
+            int question = target.indexOf('?');
+            dispatch(new MetricsHttpHandler.Request(method,
+                    question < 0 ? target : target.substring(0, question),
+                    question < 0 ? null : target.substring(question + 1),
+                    headers));
+        }
+
+        private int headerEnd() {
+            byte[] bytes = in.array();
+            for (int i = 0; i + 3 < in.position(); i++) {
+                if (bytes[i] == '\r' && bytes[i + 1] == '\n' && bytes[i + 2] == '\r' && bytes[i + 3] == '\n') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private void dispatch(MetricsHttpHandler.Request request) {
+            if (!scrapes.tryAcquire()) {
+                respond(503, "Service Unavailable");
+                return;
+            }
+            state = State.PROCESSING;
+            key.interestOps(0);
+            try {
+                workers.execute(() -> {
+                    try {
+                        MetricsHttpHandler.Response response = handler.handle(request);
+                        prepare(response.status, response.reason, response, "HEAD".equals(request.method));
+                    } catch (Exception e) {
+                        LOG.error("Failed handling request for {}", request.path, e);
+                        keepAlive = false;
+                        prepare(500, "Internal Server Error", null, false);
+                    } finally {
+                        scrapes.release();
+                    }
+                    responses.add(this);
+                    selector.wakeup();
+                });
+            } catch (RejectedExecutionException ree) {
+                scrapes.release();
+                respond(503, "Service Unavailable");
+            }
+        }
+
+        /**
+         * Send a response without body, from the selector thread.
+         */
+        private void respond(int status, String reason) {
+            prepare(status, reason, null, false);
+            startWrite();
+        }
+
+        private void prepare(int status, String reason, MetricsHttpHandler.Response response, boolean head) {
+            this.response = response;
+            StringBuilder sb = new StringBuilder(128)
+                    .append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+            int length = 0;
+            if (response != null) {
+                if (response.contentType != null) {
+                    sb.append("Content-Type: ").append(response.contentType).append("\r\n");
+                }
+                if (response.contentEncoding != null) {
+                    sb.append("Content-Encoding: ").append(response.contentEncoding).append("\r\n");
+                }
+                length = response.body.remaining();
+            }
+            sb.append("Content-Length: ").append(length).append("\r\n")
+                    .append(keepAlive ? "Connection: keep-alive\r\n" : "Connection: close\r\n")
+                    .append("\r\n");
+            ByteBuffer headers = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+            out = response == null || head ? new ByteBuffer[] {headers} : new ByteBuffer[] {headers, response.body};
+            outRemaining = 0;
+            for (ByteBuffer buffer : out) {
+                outRemaining += buffer.remaining();
+            }
+        }
+
+        void startWrite() {
+            if (state == State.CLOSED) {
+                // The connection timed out or was closed by the client while the request was handled
+                releaseResponse();
+                return;
+            }
+            state = State.WRITING;
+            lastActivity = System.nanoTime();
+            key.interestOps(SelectionKey.OP_WRITE);
+            write();
+        }
+
+        void write() {
+            try {
+                long written = channel.write(out);
+                if (written > 0) {
+                    outRemaining -= written;
+                    lastActivity = System.nanoTime();
+                }
+            } catch (IOException ioe) {
+                close();
+                return;
+            }
+            if (outRemaining > 0) {
+                return;
+            }
+            releaseResponse();
+            out = null;
+            if (!keepAlive) {
+                close();
+                return;
+            }
+            state = State.READING;
+            key.interestOps(SelectionKey.OP_READ);
+            if (in.position() > 0) {
+                // Pipelined request
+                parse();
+            }
+        }
+
+        void releaseResponse() {
+            if (response != null) {
+                response.release();
+                response = null;
+            }
+        }
+
+        void close() {
+            if (state == State.WRITING) {
+                releaseResponse();
+            }
+            state = State.CLOSED;
+            connections.remove(this);
+            key.cancel();
+            closeQuietly(channel);
+        }
+    }
+}
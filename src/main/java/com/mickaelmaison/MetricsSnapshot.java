@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mickaelmaison;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Immutable rendering of all the metrics, that can be served to several scrapes.
+ */
+public class MetricsSnapshot {
+
+    private final byte[] body;
+    private final long createdNanos;
+    private volatile byte[] gzipped;
+
+    public MetricsSnapshot(byte[] body, long createdNanos) {
+        this.body = body;
+        this.createdNanos = createdNanos;
+    }
+
+    /**
+     * A snapshot with its body already compressed, so the scrapes served from it only copy bytes.
+     */
+    public static MetricsSnapshot compressed(byte[] body, long createdNanos) {
+        MetricsSnapshot snapshot = new MetricsSnapshot(body, createdNanos);
+        snapshot.gzipped();
+        return snapshot;
+    }
+
+    public byte[] body() {
+        return body;
+    }
+
+    public long createdNanos() {
+        return createdNanos;
+    }
+
+    boolean isCompressed() {
+        return gzipped != null;
+    }
+
+    /**
+     * The gzip compressed body, only computed once for all the scrapes served from this snapshot. Pre-rendered
+     * snapshots are compressed by the rendering thread, others by the first scrape asking for it.
+     */
+    public byte[] gzipped() {
+        byte[] result = gzipped;
+        if (result == null) {
+            synchronized (this) {
+                result = gzipped;
+                if (result == null) {
+                    long start = System.nanoTime();
+                    ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(32, body.length / 4));
+                    try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+                        gzip.write(body);
+                    } catch (IOException ioe) {
+                        throw new UncheckedIOException(ioe);
+                    }
+                    result = out.toByteArray();
+                    ReporterMetrics.INSTANCE.recordCompression(System.nanoTime() - start, body.length, result.length);
+                    gzipped = result;
+                }
+            }
+        }
+        return result;
+    }
+}
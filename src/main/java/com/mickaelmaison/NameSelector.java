@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mickaelmaison;
+
+import io.prometheus.client.Predicate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+
+/**
+ * Selects samples by name, from the name[] parameters of a scrape or the entries of a named endpoint.
+ * Entries are sample names, or prefixes when they end with '*'.
+ * <p>
+ * Collectors keep their families in a map sorted by name, so {@link #select(NavigableMap)} only visits the families
+ * that can have matching samples: exact names are looked up directly and prefixes are ranges of the map.
+ * A family can have samples the selector doesn't match, for example its _sum when only _count is requested,
+ * so the collected families still have to be filtered with {@link #test(String)}.
+ */
+public class NameSelector implements Predicate<String> {
+
+    private static final char PREFIX_WILDCARD = '*';
+    // The suffixes samples add to the name of their family
+    private static final String[] SUFFIXES = {"_total", "_count", "_sum", "_bucket", "_min", "_max"};
+
+    private final Set<String> names = new HashSet<>();
+    private final List<String> prefixes = new ArrayList<>();
+
+    public NameSelector(Collection<String> entries) {
+        for (String entry : entries) {
+            if (entry.indexOf(PREFIX_WILDCARD) == entry.length() - 1) {
+                prefixes.add(entry.substring(0, entry.length() - 1));
+            } else {
+                names.add(entry);
+            }
+        }
+    }
+
+    /**
+     * The exact names of this selector also accepted by the other one, its prefixes are dropped.
+     */
+    NameSelector restrictTo(NameSelector other) {
+        List<String> entries = new ArrayList<>();
+        for (String name : names) {
+            if (other.test(name)) {
+                entries.add(name);
+            }
+        }
+        return new NameSelector(entries);
+    }
+
+    public boolean isEmpty() {
+        return names.isEmpty() && prefixes.isEmpty();
+    }
+
+    @Override
+    public boolean test(String sampleName) {
+        if (names.contains(sampleName)) {
+            return true;
+        }
+        for (String prefix : prefixes) {
+            if (sampleName.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The families that can have samples matching this selector, each family is only returned once.
+     */
+    public <T> Collection<T> select(NavigableMap<String, T> families) {
+        Map<String, T> selected = new LinkedHashMap<>();
+        for (String name : names) {
+            add(families, name, selected);
+            for (String suffix : SUFFIXES) {
+                if (name.endsWith(suffix)) {
+                    add(families, name.substring(0, name.length() - suffix.length()), selected);
+                }
+            }
+        }
+        for (String prefix : prefixes) {
+            selected.putAll(families.subMap(prefix, true, prefix + Character.MAX_VALUE, false));
+            // Families with a shorter name can have samples with a suffix starting with the prefix
+            for (int i = prefix.indexOf('_', 1); i > 0; i = prefix.indexOf('_', i + 1)) {
+                add(families, prefix.substring(0, i), selected);
+            }
+        }
+        return selected.values();
+    }
+
+    private static <T> void add(NavigableMap<String, T> families, String name, Map<String, T> selected) {
+        T family = families.get(name);
+        if (family != null) {
+            selected.put(name, family);
+        }
+    }
+
+    @Override
+    public String toString() {
+        List<String> entries = new ArrayList<>(names);
+        for (String prefix : prefixes) {
+            entries.add(prefix + PREFIX_WILDCARD);
+        }
+        return entries.toString();
+    }
+}
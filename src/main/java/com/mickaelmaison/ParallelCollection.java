@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mickaelmaison;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Collects the families of a collector in parallel when it has many series. The families are split in contiguous
+ * shards, each shard is collected on a bounded {@link ForkJoinPool} and the results are merged in shard order,
+ * so the output is the same as collecting serially.
+ */
+public class ParallelCollection {
+
+    // Several shards per thread so a shard with expensive gauges doesn't hold back the others
+    private static final int SHARDS_PER_THREAD = 4;
+    // The pools are shared by all the collectors with the same parallelism
+    private static final Map<Integer, ForkJoinPool> POOLS = new HashMap<>();
+
+    private final int parallelism;
+    private final int threshold;
+
+    public ParallelCollection(PrometheusMetricsReporterConfig config) {
+        this(config.collectionParallelism(), config.collectionParallelThreshold());
+    }
+
+    ParallelCollection(int parallelism, int threshold) {
+        this.parallelism = parallelism;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Whether a collector with that many series should be collected in parallel.
+     */
+    public boolean isEnabled(int series) {
+        return parallelism > 1 && series >= threshold;
+    }
+
+    /**
+     * Write the families into separate buffers in parallel, and append them to the buffer in order.
+     */
+    public <T> void write(List<T> families, ExpositionBuffer buffer, BiConsumer<T, ExpositionBuffer> writer) {
+        ForkJoinPool pool = pool(parallelism);
+        long deadline = CollectionDeadline.get();
+        List<ForkJoinTask<ExpositionBuffer>> tasks = new ArrayList<>();
+        try {
+            for (List<T> shard : shards(families)) {
+                tasks.add(pool.submit(() -> {
+                    ExpositionBuffer shardBuffer = ExpositionBuffer.acquire();
+                    // The task can also run on the calling thread, which already has the deadline
+                    long previous = CollectionDeadline.get();
+                    CollectionDeadline.set(deadline);
+                    try {
+                        for (T family : shard) {
+                            writer.accept(family, shardBuffer);
+                        }
+                        return shardBuffer;
+                    } catch (RuntimeException e) {
+                        shardBuffer.release();
+                        throw e;
+                    } finally {
+                        CollectionDeadline.set(previous);
+                    }
+                }));
+            }
+            for (ForkJoinTask<ExpositionBuffer> task : tasks) {
+                task.join().writeTo(buffer);
+            }
+        } finally {
+            for (ForkJoinTask<ExpositionBuffer> task : tasks) {
+                // Buffers of shards still running after a failure are left to the garbage collector
+                if (task.isCompletedNormally()) {
+                    task.join().release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Map the families in parallel, null results are dropped.
+     */
+    public <T, R> List<R> map(List<T> families, Function<T, R> mapper) {
+        return collect(families, (family, results) -> {
+            R result = mapper.apply(family);
+            if (result != null) {
+                results.add(result);
+            }
+        });
+    }
+
+    /**
+     * Collect the families in parallel, each family can add any number of results.
+     */
+    public <T, R> List<R> collect(List<T> families, BiConsumer<T, List<R>> collector) {
+        ForkJoinPool pool = pool(parallelism);
+        long deadline = CollectionDeadline.get();
+        List<ForkJoinTask<List<R>>> tasks = new ArrayList<>();
+        for (List<T> shard : shards(families)) {
+            tasks.add(pool.submit(() -> {
+                List<R> results = new ArrayList<>(shard.size());
+                long previous = CollectionDeadline.get();
+                CollectionDeadline.set(deadline);
+                try {
+                    for (T family : shard) {
+                        collector.accept(family, results);
+                    }
+                } finally {
+                    CollectionDeadline.set(previous);
+                }
+                return results;
+            }));
+        }
+        List<R> results = new ArrayList<>(families.size());
+        for (ForkJoinTask<List<R>> task : tasks) {
+            results.addAll(task.join());
+        }
+        return results;
+    }
+
+    private <T> List<List<T>> shards(List<T> families) {
+        int count = Math.min(families.size(), parallelism * SHARDS_PER_THREAD);
+        List<List<T>> shards = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            shards.add(families.subList(i * families.size() / count, (i + 1) * families.size() / count));
+        }
+        return shards;
+    }
+
+    private static synchronized ForkJoinPool pool(int parallelism) {
+        return POOLS.computeIfAbsent(parallelism, p -> new ForkJoinPool(p, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("prometheus-collector-" + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false));
+    }
+}
@@ -16,23 +16,36 @@
  */
 package com.mickaelmaison;
 
-import io.prometheus.client.exporter.HTTPServer;
+import io.prometheus.client.CollectorRegistry;
 import org.apache.kafka.common.config.AbstractConfig;
 import org.apache.kafka.common.config.ConfigDef;
+import org.apache.kafka.common.config.ConfigException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.BindException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
 import java.util.regex.Pattern;
 
 public class PrometheusMetricsReporterConfig extends AbstractConfig {
 
     private static final Logger LOG = LoggerFactory.getLogger(PrometheusMetricsReporterConfig.class.getName());
 
+    /**
+     * The registry of the collectors not rendered by streaming, shared by the Kafka and Yammer reporters of the JVM.
+     * Scrapes only collect it and not {@link CollectorRegistry#defaultRegistry}, where other libraries also register.
+     */
+    public static final CollectorRegistry COLLECTOR_REGISTRY = new CollectorRegistry();
+    static final JvmCollectors JVM_COLLECTORS = new JvmCollectors(COLLECTOR_REGISTRY);
+
     public static final String CONFIG_PREFIX = "prometheus.metrics.reporter.";
 
     public static final String PORT_CONFIG = CONFIG_PREFIX + "port";
@@ -43,27 +56,580 @@ public class PrometheusMetricsReporterConfig extends AbstractConfig {
     public static final String ALLOWLIST_CONFIG_DEFAULT = ".*";
     public static final String ALLOWLIST_CONFIG_DOC = "A comma separated list of regex Patterns to specify the metrics to collect.";
 
+    public static final String TOTALS_ONLY_CONFIG = CONFIG_PREFIX + "totals.only";
+    public static final boolean TOTALS_ONLY_CONFIG_DEFAULT = false;
+    public static final String TOTALS_ONLY_CONFIG_DOC = "Whether the Kafka metrics computed over Kafka's sample windows, rates and averages, are dropped. " +
+            "Kafka computes them on each read, and the rates can be computed by Prometheus from the cumulative _total metrics.";
+
+    public static final String STREAMING_ENABLED_CONFIG = CONFIG_PREFIX + "streaming.enabled";
+    public static final boolean STREAMING_ENABLED_CONFIG_DEFAULT = true;
+    public static final String STREAMING_ENABLED_CONFIG_DOC = "Whether the Kafka and Yammer metrics are rendered directly in the text format. " +
+            "If false, they are collected through the Prometheus CollectorRegistry instead.";
+
+    public static final String CACHE_TTL_MS_CONFIG = CONFIG_PREFIX + "cache.ttl.ms";
+    public static final long CACHE_TTL_MS_CONFIG_DEFAULT = 0L;
+    public static final String CACHE_TTL_MS_CONFIG_DOC = "How long in milliseconds the rendered metrics are reused for subsequent scrapes. " +
+            "0 disables caching, concurrent scrapes still share a single collection.";
+
+    public static final String PRERENDER_INTERVAL_MS_CONFIG = CONFIG_PREFIX + "prerender.interval.ms";
+    public static final long PRERENDER_INTERVAL_MS_CONFIG_DEFAULT = 0L;
+    public static final String PRERENDER_INTERVAL_MS_CONFIG_DOC = "If positive, the metrics are rendered by a background thread at this interval " +
+            "in milliseconds and scrapes are served the latest rendering. 0 renders the metrics on each scrape.";
+
+    public static final String JVM_COLLECTORS_CONFIG = CONFIG_PREFIX + "jvm.collectors";
+    public static final String JVM_COLLECTORS_CONFIG_DEFAULT = "standard,memory,memory_allocations,buffer_pools,gc,threads,classloading,version";
+    public static final String JVM_COLLECTORS_CONFIG_DOC = "A comma separated list of the JVM collectors exposed with the Kafka metrics, among " +
+            String.join(", ", JvmCollectors.COLLECTORS.keySet()) + ". They are registered by the first reporter selecting them.";
+
+    public static final String JVM_REFRESH_INTERVAL_MS_CONFIG = CONFIG_PREFIX + "jvm.refresh.interval.ms";
+    public static final long JVM_REFRESH_INTERVAL_MS_CONFIG_DEFAULT = 10000L;
+    public static final String JVM_REFRESH_INTERVAL_MS_CONFIG_DOC = "How often in milliseconds the threads, buffer_pools and classloading " +
+            "JVM collectors read their MXBeans on a background thread, scrapes get the last values read. 0 reads them on each scrape.";
+
+    public static final String DEFAULT_REGISTRY_ENABLED_CONFIG = CONFIG_PREFIX + "default.registry.enabled";
+    public static final boolean DEFAULT_REGISTRY_ENABLED_CONFIG_DEFAULT = false;
+    public static final String DEFAULT_REGISTRY_ENABLED_CONFIG_DOC = "Whether the metrics other libraries of the JVM register in the Prometheus " +
+            "CollectorRegistry.defaultRegistry are also exposed. Otherwise only the metrics of the reporters and the JVM collectors are.";
+
+    public static final String CONTEXT_LABELS_ENABLED_CONFIG = CONFIG_PREFIX + "context.labels.enabled";
+    public static final boolean CONTEXT_LABELS_ENABLED_CONFIG_DEFAULT = false;
+    public static final String CONTEXT_LABELS_ENABLED_CONFIG_DOC = "Whether the Kafka metrics of each reporter are labelled with its client.id " +
+            "and the labels of its metrics context, so the series of the clients of a JVM sharing the HTTP server don't collide. " +
+            "Yammer metrics never get these labels.";
+
+    public static final String HTTP_WORKER_THREADS_CONFIG = CONFIG_PREFIX + "http.worker.threads";
+    public static final int HTTP_WORKER_THREADS_CONFIG_DEFAULT = 2;
+    public static final String HTTP_WORKER_THREADS_CONFIG_DOC = "The number of threads handling HTTP requests.";
+
+    public static final String HTTP_VIRTUAL_THREADS_ENABLED_CONFIG = CONFIG_PREFIX + "http.virtual.threads.enabled";
+    public static final boolean HTTP_VIRTUAL_THREADS_ENABLED_CONFIG_DEFAULT = false;
+    public static final String HTTP_VIRTUAL_THREADS_ENABLED_CONFIG_DOC = "Whether HTTP requests are handled by virtual threads instead of a pool of " +
+            HTTP_WORKER_THREADS_CONFIG + " threads. Requires Java 21, ignored on older JVMs.";
+
+    public static final String HTTP_BACKLOG_CONFIG = CONFIG_PREFIX + "http.backlog";
+    public static final int HTTP_BACKLOG_CONFIG_DEFAULT = 50;
+    public static final String HTTP_BACKLOG_CONFIG_DOC = "The maximum number of pending connections on the HTTP socket.";
+
+    public static final String HTTP_MAX_CONNECTIONS_CONFIG = CONFIG_PREFIX + "http.max.connections";
+    public static final int HTTP_MAX_CONNECTIONS_CONFIG_DEFAULT = 100;
+    public static final String HTTP_MAX_CONNECTIONS_CONFIG_DOC = "The maximum number of open HTTP connections, new connections above it are closed.";
+
+    public static final String HTTP_MAX_CONCURRENT_SCRAPES_CONFIG = CONFIG_PREFIX + "http.max.concurrent.scrapes";
+    public static final int HTTP_MAX_CONCURRENT_SCRAPES_CONFIG_DEFAULT = 10;
+    public static final String HTTP_MAX_CONCURRENT_SCRAPES_CONFIG_DOC = "The maximum number of requests handled at the same time, " +
+            "further requests get a 503 response.";
+
+    public static final String HTTP_REQUEST_TIMEOUT_MS_CONFIG = CONFIG_PREFIX + "http.request.timeout.ms";
+    public static final long HTTP_REQUEST_TIMEOUT_MS_CONFIG_DEFAULT = 30000L;
+    public static final String HTTP_REQUEST_TIMEOUT_MS_CONFIG_DOC = "How long in milliseconds an HTTP connection can stay idle, " +
+            "or take to send a request or receive a response, before it is closed.";
+
+    public static final String HTTP_ENDPOINTS_CONFIG = CONFIG_PREFIX + "http.endpoints";
+    public static final String HTTP_ENDPOINTS_CONFIG_DEFAULT = "";
+    public static final String HTTP_ENDPOINTS_CONFIG_DOC = "A comma separated list of <name>=<metrics> entries. Each entry serves the metrics " +
+            "listed, separated by ';', on /metrics/<name>. Metrics are sample names, or prefixes when they end with '*'.";
+
+    public static final String COLLECTION_PARALLELISM_CONFIG = CONFIG_PREFIX + "collection.parallelism";
+    public static final int COLLECTION_PARALLELISM_CONFIG_DEFAULT = 1;
+    public static final String COLLECTION_PARALLELISM_CONFIG_DOC = "The number of threads collecting the Kafka and Yammer metrics of large collectors. " +
+            "1 collects all metrics on the scraping thread.";
+
+    public static final String COLLECTION_PARALLEL_THRESHOLD_CONFIG = CONFIG_PREFIX + "collection.parallel.threshold";
+    public static final int COLLECTION_PARALLEL_THRESHOLD_CONFIG_DEFAULT = 10000;
+    public static final String COLLECTION_PARALLEL_THRESHOLD_CONFIG_DOC = "The minimum number of metrics a collector must have to be collected " +
+            "in parallel, if " + COLLECTION_PARALLELISM_CONFIG + " is above 1.";
+
+    public static final String QUANTILES_CONFIG = CONFIG_PREFIX + "quantiles";
+    public static final String QUANTILES_CONFIG_DEFAULT = "";
+    public static final String QUANTILES_CONFIG_DOC = "A comma separated list of <regex>=<quantiles> entries setting the quantiles exposed " +
+            "for the Yammer histograms and timers whose name match the regex. Quantiles are separated by ';', or 'none' to only expose " +
+            "the count, sum, min and max. The first matching entry is used, other metrics expose the 0.50;0.75;0.95;0.98;0.99;0.999 quantiles.";
+
+    public static final String HISTOGRAMS_CONFIG = CONFIG_PREFIX + "histograms";
+    public static final String HISTOGRAMS_CONFIG_DEFAULT = "";
+    public static final String HISTOGRAMS_CONFIG_DOC = "A comma separated list of <regex>=<buckets> entries. The Yammer histograms and timers " +
+            "whose name match the regex are exposed as Prometheus histograms with these bucket upper bounds, separated by ';', " +
+            "instead of summaries. Bucket counts are estimated from the sample of each metric. The first matching entry is used.";
+
+    public static final String MAX_SERIES_PER_FAMILY_CONFIG = CONFIG_PREFIX + "max.series.per.family";
+    public static final int MAX_SERIES_PER_FAMILY_CONFIG_DEFAULT = Integer.MAX_VALUE;
+    public static final String MAX_SERIES_PER_FAMILY_CONFIG_DOC = "The maximum number of series a metric family of a collector can have. " +
+            "Series registered once the limit is reached are summed into a single series whose labels are set to " +
+            CardinalityLimiter.OVERFLOW + ", except the context labels of Kafka metrics (see " + CONTEXT_LABELS_ENABLED_CONFIG + ") which keep their values.";
+
+    public static final String MAX_SERIES_CONFIG = CONFIG_PREFIX + "max.series";
+    public static final int MAX_SERIES_CONFIG_DEFAULT = Integer.MAX_VALUE;
+    public static final String MAX_SERIES_CONFIG_DOC = "The maximum number of series across all the metric families of a collector. " +
+            "Series registered once the limit is reached are summed into the " + CardinalityLimiter.OVERFLOW + " series of their family.";
+
+    public static final String ROLLUPS_CONFIG = CONFIG_PREFIX + "rollups";
+    public static final String ROLLUPS_CONFIG_DEFAULT = "";
+    public static final String ROLLUPS_CONFIG_DOC = "A comma separated list of <regex>=<function>:<labels> entries. The series of the Kafka " +
+            "metrics and Yammer gauges, counters and meters whose name match the regex are aggregated by these labels, separated by ';', " +
+            "with the sum, min, max or count function. Only the aggregated series are exposed. The first matching entry is used.";
+
+    public static final String REFRESH_TIERS_CONFIG = CONFIG_PREFIX + "refresh.tiers";
+    public static final String REFRESH_TIERS_CONFIG_DEFAULT = "";
+    public static final String REFRESH_TIERS_CONFIG_DOC = "A comma separated list of <regex>=<intervalMs> entries. The Kafka metrics and " +
+            "Yammer gauges whose name match the regex are only evaluated again once their value is older than the interval in milliseconds, " +
+            "scrapes in between are served the cached value. This is meant for metrics that are expensive to compute. " +
+            "The first matching entry is used.";
+
+    public static final String METRIC_TIMEOUT_MS_CONFIG = CONFIG_PREFIX + "metric.timeout.ms";
+    public static final long METRIC_TIMEOUT_MS_CONFIG_DEFAULT = 0L;
+    public static final String METRIC_TIMEOUT_MS_CONFIG_DOC = "How long in milliseconds a slow Kafka metric or Yammer gauge can take to evaluate. " +
+            "If positive, the metrics matching " + CONFIG_PREFIX + "slow.metrics or a refresh tier are evaluated on a separate thread and " +
+            "scrapes wait for them at most this long, before serving their last value or omitting them if they have none. " +
+            "Other metrics are always evaluated on the scraping thread. 0 evaluates all metrics on the scraping thread.";
+
+    public static final String SLOW_METRICS_CONFIG = CONFIG_PREFIX + "slow.metrics";
+    public static final String SLOW_METRICS_CONFIG_DEFAULT = "";
+    public static final String SLOW_METRICS_CONFIG_DOC = "A comma separated list of regex Patterns of the Kafka metrics and Yammer gauges " +
+            "that can be slow to evaluate, for example because they wait on a lock. They are bounded by " + METRIC_TIMEOUT_MS_CONFIG + ".";
+
+    public static final String COLLECTION_DEADLINE_MS_CONFIG = CONFIG_PREFIX + "collection.deadline.ms";
+    public static final long COLLECTION_DEADLINE_MS_CONFIG_DEFAULT = 0L;
+    public static final String COLLECTION_DEADLINE_MS_CONFIG_DOC = "How long in milliseconds collecting the metrics of a scrape can take " +
+            "before it stops waiting for the metrics evaluated on a separate thread, see " + METRIC_TIMEOUT_MS_CONFIG + ". " +
+            "It should be below the Prometheus scrape timeout. 0 only bounds the wait by " + METRIC_TIMEOUT_MS_CONFIG + ".";
+
+    public static final String PUSH_URL_CONFIG = CONFIG_PREFIX + "push.url";
+    public static final String PUSH_URL_CONFIG_DEFAULT = "";
+    public static final String PUSH_URL_CONFIG_DOC = "The URL of a Prometheus remote write endpoint to push the metrics to. " +
+            "If empty, the metrics are only exposed on the HTTP server.";
+
+    public static final String PUSH_INTERVAL_MS_CONFIG = CONFIG_PREFIX + "push.interval.ms";
+    public static final long PUSH_INTERVAL_MS_CONFIG_DEFAULT = 15000L;
+    public static final String PUSH_INTERVAL_MS_CONFIG_DOC = "How often in milliseconds the metrics are pushed.";
+
+    public static final String PUSH_LABELS_CONFIG = CONFIG_PREFIX + "push.labels";
+    public static final String PUSH_LABELS_CONFIG_DEFAULT = "";
+    public static final String PUSH_LABELS_CONFIG_DOC = "A comma separated list of <name>=<value> labels added to all the pushed series, " +
+            "for example to set the job and instance labels a scrape would add.";
+
+    public static final String PUSH_MAX_SERIES_PER_REQUEST_CONFIG = CONFIG_PREFIX + "push.max.series.per.request";
+    public static final int PUSH_MAX_SERIES_PER_REQUEST_CONFIG_DEFAULT = 2000;
+    public static final String PUSH_MAX_SERIES_PER_REQUEST_CONFIG_DOC = "The maximum number of series sent in a remote write request. " +
+            "Larger sets of metrics are split in several requests.";
+
+    public static final String PUSH_RETRIES_CONFIG = CONFIG_PREFIX + "push.retries";
+    public static final int PUSH_RETRIES_CONFIG_DEFAULT = 3;
+    public static final String PUSH_RETRIES_CONFIG_DOC = "How many times a remote write request failing with a network error, " +
+            "a 5xx or a 429 response is retried before its series are dropped.";
+
+    public static final String PUSH_RETRY_BACKOFF_MS_CONFIG = CONFIG_PREFIX + "push.retry.backoff.ms";
+    public static final long PUSH_RETRY_BACKOFF_MS_CONFIG_DEFAULT = 100L;
+    public static final String PUSH_RETRY_BACKOFF_MS_CONFIG_DOC = "How long in milliseconds to wait before the first retry of a remote write request. " +
+            "The backoff doubles with each retry, up to " + PUSH_INTERVAL_MS_CONFIG + ".";
+
+    public static final String PUSH_REQUEST_TIMEOUT_MS_CONFIG = CONFIG_PREFIX + "push.request.timeout.ms";
+    public static final long PUSH_REQUEST_TIMEOUT_MS_CONFIG_DEFAULT = 10000L;
+    public static final String PUSH_REQUEST_TIMEOUT_MS_CONFIG_DOC = "How long in milliseconds to wait to connect to the remote write endpoint, " +
+            "and then for its response.";
+
+    public static final String PUSH_BUFFER_DIR_CONFIG = CONFIG_PREFIX + "push.buffer.dir";
+    public static final String PUSH_BUFFER_DIR_CONFIG_DEFAULT = "";
+    public static final String PUSH_BUFFER_DIR_CONFIG_DOC = "A directory where remote write requests are buffered until they are delivered, " +
+            "so they are replayed in order once the endpoint is available again, including after a restart. " +
+            "If empty, requests still failing after the retries are dropped.";
+
+    public static final String PUSH_BUFFER_MAX_BYTES_CONFIG = CONFIG_PREFIX + "push.buffer.max.bytes";
+    public static final long PUSH_BUFFER_MAX_BYTES_CONFIG_DEFAULT = 256L * 1024 * 1024;
+    public static final String PUSH_BUFFER_MAX_BYTES_CONFIG_DOC = "The maximum size in bytes of the remote write buffer. " +
+            "Once it's reached, the oldest requests are dropped.";
+
+    public static final String PUSH_BUFFER_SEGMENT_BYTES_CONFIG = CONFIG_PREFIX + "push.buffer.segment.bytes";
+    public static final int PUSH_BUFFER_SEGMENT_BYTES_CONFIG_DEFAULT = 16 * 1024 * 1024;
+    public static final String PUSH_BUFFER_SEGMENT_BYTES_CONFIG_DOC = "The size in bytes of the files of the remote write buffer. " +
+            "It must not be larger than " + PUSH_BUFFER_MAX_BYTES_CONFIG + ".";
+
     private static final ConfigDef CONFIG_DEF = new ConfigDef()
             .define(PORT_CONFIG, ConfigDef.Type.INT, PORT_CONFIG_DEFAULT, ConfigDef.Importance.HIGH, PORT_CONFIG_DOC)
-            .define(ALLOWLIST_CONFIG, ConfigDef.Type.LIST, ALLOWLIST_CONFIG_DEFAULT, ConfigDef.Importance.HIGH, ALLOWLIST_CONFIG_DOC);
+            .define(ALLOWLIST_CONFIG, ConfigDef.Type.LIST, ALLOWLIST_CONFIG_DEFAULT, ConfigDef.Importance.HIGH, ALLOWLIST_CONFIG_DOC)
+            .define(TOTALS_ONLY_CONFIG, ConfigDef.Type.BOOLEAN, TOTALS_ONLY_CONFIG_DEFAULT, ConfigDef.Importance.MEDIUM, TOTALS_ONLY_CONFIG_DOC)
+            .define(STREAMING_ENABLED_CONFIG, ConfigDef.Type.BOOLEAN, STREAMING_ENABLED_CONFIG_DEFAULT, ConfigDef.Importance.LOW, STREAMING_ENABLED_CONFIG_DOC)
+            .define(CACHE_TTL_MS_CONFIG, ConfigDef.Type.LONG, CACHE_TTL_MS_CONFIG_DEFAULT, ConfigDef.Range.atLeast(0), ConfigDef.Importance.MEDIUM, CACHE_TTL_MS_CONFIG_DOC)
+            .define(PRERENDER_INTERVAL_MS_CONFIG, ConfigDef.Type.LONG, PRERENDER_INTERVAL_MS_CONFIG_DEFAULT, ConfigDef.Range.atLeast(0), ConfigDef.Importance.MEDIUM, PRERENDER_INTERVAL_MS_CONFIG_DOC)
+            .define(JVM_COLLECTORS_CONFIG, ConfigDef.Type.LIST, JVM_COLLECTORS_CONFIG_DEFAULT,
+                    ConfigDef.ValidList.in(JvmCollectors.COLLECTORS.keySet().toArray(new String[0])), ConfigDef.Importance.MEDIUM, JVM_COLLECTORS_CONFIG_DOC)
+            .define(JVM_REFRESH_INTERVAL_MS_CONFIG, ConfigDef.Type.LONG, JVM_REFRESH_INTERVAL_MS_CONFIG_DEFAULT, ConfigDef.Range.atLeast(0), ConfigDef.Importance.LOW, JVM_REFRESH_INTERVAL_MS_CONFIG_DOC)
+            .define(DEFAULT_REGISTRY_ENABLED_CONFIG, ConfigDef.Type.BOOLEAN, DEFAULT_REGISTRY_ENABLED_CONFIG_DEFAULT, ConfigDef.Importance.LOW, DEFAULT_REGISTRY_ENABLED_CONFIG_DOC)
+            .define(CONTEXT_LABELS_ENABLED_CONFIG, ConfigDef.Type.BOOLEAN, CONTEXT_LABELS_ENABLED_CONFIG_DEFAULT, ConfigDef.Importance.LOW, CONTEXT_LABELS_ENABLED_CONFIG_DOC)
+            .define(HTTP_WORKER_THREADS_CONFIG, ConfigDef.Type.INT, HTTP_WORKER_THREADS_CONFIG_DEFAULT, ConfigDef.Range.atLeast(1), ConfigDef.Importance.LOW, HTTP_WORKER_THREADS_CONFIG_DOC)
+            .define(HTTP_VIRTUAL_THREADS_ENABLED_CONFIG, ConfigDef.Type.BOOLEAN, HTTP_VIRTUAL_THREADS_ENABLED_CONFIG_DEFAULT, ConfigDef.Importance.LOW, HTTP_VIRTUAL_THREADS_ENABLED_CONFIG_DOC)
+            .define(HTTP_BACKLOG_CONFIG, ConfigDef.Type.INT, HTTP_BACKLOG_CONFIG_DEFAULT, ConfigDef.Range.atLeast(1), ConfigDef.Importance.LOW, HTTP_BACKLOG_CONFIG_DOC)
+            .define(HTTP_MAX_CONNECTIONS_CONFIG, ConfigDef.Type.INT, HTTP_MAX_CONNECTIONS_CONFIG_DEFAULT, ConfigDef.Range.atLeast(1), ConfigDef.Importance.LOW, HTTP_MAX_CONNECTIONS_CONFIG_DOC)
+            .define(HTTP_MAX_CONCURRENT_SCRAPES_CONFIG, ConfigDef.Type.INT, HTTP_MAX_CONCURRENT_SCRAPES_CONFIG_DEFAULT, ConfigDef.Range.atLeast(1), ConfigDef.Importance.LOW, HTTP_MAX_CONCURRENT_SCRAPES_CONFIG_DOC)
+            .define(HTTP_REQUEST_TIMEOUT_MS_CONFIG, ConfigDef.Type.LONG, HTTP_REQUEST_TIMEOUT_MS_CONFIG_DEFAULT, ConfigDef.Range.atLeast(1), ConfigDef.Importance.LOW, HTTP_REQUEST_TIMEOUT_MS_CONFIG_DOC)
+            .define(HTTP_ENDPOINTS_CONFIG, ConfigDef.Type.LIST, HTTP_ENDPOINTS_CONFIG_DEFAULT, ConfigDef.Importance.MEDIUM, HTTP_ENDPOINTS_CONFIG_DOC)
+            .define(COLLECTION_PARALLELISM_CONFIG, ConfigDef.Type.INT, COLLECTION_PARALLELISM_CONFIG_DEFAULT, ConfigDef.Range.atLeast(1), ConfigDef.Importance.LOW, COLLECTION_PARALLELISM_CONFIG_DOC)
+            .define(COLLECTION_PARALLEL_THRESHOLD_CONFIG, ConfigDef.Type.INT, COLLECTION_PARALLEL_THRESHOLD_CONFIG_DEFAULT, ConfigDef.Range.atLeast(0), ConfigDef.Importance.LOW, COLLECTION_PARALLEL_THRESHOLD_CONFIG_DOC)
+            .define(QUANTILES_CONFIG, ConfigDef.Type.LIST, QUANTILES_CONFIG_DEFAULT, ConfigDef.Importance.MEDIUM, QUANTILES_CONFIG_DOC)
+            .define(HISTOGRAMS_CONFIG, ConfigDef.Type.LIST, HISTOGRAMS_CONFIG_DEFAULT, ConfigDef.Importance.MEDIUM, HISTOGRAMS_CONFIG_DOC)
+            .define(MAX_SERIES_PER_FAMILY_CONFIG, ConfigDef.Type.INT, MAX_SERIES_PER_FAMILY_CONFIG_DEFAULT, ConfigDef.Range.atLeast(1), ConfigDef.Importance.MEDIUM, MAX_SERIES_PER_FAMILY_CONFIG_DOC)
+            .define(MAX_SERIES_CONFIG, ConfigDef.Type.INT, MAX_SERIES_CONFIG_DEFAULT, ConfigDef.Range.atLeast(1), ConfigDef.Importance.MEDIUM, MAX_SERIES_CONFIG_DOC)
+            .define(ROLLUPS_CONFIG, ConfigDef.Type.LIST, ROLLUPS_CONFIG_DEFAULT, ConfigDef.Importance.MEDIUM, ROLLUPS_CONFIG_DOC)
+            .define(REFRESH_TIERS_CONFIG, ConfigDef.Type.LIST, REFRESH_TIERS_CONFIG_DEFAULT, ConfigDef.Importance.MEDIUM, REFRESH_TIERS_CONFIG_DOC)
+            .define(METRIC_TIMEOUT_MS_CONFIG, ConfigDef.Type.LONG, METRIC_TIMEOUT_MS_CONFIG_DEFAULT, ConfigDef.Range.atLeast(0), ConfigDef.Importance.MEDIUM, METRIC_TIMEOUT_MS_CONFIG_DOC)
+            .define(SLOW_METRICS_CONFIG, ConfigDef.Type.LIST, SLOW_METRICS_CONFIG_DEFAULT, ConfigDef.Importance.MEDIUM, SLOW_METRICS_CONFIG_DOC)
+            .define(COLLECTION_DEADLINE_MS_CONFIG, ConfigDef.Type.LONG, COLLECTION_DEADLINE_MS_CONFIG_DEFAULT, ConfigDef.Range.atLeast(0), ConfigDef.Importance.MEDIUM, COLLECTION_DEADLINE_MS_CONFIG_DOC)
+            .define(PUSH_URL_CONFIG, ConfigDef.Type.STRING, PUSH_URL_CONFIG_DEFAULT, ConfigDef.Importance.MEDIUM, PUSH_URL_CONFIG_DOC)
+            .define(PUSH_INTERVAL_MS_CONFIG, ConfigDef.Type.LONG, PUSH_INTERVAL_MS_CONFIG_DEFAULT, ConfigDef.Range.atLeast(1), ConfigDef.Importance.MEDIUM, PUSH_INTERVAL_MS_CONFIG_DOC)
+            .define(PUSH_LABELS_CONFIG, ConfigDef.Type.LIST, PUSH_LABELS_CONFIG_DEFAULT, ConfigDef.Importance.MEDIUM, PUSH_LABELS_CONFIG_DOC)
+            .define(PUSH_MAX_SERIES_PER_REQUEST_CONFIG, ConfigDef.Type.INT, PUSH_MAX_SERIES_PER_REQUEST_CONFIG_DEFAULT, ConfigDef.Range.atLeast(1), ConfigDef.Importance.LOW, PUSH_MAX_SERIES_PER_REQUEST_CONFIG_DOC)
+            .define(PUSH_RETRIES_CONFIG, ConfigDef.Type.INT, PUSH_RETRIES_CONFIG_DEFAULT, ConfigDef.Range.atLeast(0), ConfigDef.Importance.LOW, PUSH_RETRIES_CONFIG_DOC)
+            .define(PUSH_RETRY_BACKOFF_MS_CONFIG, ConfigDef.Type.LONG, PUSH_RETRY_BACKOFF_MS_CONFIG_DEFAULT, ConfigDef.Range.atLeast(0), ConfigDef.Importance.LOW, PUSH_RETRY_BACKOFF_MS_CONFIG_DOC)
+            .define(PUSH_REQUEST_TIMEOUT_MS_CONFIG, ConfigDef.Type.LONG, PUSH_REQUEST_TIMEOUT_MS_CONFIG_DEFAULT, ConfigDef.Range.atLeast(1), ConfigDef.Importance.LOW, PUSH_REQUEST_TIMEOUT_MS_CONFIG_DOC)
+            .define(PUSH_BUFFER_DIR_CONFIG, ConfigDef.Type.STRING, PUSH_BUFFER_DIR_CONFIG_DEFAULT, ConfigDef.Importance.MEDIUM, PUSH_BUFFER_DIR_CONFIG_DOC)
+            .define(PUSH_BUFFER_MAX_BYTES_CONFIG, ConfigDef.Type.LONG, PUSH_BUFFER_MAX_BYTES_CONFIG_DEFAULT, ConfigDef.Range.atLeast(1024), ConfigDef.Importance.LOW, PUSH_BUFFER_MAX_BYTES_CONFIG_DOC)
+            .define(PUSH_BUFFER_SEGMENT_BYTES_CONFIG, ConfigDef.Type.INT, PUSH_BUFFER_SEGMENT_BYTES_CONFIG_DEFAULT, ConfigDef.Range.atLeast(1024), ConfigDef.Importance.LOW, PUSH_BUFFER_SEGMENT_BYTES_CONFIG_DOC);
 
     private final int port;
     private final Pattern allowlist;
+    private final boolean totalsOnly;
+    private final boolean streamingEnabled;
+    private final long cacheTtlMs;
+    private final long prerenderIntervalMs;
+    private final List<String> jvmCollectors;
+    private final long jvmRefreshIntervalMs;
+    private final boolean defaultRegistryEnabled;
+    private final boolean contextLabelsEnabled;
+    private final int httpWorkerThreads;
+    private final boolean httpVirtualThreadsEnabled;
+    private final int httpBacklog;
+    private final int httpMaxConnections;
+    private final int httpMaxConcurrentScrapes;
+    private final long httpRequestTimeoutMs;
+    private final Map<String, NameSelector> httpEndpoints;
+    private final int collectionParallelism;
+    private final int collectionParallelThreshold;
+    private final Map<Pattern, Quantiles> quantiles;
+    private final Map<Pattern, double[]> histograms;
+    private final int maxSeriesPerFamily;
+    private final int maxSeries;
+    private final Map<Pattern, Rollup.Rule> rollups;
+    private final Map<Pattern, Long> refreshTiers;
+    private final long metricTimeoutMs;
+    // Null if no metric is slow
+    private final Pattern slowMetrics;
+    private final long collectionDeadlineMs;
+    private final String pushUrl;
+    private final long pushIntervalMs;
+    private final Map<String, String> pushLabels;
+    private final int pushMaxSeriesPerRequest;
+    private final int pushRetries;
+    private final long pushRetryBackoffMs;
+    private final long pushRequestTimeoutMs;
+    private final String pushBufferDir;
+    private final long pushBufferMaxBytes;
+    private final int pushBufferSegmentBytes;
 
     public PrometheusMetricsReporterConfig(Map<?, ?> props) {
         super(CONFIG_DEF, props);
         this.port = getInt(PORT_CONFIG);
         this.allowlist = compileAllowlist(getList(ALLOWLIST_CONFIG));
+        this.totalsOnly = getBoolean(TOTALS_ONLY_CONFIG);
+        this.streamingEnabled = getBoolean(STREAMING_ENABLED_CONFIG);
+        this.cacheTtlMs = getLong(CACHE_TTL_MS_CONFIG);
+        this.prerenderIntervalMs = getLong(PRERENDER_INTERVAL_MS_CONFIG);
+        this.jvmCollectors = getList(JVM_COLLECTORS_CONFIG);
+        this.jvmRefreshIntervalMs = getLong(JVM_REFRESH_INTERVAL_MS_CONFIG);
+        this.defaultRegistryEnabled = getBoolean(DEFAULT_REGISTRY_ENABLED_CONFIG);
+        this.contextLabelsEnabled = getBoolean(CONTEXT_LABELS_ENABLED_CONFIG);
+        this.httpWorkerThreads = getInt(HTTP_WORKER_THREADS_CONFIG);
+        this.httpVirtualThreadsEnabled = getBoolean(HTTP_VIRTUAL_THREADS_ENABLED_CONFIG);
+        this.httpBacklog = getInt(HTTP_BACKLOG_CONFIG);
+        this.httpMaxConnections = getInt(HTTP_MAX_CONNECTIONS_CONFIG);
+        this.httpMaxConcurrentScrapes = getInt(HTTP_MAX_CONCURRENT_SCRAPES_CONFIG);
+        this.httpRequestTimeoutMs = getLong(HTTP_REQUEST_TIMEOUT_MS_CONFIG);
+        this.httpEndpoints = parseEndpoints(HTTP_ENDPOINTS_CONFIG, getList(HTTP_ENDPOINTS_CONFIG));
+        this.collectionParallelism = getInt(COLLECTION_PARALLELISM_CONFIG);
+        this.collectionParallelThreshold = getInt(COLLECTION_PARALLEL_THRESHOLD_CONFIG);
+        this.quantiles = parsePatterns(QUANTILES_CONFIG, getList(QUANTILES_CONFIG), Quantiles::parse);
+        this.histograms = parsePatterns(HISTOGRAMS_CONFIG, getList(HISTOGRAMS_CONFIG), HistogramBuckets::parseBounds);
+        this.maxSeriesPerFamily = getInt(MAX_SERIES_PER_FAMILY_CONFIG);
+        this.maxSeries = getInt(MAX_SERIES_CONFIG);
+        this.rollups = parsePatterns(ROLLUPS_CONFIG, getList(ROLLUPS_CONFIG), Rollup.Rule::parse);
+        this.refreshTiers = parsePatterns(REFRESH_TIERS_CONFIG, getList(REFRESH_TIERS_CONFIG), PrometheusMetricsReporterConfig::parseInterval);
+        this.metricTimeoutMs = getLong(METRIC_TIMEOUT_MS_CONFIG);
+        List<String> slowMetrics = getList(SLOW_METRICS_CONFIG);
+        this.slowMetrics = slowMetrics.isEmpty() ? null : compileAllowlist(slowMetrics);
+        this.collectionDeadlineMs = getLong(COLLECTION_DEADLINE_MS_CONFIG);
+        this.pushUrl = getString(PUSH_URL_CONFIG).trim();
+        this.pushIntervalMs = getLong(PUSH_INTERVAL_MS_CONFIG);
+        this.pushLabels = parseLabels(PUSH_LABELS_CONFIG, getList(PUSH_LABELS_CONFIG));
+        this.pushMaxSeriesPerRequest = getInt(PUSH_MAX_SERIES_PER_REQUEST_CONFIG);
+        this.pushRetries = getInt(PUSH_RETRIES_CONFIG);
+        this.pushRetryBackoffMs = getLong(PUSH_RETRY_BACKOFF_MS_CONFIG);
+        this.pushRequestTimeoutMs = getLong(PUSH_REQUEST_TIMEOUT_MS_CONFIG);
+        this.pushBufferDir = getString(PUSH_BUFFER_DIR_CONFIG).trim();
+        this.pushBufferMaxBytes = getLong(PUSH_BUFFER_MAX_BYTES_CONFIG);
+        this.pushBufferSegmentBytes = getInt(PUSH_BUFFER_SEGMENT_BYTES_CONFIG);
+        if (pushBufferSegmentBytes > pushBufferMaxBytes) {
+            throw new ConfigException(PUSH_BUFFER_SEGMENT_BYTES_CONFIG, pushBufferSegmentBytes,
+                    "Must not be larger than " + PUSH_BUFFER_MAX_BYTES_CONFIG);
+        }
     }
 
     public int port() {
         return port;
     }
 
+    public boolean isTotalsOnly() {
+        return totalsOnly;
+    }
+
+    public boolean isStreamingEnabled() {
+        return streamingEnabled;
+    }
+
+    public long cacheTtlMs() {
+        return cacheTtlMs;
+    }
+
+    public long prerenderIntervalMs() {
+        return prerenderIntervalMs;
+    }
+
+    public List<String> jvmCollectors() {
+        return jvmCollectors;
+    }
+
+    public long jvmRefreshIntervalMs() {
+        return jvmRefreshIntervalMs;
+    }
+
+    public boolean isDefaultRegistryEnabled() {
+        return defaultRegistryEnabled;
+    }
+
+    public boolean isContextLabelsEnabled() {
+        return contextLabelsEnabled;
+    }
+
+    public int httpWorkerThreads() {
+        return httpWorkerThreads;
+    }
+
+    public boolean httpVirtualThreadsEnabled() {
+        return httpVirtualThreadsEnabled;
+    }
+
+    public int httpBacklog() {
+        return httpBacklog;
+    }
+
+    public int httpMaxConnections() {
+        return httpMaxConnections;
+    }
+
+    public int httpMaxConcurrentScrapes() {
+        return httpMaxConcurrentScrapes;
+    }
+
+    public long httpRequestTimeoutMs() {
+        return httpRequestTimeoutMs;
+    }
+
+    /**
+     * The metrics served by the named endpoint, or null if there is no endpoint with that name.
+     */
+    public NameSelector httpEndpoint(String name) {
+        return httpEndpoints.get(name);
+    }
+
+    public int collectionParallelism() {
+        return collectionParallelism;
+    }
+
+    public int collectionParallelThreshold() {
+        return collectionParallelThreshold;
+    }
+
+    public int maxSeriesPerFamily() {
+        return maxSeriesPerFamily;
+    }
+
+    public int maxSeries() {
+        return maxSeries;
+    }
+
+    public long metricTimeoutMs() {
+        return metricTimeoutMs;
+    }
+
+    public long collectionDeadlineMs() {
+        return collectionDeadlineMs;
+    }
+
+    public boolean isPushEnabled() {
+        return !pushUrl.isEmpty();
+    }
+
+    public String pushUrl() {
+        return pushUrl;
+    }
+
+    public long pushIntervalMs() {
+        return pushIntervalMs;
+    }
+
+    public Map<String, String> pushLabels() {
+        return pushLabels;
+    }
+
+    public int pushMaxSeriesPerRequest() {
+        return pushMaxSeriesPerRequest;
+    }
+
+    public int pushRetries() {
+        return pushRetries;
+    }
+
+    public long pushRetryBackoffMs() {
+        return pushRetryBackoffMs;
+    }
+
+    public long pushRequestTimeoutMs() {
+        return pushRequestTimeoutMs;
+    }
+
+    public boolean isPushBufferEnabled() {
+        return !pushBufferDir.isEmpty();
+    }
+
+    public String pushBufferDir() {
+        return pushBufferDir;
+    }
+
+    public long pushBufferMaxBytes() {
+        return pushBufferMaxBytes;
+    }
+
+    public int pushBufferSegmentBytes() {
+        return pushBufferSegmentBytes;
+    }
+
+    /**
+     * The quantiles to expose for a Yammer histogram or timer.
+     */
+    public Quantiles quantiles(String name) {
+        Quantiles result = match(quantiles, name);
+        return result != null ? result : Quantiles.DEFAULT;
+    }
+
+    /**
+     * The bucket upper bounds of a Yammer histogram or timer exposed as a Prometheus histogram,
+     * or null if it's exposed as a summary.
+     */
+    public double[] histogramBuckets(String name) {
+        return match(histograms, name);
+    }
+
+    /**
+     * The aggregation of the series of a metric, or null if its series are exposed as is.
+     */
+    public Rollup.Rule rollup(String name) {
+        return match(rollups, name);
+    }
+
+    /**
+     * How long in milliseconds the value of a metric is cached, or 0 if it's evaluated on every scrape.
+     */
+    public long refreshIntervalMs(String name) {
+        Long result = match(refreshTiers, name);
+        return result != null ? result : 0L;
+    }
+
+    /**
+     * Whether a metric can be slow to evaluate, so it's evaluated on a separate thread if metrics have a timeout.
+     */
+    public boolean isSlow(String name) {
+        return slowMetrics != null && slowMetrics.matcher(name).matches();
+    }
+
+    /**
+     * The cached value of a metric, or null if it's evaluated on every scrape on the scraping thread.
+     */
+    public CachedValue cachedValue(String name, Supplier<Object> metric) {
+        long intervalMs = refreshIntervalMs(name);
+        if (intervalMs == 0 && (metricTimeoutMs == 0 || !isSlow(name))) {
+            return null;
+        }
+        // Cheap metrics are not worth a thread handoff on each scrape, only slow and tiered ones are bounded by the timeout
+        return new CachedValue(name, metric, intervalMs, metricTimeoutMs);
+    }
+
+    private static <T> T match(Map<Pattern, T> patterns, String name) {
+        for (Map.Entry<Pattern, T> entry : patterns.entrySet()) {
+            if (entry.getKey().matcher(name).matches()) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
     public boolean isAllowed(String name) {
         return allowlist.matcher(name).matches();
     }
 
+    private static <T> Map<Pattern, T> parsePatterns(String config, List<String> entries, BiFunction<String, String, T> parser) {
+        Map<Pattern, T> patterns = new LinkedHashMap<>();
+        for (String entry : entries) {
+            int idx = entry.lastIndexOf('=');
+            if (idx < 0) {
+                throw new ConfigException(config, entry, "Entries must be <regex>=<value>");
+            }
+            patterns.put(Pattern.compile(entry.substring(0, idx).trim()), parser.apply(config, entry.substring(idx + 1)));
+        }
+        return patterns;
+    }
+
+    private static Long parseInterval(String config, String value) {
+        try {
+            long intervalMs = Long.parseLong(value.trim());
+            if (intervalMs > 0) {
+                return intervalMs;
+            }
+        } catch (NumberFormatException nfe) {
+            // handled below
+        }
+        throw new ConfigException(config, value, "Intervals must be a positive number of milliseconds");
+    }
+
+    private static Map<String, String> parseLabels(String config, List<String> entries) {
+        Map<String, String> labels = new LinkedHashMap<>();
+        for (String entry : entries) {
+            int idx = entry.indexOf('=');
+            if (idx <= 0) {
+                throw new ConfigException(config, entry, "Labels must be <name>=<value>");
+            }
+            labels.put(entry.substring(0, idx).trim(), entry.substring(idx + 1).trim());
+        }
+        return Collections.unmodifiableMap(labels);
+    }
+
+    private static Map<String, NameSelector> parseEndpoints(String config, List<String> entries) {
+        Map<String, NameSelector> endpoints = new LinkedHashMap<>();
+        for (String entry : entries) {
+            int idx = entry.indexOf('=');
+            if (idx <= 0) {
+                throw new ConfigException(config, entry, "Endpoints must be <name>=<metrics>");
+            }
+            List<String> metrics = new ArrayList<>();
+            for (String metric : entry.substring(idx + 1).split(";")) {
+                if (!metric.trim().isEmpty()) {
+                    metrics.add(metric.trim());
+                }
+            }
+            if (metrics.isEmpty()) {
+                throw new ConfigException(config, entry, "Endpoints must have at least one metric");
+            }
+            endpoints.put(entry.substring(0, idx).trim(), new NameSelector(metrics));
+        }
+        return Collections.unmodifiableMap(endpoints);
+    }
+
     private Pattern compileAllowlist(List<String> allowlist) {
         String joined = String.join("|", allowlist);
         return Pattern.compile(joined);
@@ -73,20 +639,90 @@ public class PrometheusMetricsReporterConfig extends AbstractConfig {
     public String toString() {
         return "PrometheusMetricsReporterConfig{" +
                 "allowlist=" + allowlist +
+                ", totalsOnly=" + totalsOnly +
                 ", port=" + port +
+                ", streamingEnabled=" + streamingEnabled +
+                ", cacheTtlMs=" + cacheTtlMs +
+                ", prerenderIntervalMs=" + prerenderIntervalMs +
+                ", jvmCollectors=" + jvmCollectors +
+                ", jvmRefreshIntervalMs=" + jvmRefreshIntervalMs +
+                ", defaultRegistryEnabled=" + defaultRegistryEnabled +
+                ", contextLabelsEnabled=" + contextLabelsEnabled +
+                ", httpWorkerThreads=" + httpWorkerThreads +
+                ", httpVirtualThreadsEnabled=" + httpVirtualThreadsEnabled +
+                ", httpBacklog=" + httpBacklog +
+                ", httpMaxConnections=" + httpMaxConnections +
+                ", httpMaxConcurrentScrapes=" + httpMaxConcurrentScrapes +
+                ", httpRequestTimeoutMs=" + httpRequestTimeoutMs +
+                ", httpEndpoints=" + httpEndpoints +
+                ", collectionParallelism=" + collectionParallelism +
+                ", collectionParallelThreshold=" + collectionParallelThreshold +
+                ", quantiles=" + quantiles +
+                ", histograms=" + getList(HISTOGRAMS_CONFIG) +
+                ", maxSeriesPerFamily=" + maxSeriesPerFamily +
+                ", maxSeries=" + maxSeries +
+                ", rollups=" + rollups +
+                ", refreshTiers=" + refreshTiers +
+                ", metricTimeoutMs=" + metricTimeoutMs +
+                ", slowMetrics=" + slowMetrics +
+                ", collectionDeadlineMs=" + collectionDeadlineMs +
+                ", pushUrl=" + pushUrl +
+                ", pushIntervalMs=" + pushIntervalMs +
+                ", pushLabels=" + pushLabels +
+                ", pushMaxSeriesPerRequest=" + pushMaxSeriesPerRequest +
+                ", pushRetries=" + pushRetries +
+                ", pushRetryBackoffMs=" + pushRetryBackoffMs +
+                ", pushRequestTimeoutMs=" + pushRequestTimeoutMs +
+                ", pushBufferDir=" + pushBufferDir +
+                ", pushBufferMaxBytes=" + pushBufferMaxBytes +
+                ", pushBufferSegmentBytes=" + pushBufferSegmentBytes +
                 '}';
     }
 
-    public synchronized Optional<HTTPServer> startHttpServer() {
+    public void register(StreamingCollector collector) {
+        if (streamingEnabled) {
+            StreamingCollectorRegistry.defaultRegistry.register(collector);
+        } else {
+            COLLECTOR_REGISTRY.register(collector);
+        }
+    }
+
+    public void unregister(StreamingCollector collector) {
+        if (streamingEnabled) {
+            StreamingCollectorRegistry.defaultRegistry.unregister(collector);
+        } else {
+            COLLECTOR_REGISTRY.unregister(collector);
+        }
+    }
+
+    public void registerJvmCollectors() {
+        JVM_COLLECTORS.register(jvmCollectors, jvmRefreshIntervalMs, defaultRegistryEnabled);
+    }
+
+    /**
+     * Start pushing the metrics if enabled. This is done by {@link SharedEndpoint}, so only one pusher runs in the JVM.
+     */
+    public Optional<RemoteWritePusher> startPusher() {
+        if (!isPushEnabled()) {
+            return Optional.empty();
+        }
+        Optional<RemoteWritePusher> pusher = RemoteWritePusher.start(this, StreamingCollectorRegistry.defaultRegistry, COLLECTOR_REGISTRY);
+        LOG.info(pusher.isPresent() ? "Pushing metrics to " + pushUrl : "Metrics are already pushed");
+        return pusher;
+    }
+
+    /**
+     * Start the HTTP server. This is done by {@link SharedEndpoint}, so only one server runs in the JVM.
+     */
+    public Optional<MetricsHttpServer> startHttpServer() {
         // TODO if port is -1, don't start the server
-        // TODO the HTTPServer instance is never closed
         try {
-            HTTPServer httpServer = new HTTPServer(port, true);
+            MetricsHttpServer httpServer = new MetricsHttpServer(this, StreamingCollectorRegistry.defaultRegistry, COLLECTOR_REGISTRY);
             LOG.info("HTTP server started on port " + port);
-            new Exception().printStackTrace();
             return Optional.of(httpServer);
         } catch (BindException be) {
-            LOG.info("HTTP server already started");
+            // For example used by a reporter loaded by another class loader
+            LOG.info("HTTP server not started as port " + port + " is already in use");
             return Optional.empty();
         } catch (IOException ioe) {
             LOG.error("Failed starting HTTP server", ioe);
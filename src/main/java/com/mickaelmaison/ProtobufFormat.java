@@ -0,0 +1,446 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mickaelmaison;
+
+import io.prometheus.client.Collector;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The delimited protobuf exposition format: a sequence of {@code io.prometheus.client.MetricFamily} messages,
+ * each prefixed by its length. Only a handful of fields of metrics.proto are needed so messages are encoded
+ * by hand instead of depending on protobuf.
+ * <p>
+ * Family names are the ones of the {@code # TYPE} lines of {@link io.prometheus.client.exporter.common.TextFormat#write004},
+ * so all formats expose the same series.
+ */
+public class ProtobufFormat {
+
+    public static final String CONTENT_TYPE = "application/vnd.google.protobuf; proto=io.prometheus.client.MetricFamily; encoding=delimited";
+
+    private static final int VARINT = 0;
+    private static final int FIXED64 = 1;
+    private static final int LENGTH_DELIMITED = 2;
+
+    // MetricFamily
+    private static final int FAMILY_NAME = tag(1, LENGTH_DELIMITED);
+    private static final int FAMILY_HELP = tag(2, LENGTH_DELIMITED);
+    private static final int FAMILY_TYPE = tag(3, VARINT);
+    private static final int FAMILY_METRIC = tag(4, LENGTH_DELIMITED);
+    // Metric
+    private static final int METRIC_LABEL = tag(1, LENGTH_DELIMITED);
+    private static final int METRIC_GAUGE = tag(2, LENGTH_DELIMITED);
+    private static final int METRIC_COUNTER = tag(3, LENGTH_DELIMITED);
+    private static final int METRIC_SUMMARY = tag(4, LENGTH_DELIMITED);
+    private static final int METRIC_UNTYPED = tag(5, LENGTH_DELIMITED);
+    private static final int METRIC_TIMESTAMP_MS = tag(6, VARINT);
+    private static final int METRIC_HISTOGRAM = tag(7, LENGTH_DELIMITED);
+    // LabelPair
+    private static final int LABEL_NAME = tag(1, LENGTH_DELIMITED);
+    private static final int LABEL_VALUE = tag(2, LENGTH_DELIMITED);
+    // Gauge, Counter and Untyped
+    private static final int VALUE = tag(1, FIXED64);
+    // Summary and Histogram
+    private static final int SAMPLE_COUNT = tag(1, VARINT);
+    private static final int SAMPLE_SUM = tag(2, FIXED64);
+    private static final int SUMMARY_QUANTILE = tag(3, LENGTH_DELIMITED);
+    private static final int HISTOGRAM_BUCKET = tag(3, LENGTH_DELIMITED);
+    // Quantile
+    private static final int QUANTILE_QUANTILE = tag(1, FIXED64);
+    private static final int QUANTILE_VALUE = tag(2, FIXED64);
+    // Bucket
+    private static final int BUCKET_CUMULATIVE_COUNT = tag(1, VARINT);
+    private static final int BUCKET_UPPER_BOUND = tag(2, FIXED64);
+
+    // Size of a fixed64 field with its tag
+    private static final int FIXED64_FIELD_SIZE = 9;
+    private static final int QUANTILE_SIZE = 2 * FIXED64_FIELD_SIZE;
+
+    private static int tag(int field, int wireType) {
+        return field << 3 | wireType;
+    }
+
+    /**
+     * The name, help and type fields of a metric family. The family is empty until metrics are written
+     * between {@link #startFamily} and {@link #endFamily}.
+     */
+    static byte[] familyHeader(String name, Collector.Type type, String help) {
+        // Normalize the name like MetricFamilySamples does for counters
+        Collector.MetricFamilySamples family = new Collector.MetricFamilySamples(name, type, help, Collections.emptyList());
+        return familyHeader(family);
+    }
+
+    private static byte[] familyHeader(Collector.MetricFamilySamples family) {
+        ExpositionBuffer buffer = new ExpositionBuffer(128);
+        writeString(buffer, FAMILY_NAME, exposedName(family));
+        writeString(buffer, FAMILY_HELP, family.help);
+        buffer.write(FAMILY_TYPE);
+        buffer.writeVarint(metricType(family.type));
+        return buffer.toByteArray();
+    }
+
+    /**
+     * The label fields of a metric.
+     */
+    static byte[] labels(List<String> labelNames, List<String> labelValues) {
+        ExpositionBuffer buffer = new ExpositionBuffer(128);
+        for (int i = 0; i < labelNames.size(); i++) {
+            byte[] name = labelNames.get(i).getBytes(StandardCharsets.UTF_8);
+            byte[] value = labelValues.get(i).getBytes(StandardCharsets.UTF_8);
+            buffer.write(METRIC_LABEL);
+            buffer.writeVarint(1 + ExpositionBuffer.varintSize(name.length) + name.length
+                    + 1 + ExpositionBuffer.varintSize(value.length) + value.length);
+            buffer.write(LABEL_NAME);
+            buffer.writeVarint(name.length);
+            buffer.write(name);
+            buffer.write(LABEL_VALUE);
+            buffer.writeVarint(value.length);
+            buffer.write(value);
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Start a metric family, returns the position to pass to {@link #endFamily}.
+     */
+    static int startFamily(ExpositionBuffer buffer, byte[] header) {
+        int start = buffer.size();
+        buffer.write(header);
+        return start;
+    }
+
+    /**
+     * Prefix the family with its length, or drop it if no metrics were written.
+     */
+    static void endFamily(ExpositionBuffer buffer, int start, byte[] header) {
+        if (buffer.size() == start + header.length) {
+            buffer.truncate(start);
+        } else {
+            buffer.insertVarint(start, buffer.size() - start);
+        }
+    }
+
+    /**
+     * Write a gauge, counter or untyped metric depending on the type of its family.
+     */
+    static void writeValue(ExpositionBuffer buffer, Collector.Type type, byte[] labels, double value) {
+        buffer.write(FAMILY_METRIC);
+        buffer.writeVarint(labels.length + 2 + FIXED64_FIELD_SIZE);
+        buffer.write(labels);
+        buffer.write(valueField(type));
+        buffer.write(FIXED64_FIELD_SIZE);
+        buffer.write(VALUE);
+        buffer.writeFixed64(value);
+    }
+
+    /**
+     * Start a summary metric, it must be followed by exactly {@code quantiles} calls to {@link #writeQuantile}.
+     */
+    static void startSummary(ExpositionBuffer buffer, byte[] labels, long count, double sum, int quantiles) {
+        startSummary(buffer, labels, count, sum, quantiles, null);
+    }
+
+    private static void startSummary(ExpositionBuffer buffer, byte[] labels, long count, Double sum, int quantiles, Long timestampMs) {
+        int summarySize = 1 + ExpositionBuffer.varintSize(count)
+                + (sum != null ? FIXED64_FIELD_SIZE : 0)
+                + quantiles * (2 + QUANTILE_SIZE);
+        buffer.write(FAMILY_METRIC);
+        buffer.writeVarint(labels.length + 1 + ExpositionBuffer.varintSize(summarySize) + summarySize + timestampSize(timestampMs));
+        buffer.write(labels);
+        buffer.write(METRIC_SUMMARY);
+        buffer.writeVarint(summarySize);
+        buffer.write(SAMPLE_COUNT);
+        buffer.writeVarint(count);
+        if (sum != null) {
+            buffer.write(SAMPLE_SUM);
+            buffer.writeFixed64(sum);
+        }
+    }
+
+    /**
+     * Write a histogram metric from the count of each bucket, the last count being the +Inf bucket.
+     */
+    static void writeHistogram(ExpositionBuffer buffer, byte[] labels, long count, double sum, double[] bounds, long[] counts) {
+        int histogramSize = 1 + ExpositionBuffer.varintSize(count) + FIXED64_FIELD_SIZE;
+        long cumulative = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            cumulative += counts[i];
+            int bucketSize = bucketSize(cumulative);
+            histogramSize += 1 + ExpositionBuffer.varintSize(bucketSize) + bucketSize;
+        }
+        buffer.write(FAMILY_METRIC);
+        buffer.writeVarint(labels.length + 1 + ExpositionBuffer.varintSize(histogramSize) + histogramSize);
+        buffer.write(labels);
+        buffer.write(METRIC_HISTOGRAM);
+        buffer.writeVarint(histogramSize);
+        buffer.write(SAMPLE_COUNT);
+        buffer.writeVarint(count);
+        buffer.write(SAMPLE_SUM);
+        buffer.writeFixed64(sum);
+        cumulative = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            cumulative += counts[i];
+            buffer.write(HISTOGRAM_BUCKET);
+            buffer.writeVarint(bucketSize(cumulative));
+            buffer.write(BUCKET_CUMULATIVE_COUNT);
+            buffer.writeVarint(cumulative);
+            buffer.write(BUCKET_UPPER_BOUND);
+            buffer.writeFixed64(bounds[i]);
+        }
+    }
+
+    static void writeQuantile(ExpositionBuffer buffer, double quantile, double value) {
+        buffer.write(SUMMARY_QUANTILE);
+        buffer.write(QUANTILE_SIZE);
+        buffer.write(QUANTILE_QUANTILE);
+        buffer.writeFixed64(quantile);
+        buffer.write(QUANTILE_VALUE);
+        buffer.writeFixed64(value);
+    }
+
+    /**
+     * Write metric families, like {@link io.prometheus.client.exporter.common.TextFormat#write004} does for the text format.
+     */
+    public static void write(ExpositionBuffer buffer, Enumeration<Collector.MetricFamilySamples> mfs) {
+        while (mfs.hasMoreElements()) {
+            Collector.MetricFamilySamples family = mfs.nextElement();
+            byte[] header = familyHeader(family);
+            int start = startFamily(buffer, header);
+            switch (family.type) {
+                case SUMMARY:
+                    writeSummaries(buffer, family);
+                    break;
+                case HISTOGRAM:
+                case GAUGE_HISTOGRAM:
+                    writeHistograms(buffer, family);
+                    break;
+                default:
+                    String name = exposedName(family);
+                    for (Collector.MetricFamilySamples.Sample sample : family.samples) {
+                        // Skip the OpenMetrics specific _created samples
+                        if (family.type != Collector.Type.COUNTER || sample.name.equals(name)) {
+                            writeValue(buffer, family.type, labels(sample.labelNames, sample.labelValues), sample.value, sample.timestampMs);
+                        }
+                    }
+            }
+            endFamily(buffer, start, header);
+        }
+    }
+
+    private static void writeValue(ExpositionBuffer buffer, Collector.Type type, byte[] labels, double value, Long timestampMs) {
+        if (timestampMs == null) {
+            writeValue(buffer, type, labels, value);
+            return;
+        }
+        buffer.write(FAMILY_METRIC);
+        buffer.writeVarint(labels.length + 2 + FIXED64_FIELD_SIZE + timestampSize(timestampMs));
+        buffer.write(labels);
+        buffer.write(valueField(type));
+        buffer.write(FIXED64_FIELD_SIZE);
+        buffer.write(VALUE);
+        buffer.writeFixed64(value);
+        writeTimestamp(buffer, timestampMs);
+    }
+
+    private static void writeSummaries(ExpositionBuffer buffer, Collector.MetricFamilySamples family) {
+        for (Series series : group(family, "quantile").values()) {
+            startSummary(buffer, series.labels(), (long) series.count, series.sum, series.bounds.size(), series.timestampMs);
+            for (int i = 0; i < series.bounds.size(); i++) {
+                writeQuantile(buffer, series.bounds.get(i), series.values.get(i));
+            }
+            writeTimestamp(buffer, series.timestampMs);
+        }
+    }
+
+    private static void writeHistograms(ExpositionBuffer buffer, Collector.MetricFamilySamples family) {
+        for (Series series : group(family, "le").values()) {
+            int histogramSize = 1 + ExpositionBuffer.varintSize((long) series.count)
+                    + (series.sum != null ? FIXED64_FIELD_SIZE : 0);
+            for (int i = 0; i < series.bounds.size(); i++) {
+                int bucketSize = bucketSize(series.values.get(i));
+                histogramSize += 1 + ExpositionBuffer.varintSize(bucketSize) + bucketSize;
+            }
+            byte[] labels = series.labels();
+            buffer.write(FAMILY_METRIC);
+            buffer.writeVarint(labels.length + 1 + ExpositionBuffer.varintSize(histogramSize) + histogramSize + timestampSize(series.timestampMs));
+            buffer.write(labels);
+            buffer.write(METRIC_HISTOGRAM);
+            buffer.writeVarint(histogramSize);
+            buffer.write(SAMPLE_COUNT);
+            buffer.writeVarint((long) series.count);
+            if (series.sum != null) {
+                buffer.write(SAMPLE_SUM);
+                buffer.writeFixed64(series.sum);
+            }
+            for (int i = 0; i < series.bounds.size(); i++) {
+                buffer.write(HISTOGRAM_BUCKET);
+                buffer.writeVarint(bucketSize(series.values.get(i)));
+                buffer.write(BUCKET_CUMULATIVE_COUNT);
+                buffer.writeVarint(series.values.get(i).longValue());
+                buffer.write(BUCKET_UPPER_BOUND);
+                buffer.writeFixed64(series.bounds.get(i));
+            }
+            writeTimestamp(buffer, series.timestampMs);
+        }
+    }
+
+    private static int bucketSize(double cumulativeCount) {
+        return 1 + ExpositionBuffer.varintSize((long) cumulativeCount) + FIXED64_FIELD_SIZE;
+    }
+
+    /**
+     * Group the samples of a summary or histogram by labels, ignoring the quantile or le label.
+     */
+    private static Map<List<String>, Series> group(Collector.MetricFamilySamples family, String boundLabel) {
+        boolean gauge = family.type == Collector.Type.GAUGE_HISTOGRAM;
+        String countName = family.name + (gauge ? "_gcount" : "_count");
+        String sumName = family.name + (gauge ? "_gsum" : "_sum");
+        String boundName = family.type == Collector.Type.SUMMARY ? family.name : family.name + "_bucket";
+
+        Map<List<String>, Series> series = new LinkedHashMap<>();
+        for (Collector.MetricFamilySamples.Sample sample : family.samples) {
+            List<String> labelNames = new ArrayList<>(sample.labelNames);
+            List<String> labelValues = new ArrayList<>(sample.labelValues);
+            int boundIndex = labelNames.indexOf(boundLabel);
+            String bound = null;
+            if (boundIndex >= 0) {
+                labelNames.remove(boundIndex);
+                bound = labelValues.remove(boundIndex);
+            }
+            List<String> key = new ArrayList<>(labelNames);
+            key.addAll(labelValues);
+            Series s = series.computeIfAbsent(key, k -> new Series(labelNames, labelValues));
+            if (sample.timestampMs != null) {
+                s.timestampMs = sample.timestampMs;
+            }
+            if (sample.name.equals(countName)) {
+                s.count = sample.value;
+            } else if (sample.name.equals(sumName)) {
+                s.sum = sample.value;
+            } else if (sample.name.equals(boundName) && bound != null) {
+                double upperBound = parseDouble(bound);
+                // The +Inf bucket is implied by the count
+                if (upperBound != Double.POSITIVE_INFINITY) {
+                    s.bounds.add(upperBound);
+                    s.values.add(sample.value);
+                }
+            }
+        }
+        return series;
+    }
+
+    private static double parseDouble(String value) {
+        switch (value) {
+            case "+Inf":
+                return Double.POSITIVE_INFINITY;
+            case "-Inf":
+                return Double.NEGATIVE_INFINITY;
+            default:
+                return Double.parseDouble(value);
+        }
+    }
+
+    private static void writeTimestamp(ExpositionBuffer buffer, Long timestampMs) {
+        if (timestampMs != null) {
+            buffer.write(METRIC_TIMESTAMP_MS);
+            buffer.writeVarint(timestampMs);
+        }
+    }
+
+    private static int timestampSize(Long timestampMs) {
+        return timestampMs == null ? 0 : 1 + ExpositionBuffer.varintSize(timestampMs);
+    }
+
+    private static void writeString(ExpositionBuffer buffer, int tag, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer.write(tag);
+        buffer.writeVarint(bytes.length);
+        buffer.write(bytes);
+    }
+
+    private static String exposedName(Collector.MetricFamilySamples family) {
+        switch (family.type) {
+            case COUNTER:
+                return family.name + "_total";
+            case INFO:
+                return family.name + "_info";
+            default:
+                return family.name;
+        }
+    }
+
+    private static int metricType(Collector.Type type) {
+        switch (type) {
+            case COUNTER:
+                return 0;
+            case GAUGE:
+            case INFO:
+            case STATE_SET:
+                return 1;
+            case SUMMARY:
+                return 2;
+            case HISTOGRAM:
+                return 4;
+            case GAUGE_HISTOGRAM:
+                return 5;
+            default:
+                return 3;
+        }
+    }
+
+    private static int valueField(Collector.Type type) {
+        switch (type) {
+            case COUNTER:
+                return METRIC_COUNTER;
+            case GAUGE:
+            case INFO:
+            case STATE_SET:
+                return METRIC_GAUGE;
+            default:
+                return METRIC_UNTYPED;
+        }
+    }
+
+    /**
+     * The samples of one summary or histogram.
+     */
+    private static final class Series {
+
+        final List<String> labelNames;
+        final List<String> labelValues;
+        final List<Double> bounds = new ArrayList<>();
+        final List<Double> values = new ArrayList<>();
+        double count;
+        Double sum;
+        Long timestampMs;
+
+        Series(List<String> labelNames, List<String> labelValues) {
+            this.labelNames = labelNames;
+            this.labelValues = labelValues;
+        }
+
+        byte[] labels() {
+            return ProtobufFormat.labels(labelNames, labelValues);
+        }
+    }
+}
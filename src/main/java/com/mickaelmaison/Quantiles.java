@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mickaelmaison;
+
+import org.apache.kafka.common.config.ConfigException;
+
+/**
+ * The quantiles exposed for a Yammer histogram or timer, with the value of their quantile label.
+ */
+public class Quantiles {
+
+    public static final Quantiles DEFAULT = new Quantiles(new String[] {"0.50", "0.75", "0.95", "0.98", "0.99", "0.999"});
+    public static final Quantiles NONE = new Quantiles(new String[0]);
+
+    final String[] labels;
+    final double[] values;
+
+    private Quantiles(String[] labels) {
+        this.labels = labels;
+        this.values = new double[labels.length];
+        for (int i = 0; i < labels.length; i++) {
+            values[i] = Double.parseDouble(labels[i]);
+        }
+    }
+
+    public int size() {
+        return values.length;
+    }
+
+    @Override
+    public String toString() {
+        return values.length == 0 ? "none" : String.join(";", labels);
+    }
+
+    /**
+     * Parse a list of quantiles separated by ';', or "none".
+     * The quantiles are kept as written for the quantile label.
+     */
+    public static Quantiles parse(String config, String quantiles) {
+        if (quantiles.trim().equalsIgnoreCase("none")) {
+            return NONE;
+        }
+        String[] labels = quantiles.split(";");
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = labels[i].trim();
+            double value;
+            try {
+                value = Double.parseDouble(labels[i]);
+            } catch (NumberFormatException nfe) {
+                throw new ConfigException(config, quantiles, "Invalid quantile " + labels[i]);
+            }
+            if (!(value >= 0 && value <= 1)) {
+                throw new ConfigException(config, quantiles, "Quantiles must be between 0 and 1");
+            }
+        }
+        return new Quantiles(labels);
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mickaelmaison;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * On-disk buffer of the remote write requests, so samples collected while the endpoint is unavailable are
+ * neither dropped nor kept on heap.
+ * <p>
+ * Requests are appended to memory-mapped segment files of a fixed size, and read back in order. The position of
+ * the oldest request not yet delivered is saved in a checkpoint file, so delivery resumes from there after a restart.
+ * When the segments would exceed the size cap, the oldest ones are deleted, delivered or not.
+ * <p>
+ * This is only used by the pusher thread, so it's not thread safe.
+ */
+public class RemoteWriteBuffer implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RemoteWriteBuffer.class.getName());
+
+    static final String SEGMENT_SUFFIX = ".segment";
+    static final String CHECKPOINT_FILE = "checkpoint";
+    // Each record is its length, the number of series it contains and the request body
+    private static final int RECORD_HEADER = 8;
+
+    /**
+     * A buffered request.
+     */
+    public static final class Record {
+
+        final byte[] body;
+        final int series;
+
+        Record(byte[] body, int series) {
+            this.body = body;
+            this.series = series;
+        }
+    }
+
+    private final Path dir;
+    private final long maxBytes;
+    private final int segmentBytes;
+    // From the oldest to the one being appended to
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private long totalBytes;
+    // Position of the oldest record not delivered, in the first segment
+    private int readPosition;
+
+    public RemoteWriteBuffer(Path dir, long maxBytes, int segmentBytes) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(dir);
+
+        long checkpointSegment = -1;
+        Path checkpoint = dir.resolve(CHECKPOINT_FILE);
+        if (Files.exists(checkpoint)) {
+            String[] parts = new String(Files.readAllBytes(checkpoint), StandardCharsets.US_ASCII).trim().split(" ");
+            checkpointSegment = Long.parseLong(parts[0]);
+            readPosition = Integer.parseInt(parts[1]);
+        }
+        for (long id : segmentIds(dir)) {
+            Path path = segmentPath(id);
+            if (id < checkpointSegment) {
+                // Fully delivered before the restart
+                Files.delete(path);
+            } else {
+                segments.addLast(new Segment(id, path, Files.size(path)));
+                totalBytes += Files.size(path);
+            }
+        }
+        if (segments.isEmpty() || segments.peekFirst().id != checkpointSegment) {
+            // The checkpointed segment was evicted
+            readPosition = 0;
+        }
+        if (segments.isEmpty()) {
+            addSegment(checkpointSegment + 1, segmentBytes);
+        } else {
+            Segment active = segments.peekLast();
+            active.map();
+            active.writePosition = active.end();
+        }
+    }
+
+    /**
+     * Append a request. Requests larger than the size cap are dropped.
+     */
+    public void append(byte[] body, int series) throws IOException {
+        int size = RECORD_HEADER + body.length;
+        if (size > maxBytes) {
+            LOG.warn("Dropping a remote write request of {} bytes, larger than the buffer", size);
+            return;
+        }
+        Segment active = segments.peekLast();
+        if (active.writePosition + size > active.capacity) {
+            active.force();
+            if (active != segments.peekFirst()) {
+                // Only the segments being read and appended to stay mapped
+                active.buffer = null;
+            }
+            addSegment(active.id + 1, Math.max(segmentBytes, size));
+            active = segments.peekLast();
+        }
+        MappedByteBuffer buffer = active.map();
+        int position = active.writePosition;
+        buffer.putInt(position + 4, series);
+        for (int i = 0; i < body.length; i++) {
+            buffer.put(position + RECORD_HEADER + i, body[i]);
+        }
+        // Written last, so a partially written record is ignored after a crash
+        buffer.putInt(position, body.length);
+        active.writePosition += size;
+    }
+
+    /**
+     * The oldest request not delivered yet, or null if there is none.
+     */
+    public Record peek() throws IOException {
+        while (true) {
+            Segment head = segments.peekFirst();
+            MappedByteBuffer buffer = head.map();
+            int length = readPosition + RECORD_HEADER <= head.capacity ? buffer.getInt(readPosition) : 0;
+            if (length > 0) {
+                byte[] body = new byte[length];
+                for (int i = 0; i < length; i++) {
+                    body[i] = buffer.get(readPosition + RECORD_HEADER + i);
+                }
+                return new Record(body, buffer.getInt(readPosition + 4));
+            }
+            if (head == segments.peekLast()) {
+                return null;
+            }
+            // Everything in this segment was delivered
+            removeFirst();
+            readPosition = 0;
+            writeCheckpoint();
+        }
+    }
+
+    /**
+     * Mark the request returned by {@link #peek()} as delivered.
+     */
+    public void advance() throws IOException {
+        Segment head = segments.peekFirst();
+        readPosition += RECORD_HEADER + head.map().getInt(readPosition);
+        writeCheckpoint();
+    }
+
+    /**
+     * Write the appended requests to disk.
+     */
+    public void flush() {
+        segments.peekLast().force();
+    }
+
+    long totalBytes() {
+        return totalBytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        writeCheckpoint();
+        segments.clear();
+    }
+
+    private void addSegment(long id, int capacity) throws IOException {
+        while (!segments.isEmpty() && totalBytes + capacity > maxBytes) {
+            evictFirst();
+        }
+        Segment segment = new Segment(id, segmentPath(id), capacity);
+        segment.map();
+        segments.addLast(segment);
+        totalBytes += capacity;
+    }
+
+    private void evictFirst() throws IOException {
+        Segment head = segments.peekFirst();
+        int records = 0;
+        int series = 0;
+        MappedByteBuffer buffer = head.map();
+        for (int position = readPosition; position + RECORD_HEADER <= head.capacity && buffer.getInt(position) > 0;
+                position += RECORD_HEADER + buffer.getInt(position)) {
+            records++;
+            series += buffer.getInt(position + 4);
+        }
+        if (records > 0) {
+            LOG.warn("The remote write buffer is full, dropping {} requests with {} series", records, series);
+        }
+        removeFirst();
+        readPosition = 0;
+    }
+
+    private void removeFirst() throws IOException {
+        Segment head = segments.removeFirst();
+        totalBytes -= head.capacity;
+        head.buffer = null;
+        Files.deleteIfExists(head.path);
+    }
+
+    private void writeCheckpoint() throws IOException {
+        Path tmp = dir.resolve(CHECKPOINT_FILE + ".tmp");
+        String checkpoint = segments.isEmpty() ? "-1 0" : segments.peekFirst().id + " " + readPosition;
+        Files.write(tmp, checkpoint.getBytes(StandardCharsets.US_ASCII));
+        Files.move(tmp, dir.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Path segmentPath(long id) {
+        return dir.resolve(String.format("%020d", id) + SEGMENT_SUFFIX);
+    }
+
+    private static List<Long> segmentIds(Path dir) throws IOException {
+        List<Long> ids = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                ids.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private static final class Segment {
+
+        final long id;
+        final Path path;
+        final int capacity;
+        int writePosition;
+        MappedByteBuffer buffer;
+
+        Segment(long id, Path path, long capacity) {
+            this.id = id;
+            this.path = path;
+            this.capacity = (int) capacity;
+        }
+
+        MappedByteBuffer map() throws IOException {
+            if (buffer == null) {
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    // Mapping extends new files to the capacity, filled with zeros
+                    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+                }
+            }
+            return buffer;
+        }
+
+        /**
+         * The position after the last complete record.
+         */
+        int end() {
+            int position = 0;
+            while (position + RECORD_HEADER <= capacity) {
+                int length = buffer.getInt(position);
+                if (length <= 0 || position + RECORD_HEADER + length > capacity) {
+                    break;
+                }
+                position += RECORD_HEADER + length;
+            }
+            return position;
+        }
+
+        void force() {
+            if (buffer != null) {
+                buffer.force();
+            }
+        }
+    }
+}
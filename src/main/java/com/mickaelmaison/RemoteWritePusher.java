@@ -0,0 +1,356 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mickaelmaison;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xerial.snappy.Snappy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Pushes the metrics to a Prometheus remote write endpoint, for clients that can't be scraped.
+ * <p>
+ * Everything runs on a single background thread. On each push all the samples are collected with the same timestamp
+ * and sent in requests of bounded size, encoded as remote write protobuf and compressed with snappy. Requests failing
+ * with a network error, a 5xx or a 429 response are retried with an exponential backoff, other failures drop the batch.
+ * <p>
+ * If a {@link RemoteWriteBuffer} is configured, requests are first appended to it and then delivered from it
+ * in order, so requests still failing after the retries are kept for the next push instead of being dropped.
+ */
+public class RemoteWritePusher implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RemoteWritePusher.class.getName());
+    private static final AtomicBoolean RUNNING = new AtomicBoolean();
+
+    // prometheus.WriteRequest, TimeSeries, Label and Sample fields
+    private static final int WRITE_REQUEST_TIMESERIES = 1 << 3 | 2;
+    private static final int TIMESERIES_LABEL = 1 << 3 | 2;
+    private static final int TIMESERIES_SAMPLE = 2 << 3 | 2;
+    private static final int LABEL_NAME = 1 << 3 | 2;
+    private static final int LABEL_VALUE = 2 << 3 | 2;
+    private static final int SAMPLE_VALUE = 1 << 3 | 1;
+    private static final int SAMPLE_TIMESTAMP = 2 << 3;
+
+    private final PrometheusMetricsReporterConfig config;
+    private final StreamingCollectorRegistry streamingRegistry;
+    private final CollectorRegistry registry;
+    private final URL url;
+    private final String[] extraLabels;
+    private final ScheduledExecutorService executor;
+    private final RemoteWriteBuffer buffer;
+
+    private enum Delivery {
+        DELIVERED,
+        // Not retriable, for example invalid samples
+        REJECTED,
+        // Still failing after the retries
+        FAILED
+    }
+
+    RemoteWritePusher(PrometheusMetricsReporterConfig config, StreamingCollectorRegistry streamingRegistry, CollectorRegistry registry) throws IOException {
+        this.config = config;
+        this.streamingRegistry = streamingRegistry;
+        this.registry = registry;
+        this.url = new URL(config.pushUrl());
+        this.extraLabels = new String[config.pushLabels().size() * 2];
+        int i = 0;
+        for (Map.Entry<String, String> label : config.pushLabels().entrySet()) {
+            extraLabels[i++] = label.getKey();
+            extraLabels[i++] = label.getValue();
+        }
+        this.buffer = config.isPushBufferEnabled()
+                ? new RemoteWriteBuffer(Paths.get(config.pushBufferDir()), config.pushBufferMaxBytes(), config.pushBufferSegmentBytes())
+                : null;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "prometheus-remote-write");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Start pushing, unless another pusher is already running in the JVM.
+     */
+    static Optional<RemoteWritePusher> start(PrometheusMetricsReporterConfig config, StreamingCollectorRegistry streamingRegistry, CollectorRegistry registry) {
+        if (!RUNNING.compareAndSet(false, true)) {
+            return Optional.empty();
+        }
+        try {
+            RemoteWritePusher pusher = new RemoteWritePusher(config, streamingRegistry, registry);
+            pusher.schedule();
+            return Optional.of(pusher);
+        } catch (IOException ioe) {
+            RUNNING.set(false);
+            throw new RuntimeException(ioe);
+        }
+    }
+
+    void schedule() {
+        executor.scheduleWithFixedDelay(this::tryPush, config.pushIntervalMs(), config.pushIntervalMs(), TimeUnit.MILLISECONDS);
+    }
+
+    private void tryPush() {
+        try {
+            push();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            LOG.error("Failed pushing the metrics", e);
+        }
+    }
+
+    /**
+     * Collect all the samples and send them, returns the number of series that were accepted.
+     * With a buffer, this includes the series buffered by previous pushes.
+     */
+    int push() throws InterruptedException, IOException {
+        long timestampMs = System.currentTimeMillis();
+        List<Collector.MetricFamilySamples> families = new ArrayList<>();
+        for (StreamingCollector collector : streamingRegistry.collectors()) {
+            families.addAll(collector.collect());
+        }
+        Enumeration<Collector.MetricFamilySamples> others = registry.metricFamilySamples();
+        while (others.hasMoreElements()) {
+            families.add(others.nextElement());
+        }
+
+        int sent = 0;
+        int batched = 0;
+        ExpositionBuffer request = ExpositionBuffer.acquire();
+        try {
+            for (Collector.MetricFamilySamples family : families) {
+                for (Collector.MetricFamilySamples.Sample sample : family.samples) {
+                    writeTimeSeries(request, sample, extraLabels, timestampMs);
+                    if (++batched == config.pushMaxSeriesPerRequest()) {
+                        sent += submit(request, batched);
+                        request.reset();
+                        batched = 0;
+                    }
+                }
+            }
+            if (batched > 0) {
+                sent += submit(request, batched);
+            }
+        } finally {
+            request.release();
+        }
+        if (buffer != null) {
+            buffer.flush();
+            sent += drain();
+        }
+        return sent;
+    }
+
+    private int submit(ExpositionBuffer request, int series) throws InterruptedException, IOException {
+        byte[] body;
+        try {
+            ByteBuffer uncompressed = request.asByteBuffer();
+            body = new byte[Snappy.maxCompressedLength(uncompressed.remaining())];
+            int length = Snappy.rawCompress(uncompressed.array(), uncompressed.arrayOffset(), uncompressed.remaining(), body, 0);
+            body = Arrays.copyOf(body, length);
+        } catch (IOException ioe) {
+            LOG.error("Failed compressing a remote write request, dropping {} series", series, ioe);
+            return 0;
+        }
+        if (buffer != null) {
+            buffer.append(body, series);
+            return 0;
+        }
+        if (deliver(body) == Delivery.DELIVERED) {
+            return series;
+        }
+        LOG.error("Dropping {} series", series);
+        return 0;
+    }
+
+    /**
+     * Deliver the buffered requests in order, until one fails.
+     */
+    private int drain() throws InterruptedException, IOException {
+        int sent = 0;
+        RemoteWriteBuffer.Record record;
+        while ((record = buffer.peek()) != null) {
+            Delivery delivery = deliver(record.body);
+            if (delivery == Delivery.FAILED) {
+                LOG.warn("Keeping the buffered series until the remote write endpoint is available");
+                break;
+            }
+            if (delivery == Delivery.DELIVERED) {
+                sent += record.series;
+            } else {
+                LOG.error("Dropping {} buffered series", record.series);
+            }
+            buffer.advance();
+        }
+        return sent;
+    }
+
+    private Delivery deliver(byte[] body) throws InterruptedException {
+        long backoffMs = config.pushRetryBackoffMs();
+        for (int attempt = 0; ; attempt++) {
+            String error;
+            try {
+                int status = post(body);
+                if (status / 100 == 2) {
+                    return Delivery.DELIVERED;
+                }
+                error = "HTTP status " + status;
+                if (status != 429 && status / 100 != 5) {
+                    LOG.error("Remote write request rejected with {}", error);
+                    return Delivery.REJECTED;
+                }
+            } catch (IOException ioe) {
+                error = ioe.toString();
+            }
+            if (attempt >= config.pushRetries()) {
+                LOG.error("Remote write request failed with {} after {} retries", error, attempt);
+                return Delivery.FAILED;
+            }
+            LOG.debug("Remote write request failed with {}, retrying in {} ms", error, backoffMs);
+            Thread.sleep(backoffMs);
+            backoffMs = Math.min(backoffMs * 2, config.pushIntervalMs());
+        }
+    }
+
+    private int post(byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setConnectTimeout((int) Math.min(config.pushRequestTimeoutMs(), Integer.MAX_VALUE));
+            connection.setReadTimeout((int) Math.min(config.pushRequestTimeoutMs(), Integer.MAX_VALUE));
+            connection.setFixedLengthStreamingMode(body.length);
+            connection.setRequestProperty("Content-Type", "application/x-protobuf");
+            connection.setRequestProperty("Content-Encoding", "snappy");
+            connection.setRequestProperty("User-Agent", "prometheus-metrics-reporter");
+            connection.setRequestProperty("X-Prometheus-Remote-Write-Version", "0.1.0");
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body);
+            }
+            int status = connection.getResponseCode();
+            // Read the response so the connection can be reused
+            InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (in != null) {
+                try (InputStream response = in) {
+                    byte[] discard = new byte[1024];
+                    while (response.read(discard) >= 0) {
+                        // discard
+                    }
+                }
+            }
+            return status;
+        } catch (IOException ioe) {
+            connection.disconnect();
+            throw ioe;
+        }
+    }
+
+    /**
+     * Write a sample as a TimeSeries of a WriteRequest. Remote write requires the labels to be sorted by name.
+     */
+    static void writeTimeSeries(ExpositionBuffer buffer, Collector.MetricFamilySamples.Sample sample, String[] extraLabels, long timestampMs) {
+        int labelCount = sample.labelNames.size() + extraLabels.length / 2 + 1;
+        String[][] labels = new String[labelCount][];
+        labels[0] = new String[] {"__name__", sample.name};
+        int i = 1;
+        for (int j = 0; j < sample.labelNames.size(); j++) {
+            labels[i++] = new String[] {sample.labelNames.get(j), sample.labelValues.get(j)};
+        }
+        for (int j = 0; j < extraLabels.length; j += 2) {
+            labels[i++] = new String[] {extraLabels[j], extraLabels[j + 1]};
+        }
+        Arrays.sort(labels, (l1, l2) -> l1[0].compareTo(l2[0]));
+
+        buffer.write(WRITE_REQUEST_TIMESERIES);
+        int start = buffer.size();
+        for (int j = 0; j < labels.length; j++) {
+            // A label set by the sample takes precedence over an extra label with the same name
+            if (j > 0 && labels[j][0].equals(labels[j - 1][0])) {
+                continue;
+            }
+            buffer.write(TIMESERIES_LABEL);
+            int labelStart = buffer.size();
+            writeString(buffer, LABEL_NAME, labels[j][0]);
+            writeString(buffer, LABEL_VALUE, labels[j][1]);
+            buffer.insertVarint(labelStart, buffer.size() - labelStart);
+        }
+        buffer.write(TIMESERIES_SAMPLE);
+        buffer.writeVarint(1 + 8 + 1 + ExpositionBuffer.varintSize(timestampMs));
+        buffer.write(SAMPLE_VALUE);
+        buffer.writeFixed64(sample.value);
+        buffer.write(SAMPLE_TIMESTAMP);
+        buffer.writeVarint(timestampMs);
+        buffer.insertVarint(start, buffer.size() - start);
+    }
+
+    private static void writeString(ExpositionBuffer buffer, int tag, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer.write(tag);
+        buffer.writeVarint(bytes.length);
+        buffer.write(bytes);
+    }
+
+    /**
+     * Stop pushing, after a last push so the final values of short-lived clients are not lost.
+     */
+    @Override
+    public void close() {
+        // Shutting down cancels the periodic push, but not this one
+        executor.execute(() -> {
+            tryPush();
+            if (buffer != null) {
+                try {
+                    buffer.close();
+                } catch (IOException ioe) {
+                    LOG.error("Failed closing the remote write buffer", ioe);
+                }
+            }
+        });
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(config.pushRequestTimeoutMs(), TimeUnit.MILLISECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException ie) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        } finally {
+            RUNNING.set(false);
+        }
+    }
+}
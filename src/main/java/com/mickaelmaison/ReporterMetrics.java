@@ -0,0 +1,245 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mickaelmaison;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.exporter.common.TextFormat;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Metrics about the reporter itself: how long scrapes take, how much each collector emits and where the time goes.
+ * Recording only updates {@link LongAdder}s and atomic arrays so it doesn't allocate on the scrape path,
+ * the samples are only built when these metrics are collected.
+ */
+public class ReporterMetrics extends StreamingCollector {
+
+    static final String PREFIX = "prometheus_metrics_reporter_";
+    static final double[] SCRAPE_DURATION_BUCKETS = {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    public static final ReporterMetrics INSTANCE = new ReporterMetrics();
+
+    /**
+     * Stages a scrape or a metric registration spends time in.
+     */
+    public enum Stage {
+        // Naming, filtering and pre-encoding metrics when they are registered
+        REGISTRATION("registration"),
+        // Reading the values and rendering them
+        COLLECTION("collection"),
+        // Gzip compression of the responses
+        COMPRESSION("compression");
+
+        final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+    }
+
+    final CollectorStats kafka = new CollectorStats("kafka");
+    final CollectorStats yammer = new CollectorStats("yammer");
+
+    private final AtomicLongArray scrapeBuckets = new AtomicLongArray(SCRAPE_DURATION_BUCKETS.length + 1);
+    private final LongAdder scrapeNanos = new LongAdder();
+    private final LongAdder responseBytes = new LongAdder();
+    private final LongAdder compressionInputBytes = new LongAdder();
+    private final LongAdder compressionOutputBytes = new LongAdder();
+    private final LongAdder[] stageNanos = new LongAdder[Stage.values().length];
+
+    ReporterMetrics() {
+        for (int i = 0; i < stageNanos.length; i++) {
+            stageNanos[i] = new LongAdder();
+        }
+    }
+
+    public void recordScrape(long durationNanos, int bytes) {
+        double seconds = durationNanos / NANOS_PER_SECOND;
+        int bucket = 0;
+        while (bucket < SCRAPE_DURATION_BUCKETS.length && seconds > SCRAPE_DURATION_BUCKETS[bucket]) {
+            bucket++;
+        }
+        scrapeBuckets.incrementAndGet(bucket);
+        scrapeNanos.add(durationNanos);
+        responseBytes.add(bytes);
+    }
+
+    public void recordCompression(long durationNanos, int inputBytes, int outputBytes) {
+        recordStage(Stage.COMPRESSION, durationNanos);
+        compressionInputBytes.add(inputBytes);
+        compressionOutputBytes.add(outputBytes);
+    }
+
+    public void recordStage(Stage stage, long durationNanos) {
+        stageNanos[stage.ordinal()].add(durationNanos);
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples> samples = new ArrayList<>();
+
+        MetricFamilySamplesBuilder scrapes = new MetricFamilySamplesBuilder(PREFIX + "scrape_duration_seconds", Type.HISTOGRAM,
+                "Time taken to serve a metrics request");
+        long count = 0;
+        for (int i = 0; i <= SCRAPE_DURATION_BUCKETS.length; i++) {
+            count += scrapeBuckets.get(i);
+            String le = i < SCRAPE_DURATION_BUCKETS.length ? Collector.doubleToGoString(SCRAPE_DURATION_BUCKETS[i]) : "+Inf";
+            scrapes.addSample(PREFIX + "scrape_duration_seconds_bucket", count,
+                    Collections.singletonList("le"), Collections.singletonList(le));
+        }
+        scrapes.addSample(PREFIX + "scrape_duration_seconds_count", count, Collections.emptyList(), Collections.emptyList())
+                .addSample(PREFIX + "scrape_duration_seconds_sum", scrapeNanos.sum() / NANOS_PER_SECOND, Collections.emptyList(), Collections.emptyList());
+        samples.add(scrapes.build());
+
+        samples.add(counter("response_bytes_total", "Bytes of metrics served, after compression", responseBytes.sum()));
+        samples.add(counter("compression_input_bytes_total", "Bytes of metrics passed to gzip", compressionInputBytes.sum()));
+        samples.add(counter("compression_output_bytes_total", "Bytes of metrics produced by gzip", compressionOutputBytes.sum()));
+
+        MetricFamilySamplesBuilder stages = new MetricFamilySamplesBuilder(PREFIX + "stage_seconds_total", Type.COUNTER,
+                "Time spent in each stage of registering and serving metrics");
+        for (Stage stage : Stage.values()) {
+            stages.addSample(PREFIX + "stage_seconds_total", stageNanos[stage.ordinal()].sum() / NANOS_PER_SECOND,
+                    Collections.singletonList("stage"), Collections.singletonList(stage.label));
+        }
+        samples.add(stages.build());
+
+        List<CollectorStats> collectors = Arrays.asList(kafka, yammer);
+        samples.add(perCollector(collectors, "collector_seconds_total", "Time spent collecting the metrics of each collector", s -> s.nanos.sum() / NANOS_PER_SECOND));
+        samples.add(perCollector(collectors, "series_total", "Series emitted by each collector", s -> s.series.sum()));
+        samples.add(perCollector(collectors, "families_total", "Metric families emitted by each collector", s -> s.families.sum()));
+        samples.add(perCollector(collectors, "skipped_total", "Metrics skipped by each collector because their value is not numeric", s -> s.skipped.sum()));
+        samples.add(perCollector(collectors, "dropped_total", "Metrics of each collector dropped by the allowlist, or as windowed metrics in totals only mode", s -> s.dropped.sum()));
+        samples.add(perCollector(collectors, "overflow_total", "Metrics of each collector over the series limits, summed into overflow series", s -> s.overflow.sum()));
+        // A sum and a count rather than a resetting max, so every reader of these metrics sees all the values served
+        MetricFamilySamplesBuilder cachedAge = new MetricFamilySamplesBuilder(PREFIX + "cached_value_age_seconds", Type.SUMMARY,
+                "Age of the cached values served by each collector instead of evaluating their metric");
+        for (CollectorStats stats : collectors) {
+            List<String> labelNames = Collections.singletonList("collector");
+            List<String> labelValues = Collections.singletonList(stats.collector);
+            cachedAge.addSample(PREFIX + "cached_value_age_seconds_count", stats.cachedValues.sum(), labelNames, labelValues)
+                    .addSample(PREFIX + "cached_value_age_seconds_sum", stats.cachedAgeNanos.sum() / NANOS_PER_SECOND, labelNames, labelValues);
+        }
+        samples.add(cachedAge.build());
+        samples.add(perCollector(collectors, "deadline_missed_total",
+                "Metrics of each collector served their last value, or omitted, because their evaluation missed its deadline",
+                s -> s.deadlineMissed.sum()));
+        return samples;
+    }
+
+    @Override
+    public void write(ExpositionBuffer buffer) {
+        // These few metrics don't need a streaming implementation
+        Writer writer = new OutputStreamWriter(buffer, StandardCharsets.UTF_8);
+        try {
+            TextFormat.write004(writer, Collections.enumeration(collect()));
+            writer.flush();
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    private static MetricFamilySamples counter(String name, String help, double value) {
+        return new MetricFamilySamplesBuilder(PREFIX + name, Type.COUNTER, help)
+                .addSample(PREFIX + name, value, Collections.emptyList(), Collections.emptyList())
+                .build();
+    }
+
+    private static MetricFamilySamples perCollector(List<CollectorStats> collectors, String name, String help,
+                                                    ToDoubleFunction<CollectorStats> value) {
+        return perCollector(collectors, name, Type.COUNTER, help, value);
+    }
+
+    private static MetricFamilySamples perCollector(List<CollectorStats> collectors, String name, Type type, String help,
+                                                    ToDoubleFunction<CollectorStats> value) {
+        MetricFamilySamplesBuilder builder = new MetricFamilySamplesBuilder(PREFIX + name, type, help);
+        for (CollectorStats stats : collectors) {
+            builder.addSample(PREFIX + name, value.applyAsDouble(stats),
+                    Collections.singletonList("collector"), Collections.singletonList(stats.collector));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Counters of a kind of collector, shared by all the collectors of that kind.
+     */
+    public static final class CollectorStats {
+
+        final String collector;
+        final LongAdder nanos = new LongAdder();
+        final LongAdder series = new LongAdder();
+        final LongAdder families = new LongAdder();
+        final LongAdder skipped = new LongAdder();
+        final LongAdder dropped = new LongAdder();
+        final LongAdder overflow = new LongAdder();
+        final LongAdder deadlineMissed = new LongAdder();
+        final LongAdder cachedValues = new LongAdder();
+        final LongAdder cachedAgeNanos = new LongAdder();
+
+        CollectorStats(String collector) {
+            this.collector = collector;
+        }
+
+        /**
+         * Record a collection that started at the given {@link System#nanoTime()}.
+         */
+        public void recordCollection(long startNanos) {
+            nanos.add(System.nanoTime() - startNanos);
+        }
+
+        /**
+         * Record a family that was emitted, or skipped entirely when none of its series had a numeric value.
+         */
+        public void recordFamily(int emitted, int skipped) {
+            if (emitted > 0) {
+                families.increment();
+                series.add(emitted);
+            }
+            if (skipped > 0) {
+                this.skipped.add(skipped);
+            }
+        }
+
+        public void recordDropped() {
+            dropped.increment();
+        }
+
+        public void recordOverflow() {
+            overflow.increment();
+        }
+
+        public void recordDeadlineMissed() {
+            deadlineMissed.increment();
+        }
+
+        public void recordCachedAge(long ageNanos) {
+            cachedValues.increment();
+            cachedAgeNanos.add(ageNanos);
+        }
+    }
+}
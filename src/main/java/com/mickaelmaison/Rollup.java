@@ -0,0 +1,292 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mickaelmaison;
+
+import io.prometheus.client.Collector;
+import org.apache.kafka.common.config.ConfigException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Aggregates the series of a metric family by a subset of their labels, so only one series per group is exposed.
+ * <p>
+ * Each series is assigned a group when it's registered, and the groups pre-encode their samples.
+ * A scrape then only accumulates values into primitive arrays indexed by group.
+ * Groups are reference counted by their series, so the groups of removed series (e.g. deleted topics) are dropped.
+ */
+public class Rollup {
+
+    private static final Group[] NO_GROUPS = new Group[0];
+
+    /**
+     * How the values of a group are combined.
+     */
+    public enum Function {
+        SUM, MIN, MAX, COUNT
+    }
+
+    /**
+     * A configured aggregation: the function and the labels to group by.
+     */
+    public static final class Rule {
+
+        final Function function;
+        final List<String> labels;
+
+        Rule(Function function, List<String> labels) {
+            this.function = function;
+            this.labels = labels;
+        }
+
+        /**
+         * Parse a rule written as {@code <function>:<label>;<label>}. Without labels all series are aggregated into one.
+         */
+        public static Rule parse(String config, String rule) {
+            int idx = rule.indexOf(':');
+            if (idx < 0) {
+                throw new ConfigException(config, rule, "Roll-ups must be <function>:<labels>");
+            }
+            Function function;
+            try {
+                function = Function.valueOf(rule.substring(0, idx).trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException iae) {
+                throw new ConfigException(config, rule, "Roll-up functions are sum, min, max or count");
+            }
+            List<String> labels = new ArrayList<>();
+            for (String label : rule.substring(idx + 1).split(";")) {
+                if (!label.trim().isEmpty()) {
+                    labels.add(label.trim());
+                }
+            }
+            return new Rule(function, Collections.unmodifiableList(labels));
+        }
+
+        /**
+         * The rule also grouping by the given labels.
+         */
+        Rule withLabels(List<String> extraLabels) {
+            List<String> merged = new ArrayList<>(labels);
+            for (String label : extraLabels) {
+                if (!merged.contains(label)) {
+                    merged.add(label);
+                }
+            }
+            return merged.size() == labels.size() ? this : new Rule(function, Collections.unmodifiableList(merged));
+        }
+
+        @Override
+        public String toString() {
+            return function.name().toLowerCase(Locale.ROOT) + ":" + String.join(";", labels);
+        }
+    }
+
+    final Rule rule;
+    // Min, max and count of counters are not counters
+    final Collector.Type type;
+    private final String sampleName;
+    private final String prefixName;
+    private final Map<List<String>, Group> indexes = new HashMap<>();
+    // The indexes of released groups, reused by the next groups
+    private final Deque<Integer> free = new ArrayDeque<>();
+    // Copied when a slot is released or reused, readers use the groups below the size they read
+    private volatile Group[] groups = NO_GROUPS;
+    private volatile int size;
+
+    /**
+     * @param sampleName The name of the samples of the family
+     * @param type The type of the family before aggregation
+     */
+    public Rollup(Rule rule, String sampleName, Collector.Type type) {
+        this.rule = rule;
+        this.type = rule.function == Function.SUM ? type : Collector.Type.GAUGE;
+        this.sampleName = sampleName;
+        // Like MetricFamilySamples, counters get the _total suffix
+        this.prefixName = this.type == Collector.Type.COUNTER && !sampleName.endsWith("_total") ? sampleName + "_total" : sampleName;
+    }
+
+    /**
+     * The group of a series, created if it's the first series of that group. Each call must be matched by a call to
+     * {@link #release(Group)} when the series is removed. Series without one of the labels are grouped with an empty
+     * value for it.
+     */
+    public synchronized Group group(List<String> labelNames, List<String> labelValues) {
+        List<String> values = new ArrayList<>(rule.labels.size());
+        for (String label : rule.labels) {
+            int idx = labelNames.indexOf(label);
+            values.add(idx >= 0 ? labelValues.get(idx) : "");
+        }
+        Group group = indexes.get(values);
+        if (group == null) {
+            Integer index = free.poll();
+            if (index != null) {
+                // Copied so scrapes in progress don't add the values of the released group to the new one
+                group = new Group(index, prefixName, rule.labels, values);
+                Group[] copy = groups.clone();
+                copy[index] = group;
+                groups = copy;
+            } else {
+                if (size == groups.length) {
+                    groups = Arrays.copyOf(groups, Math.max(16, size * 2));
+                }
+                group = new Group(size, prefixName, rule.labels, values);
+                groups[size] = group;
+                // Publishes the new group
+                size++;
+            }
+            indexes.put(values, group);
+        }
+        group.references++;
+        return group;
+    }
+
+    /**
+     * Release the group of a removed series, dropping the group if it was its last series.
+     */
+    public synchronized void release(Group group) {
+        if (--group.references == 0) {
+            indexes.remove(group.labelValues);
+            Group[] copy = groups.clone();
+            copy[group.index] = null;
+            groups = copy;
+            free.add(group.index);
+        }
+    }
+
+    /**
+     * The number of groups with at least one series.
+     */
+    synchronized int groupCount() {
+        return indexes.size();
+    }
+
+    /**
+     * Start accumulating the values of a scrape.
+     */
+    public Values values() {
+        // Read the size first, the array read after it has at least that many groups
+        int size = this.size;
+        return new Values(groups, size);
+    }
+
+    /**
+     * The aggregated values of a scrape.
+     */
+    public final class Values {
+
+        private final Group[] groups;
+        private final double[] values;
+        private final long[] counts;
+
+        Values(Group[] groups, int size) {
+            this.groups = groups;
+            this.values = new double[size];
+            this.counts = new long[size];
+        }
+
+        /**
+         * Add the value of a series. Non numeric values are passed as NaN and ignored.
+         */
+        public void add(Group group, double value) {
+            int index = group.index;
+            if (index >= values.length || groups[index] != group || Double.isNaN(value)) {
+                // Series registered after the scrape started, or whose group was reused since
+                return;
+            }
+            switch (rule.function) {
+                case SUM:
+                    values[index] += value;
+                    break;
+                case MIN:
+                    values[index] = counts[index] == 0 ? value : Math.min(values[index], value);
+                    break;
+                case MAX:
+                    values[index] = counts[index] == 0 ? value : Math.max(values[index], value);
+                    break;
+                case COUNT:
+                    values[index]++;
+                    break;
+            }
+            counts[index]++;
+        }
+
+        /**
+         * Add the aggregated samples, returns the number of groups with a value.
+         */
+        public int convert(MetricFamilySamplesBuilder builder) {
+            int emitted = 0;
+            for (int i = 0; i < values.length; i++) {
+                if (counts[i] > 0) {
+                    builder.addSample(sampleName, values[i], rule.labels, groups[i].labelValues);
+                    emitted++;
+                }
+            }
+            return emitted;
+        }
+
+        public int write(ExpositionBuffer buffer) {
+            int emitted = 0;
+            for (int i = 0; i < values.length; i++) {
+                if (counts[i] > 0) {
+                    buffer.write(groups[i].samplePrefix);
+                    buffer.writeDouble(values[i]);
+                    buffer.write('\n');
+                    emitted++;
+                }
+            }
+            return emitted;
+        }
+
+        public int writeProtobuf(ExpositionBuffer buffer) {
+            int emitted = 0;
+            for (int i = 0; i < values.length; i++) {
+                if (counts[i] > 0) {
+                    ProtobufFormat.writeValue(buffer, type, groups[i].protobufLabels, values[i]);
+                    emitted++;
+                }
+            }
+            return emitted;
+        }
+    }
+
+    /**
+     * The series sharing the same values for the labels of the rule.
+     */
+    public static final class Group {
+
+        final int index;
+        final List<String> labelValues;
+        final byte[] samplePrefix;
+        final byte[] protobufLabels;
+        // Guarded by the roll-up
+        private int references;
+
+        Group(int index, String name, List<String> labelNames, List<String> labelValues) {
+            this.index = index;
+            this.labelValues = Collections.unmodifiableList(labelValues);
+            this.samplePrefix = ExpositionBuffer.samplePrefix(name, labelNames, labelValues);
+            this.protobufLabels = ProtobufFormat.labels(labelNames, labelValues);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mickaelmaison;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Shares collections between concurrent scrapes: a scrape arriving while another one is collecting waits for
+ * its result instead of starting its own collection. If the TTL is positive, the last result is also reused
+ * by scrapes arriving within the TTL.
+ * <p>
+ * In pre-rendering mode, {@link #refresh(Renderer)} is called periodically by a background thread and scrapes
+ * always get the latest snapshot, regardless of the TTL.
+ * <p>
+ * If a join timeout is set, scrapes waiting for another one give up after it, so they don't pile up behind
+ * a collection that is stuck.
+ */
+public class ScrapeCache {
+
+    interface Renderer {
+        byte[] render() throws IOException;
+    }
+
+    private final long ttlNanos;
+    private final boolean prerendered;
+    private final long joinTimeoutNanos;
+    private final AtomicReference<CompletableFuture<MetricsSnapshot>> inFlight = new AtomicReference<>();
+    private volatile MetricsSnapshot cached;
+
+    public ScrapeCache(long ttlMs) {
+        this(ttlMs, false);
+    }
+
+    public ScrapeCache(long ttlMs, boolean prerendered) {
+        this(ttlMs, prerendered, 0L);
+    }
+
+    public ScrapeCache(long ttlMs, boolean prerendered, long joinTimeoutMs) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+        this.prerendered = prerendered;
+        this.joinTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(joinTimeoutMs);
+    }
+
+    public MetricsSnapshot get(Renderer renderer) throws IOException {
+        MetricsSnapshot snapshot = cached;
+        if (snapshot != null && (prerendered || System.nanoTime() - snapshot.createdNanos() < ttlNanos)) {
+            return snapshot;
+        }
+
+        CompletableFuture<MetricsSnapshot> future = new CompletableFuture<>();
+        while (!inFlight.compareAndSet(null, future)) {
+            CompletableFuture<MetricsSnapshot> existing = inFlight.get();
+            if (existing != null) {
+                return join(existing);
+            }
+        }
+        try {
+            snapshot = new MetricsSnapshot(renderer.render(), System.nanoTime());
+            if (ttlNanos > 0 || prerendered) {
+                cached = snapshot;
+            }
+            future.complete(snapshot);
+            return snapshot;
+        } catch (IOException | RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.set(null);
+        }
+    }
+
+    /**
+     * Render and compress a new snapshot, and swap it in for the following scrapes.
+     */
+    public void refresh(Renderer renderer) throws IOException {
+        cached = MetricsSnapshot.compressed(renderer.render(), System.nanoTime());
+    }
+
+    /**
+     * Whether no snapshot has been cached yet.
+     */
+    public boolean isEmpty() {
+        return cached == null;
+    }
+
+    private MetricsSnapshot join(CompletableFuture<MetricsSnapshot> future) throws IOException {
+        try {
+            return joinTimeoutNanos > 0 ? future.get(joinTimeoutNanos, TimeUnit.NANOSECONDS) : future.get();
+        } catch (TimeoutException te) {
+            throw new IOException("Timed out waiting for the metrics collected by another scrape");
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the metrics", ie);
+        } catch (ExecutionException ee) {
+            throw new IOException("Failed collecting the metrics", ee.getCause());
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mickaelmaison;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The HTTP server and the remote write pusher shared by all the reporters of the JVM. The first reporter
+ * starts them with its configuration, and they are stopped when the last reporter is closed.
+ */
+public class SharedEndpoint {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SharedEndpoint.class.getName());
+    // The settings only read from the configuration of the first reporter
+    private static final List<String> ENDPOINT_CONFIGS = Arrays.asList(
+            PrometheusMetricsReporterConfig.PORT_CONFIG, PrometheusMetricsReporterConfig.CACHE_TTL_MS_CONFIG,
+            PrometheusMetricsReporterConfig.PRERENDER_INTERVAL_MS_CONFIG, PrometheusMetricsReporterConfig.JVM_REFRESH_INTERVAL_MS_CONFIG,
+            PrometheusMetricsReporterConfig.HTTP_WORKER_THREADS_CONFIG, PrometheusMetricsReporterConfig.HTTP_VIRTUAL_THREADS_ENABLED_CONFIG,
+            PrometheusMetricsReporterConfig.HTTP_BACKLOG_CONFIG, PrometheusMetricsReporterConfig.HTTP_MAX_CONNECTIONS_CONFIG,
+            PrometheusMetricsReporterConfig.HTTP_MAX_CONCURRENT_SCRAPES_CONFIG,
+            PrometheusMetricsReporterConfig.HTTP_REQUEST_TIMEOUT_MS_CONFIG, PrometheusMetricsReporterConfig.HTTP_ENDPOINTS_CONFIG,
+            PrometheusMetricsReporterConfig.COLLECTION_DEADLINE_MS_CONFIG, PrometheusMetricsReporterConfig.PUSH_URL_CONFIG,
+            PrometheusMetricsReporterConfig.PUSH_INTERVAL_MS_CONFIG, PrometheusMetricsReporterConfig.PUSH_LABELS_CONFIG,
+            PrometheusMetricsReporterConfig.PUSH_MAX_SERIES_PER_REQUEST_CONFIG, PrometheusMetricsReporterConfig.PUSH_RETRIES_CONFIG,
+            PrometheusMetricsReporterConfig.PUSH_RETRY_BACKOFF_MS_CONFIG, PrometheusMetricsReporterConfig.PUSH_REQUEST_TIMEOUT_MS_CONFIG,
+            PrometheusMetricsReporterConfig.PUSH_BUFFER_DIR_CONFIG, PrometheusMetricsReporterConfig.PUSH_BUFFER_MAX_BYTES_CONFIG,
+            PrometheusMetricsReporterConfig.PUSH_BUFFER_SEGMENT_BYTES_CONFIG);
+
+    private static SharedEndpoint instance;
+    private static int references;
+
+    private final PrometheusMetricsReporterConfig config;
+    private final Optional<MetricsHttpServer> httpServer;
+    private final Optional<RemoteWritePusher> pusher;
+    private ScheduledExecutorService renderer;
+
+    private SharedEndpoint(PrometheusMetricsReporterConfig config) {
+        this.config = config;
+        httpServer = config.startHttpServer();
+        // The reporter's own metrics are exposed with the HTTP server
+        httpServer.ifPresent(server -> config.register(ReporterMetrics.INSTANCE));
+        if (config.prerenderIntervalMs() > 0 && httpServer.isPresent()) {
+            startRenderer(httpServer.get(), config.prerenderIntervalMs());
+        }
+        pusher = config.startPusher();
+    }
+
+    /**
+     * Get the endpoint of the JVM, starting it if this is the first reporter. Each call must be matched by a call
+     * to {@link #release()}.
+     */
+    public static synchronized SharedEndpoint acquire(PrometheusMetricsReporterConfig config) {
+        // Registered here so they can't be unregistered by the last reporter closing concurrently
+        config.registerJvmCollectors();
+        if (instance == null) {
+            instance = new SharedEndpoint(config);
+        } else {
+            List<String> ignored = ignoredConfigs(instance.config, config);
+            if (!ignored.isEmpty()) {
+                LOG.warn("The metrics are exposed by the endpoint already started by another reporter on port {}, " +
+                        "the settings {} of this reporter are ignored", instance.config.port(), ignored);
+            }
+        }
+        references++;
+        return instance;
+    }
+
+    /**
+     * The settings of a reporter that differ from the ones the endpoint was started with.
+     */
+    static List<String> ignoredConfigs(PrometheusMetricsReporterConfig endpointConfig, PrometheusMetricsReporterConfig config) {
+        List<String> ignored = new ArrayList<>();
+        for (String name : ENDPOINT_CONFIGS) {
+            if (!Objects.equals(config.values().get(name), endpointConfig.values().get(name))) {
+                ignored.add(name);
+            }
+        }
+        return ignored;
+    }
+
+    /**
+     * Release the endpoint, it's stopped if this was the last reporter using it.
+     */
+    public void release() {
+        synchronized (SharedEndpoint.class) {
+            if (--references == 0) {
+                instance = null;
+                close();
+            }
+        }
+    }
+
+    private void startRenderer(MetricsHttpServer server, long intervalMs) {
+        renderer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "prometheus-metrics-renderer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        renderer.scheduleWithFixedDelay(() -> {
+            try {
+                server.prerender();
+            } catch (Exception e) {
+                LOG.error("Failed rendering the metrics", e);
+            }
+        }, 0, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void close() {
+        LOG.info("Closing the HTTP server");
+        if (renderer != null) {
+            renderer.shutdownNow();
+        }
+        // Stopping the pusher does a last push, so it must happen before the collectors are unregistered
+        pusher.ifPresent(RemoteWritePusher::close);
+        httpServer.ifPresent(server -> {
+            server.close();
+            config.unregister(ReporterMetrics.INSTANCE);
+        });
+        // Otherwise the cached JVM collectors keep reading the MXBeans after all the clients are gone
+        PrometheusMetricsReporterConfig.JVM_COLLECTORS.unregister();
+    }
+
+    public Optional<MetricsHttpServer> httpServer() {
+        return httpServer;
+    }
+}
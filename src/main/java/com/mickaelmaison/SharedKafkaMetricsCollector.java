@@ -0,0 +1,176 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mickaelmaison;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+
+/**
+ * The Kafka metrics of all the reporters of the JVM, for example of the producers, consumers and admin clients
+ * of a Kafka Connect worker. They are exposed by a single collector so families with the same name in several
+ * clients are merged and only described once.
+ */
+public class SharedKafkaMetricsCollector extends StreamingCollector {
+
+    private static final ReporterMetrics.CollectorStats STATS = ReporterMetrics.INSTANCE.kafka;
+
+    public static final SharedKafkaMetricsCollector INSTANCE = new SharedKafkaMetricsCollector();
+
+    private final List<KafkaMetricsCollector> collectors = new CopyOnWriteArrayList<>();
+    private PrometheusMetricsReporterConfig config;
+
+    SharedKafkaMetricsCollector() {
+    }
+
+    /**
+     * Add the collector of a reporter. The first one registers this collector, with its configuration.
+     */
+    public synchronized void add(KafkaMetricsCollector collector, PrometheusMetricsReporterConfig config) {
+        collectors.add(collector);
+        if (collectors.size() == 1) {
+            this.config = config;
+            config.register(this);
+        }
+    }
+
+    /**
+     * Remove the collector of a reporter. This collector is unregistered once the last one is removed.
+     */
+    public synchronized void remove(KafkaMetricsCollector collector) {
+        if (collectors.remove(collector) && collectors.isEmpty()) {
+            config.unregister(this);
+            config = null;
+        }
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        List<KafkaMetricsCollector> collectors = new ArrayList<>(this.collectors);
+        // Nothing to merge, this is the common case of a broker or a single client
+        if (collectors.size() < 2) {
+            return collectors.isEmpty() ? Collections.emptyList() : collectors.get(0).collect();
+        }
+        long start = System.nanoTime();
+        try {
+            return collect(collectors, merge(collectors, c -> c.families().values()));
+        } finally {
+            STATS.recordCollection(start);
+        }
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect(NameSelector selector) {
+        List<KafkaMetricsCollector> collectors = new ArrayList<>(this.collectors);
+        if (collectors.size() < 2) {
+            return collectors.isEmpty() ? Collections.emptyList() : collectors.get(0).collect(selector);
+        }
+        long start = System.nanoTime();
+        try {
+            return collect(collectors, merge(collectors, c -> selector.select(c.families())));
+        } finally {
+            STATS.recordCollection(start);
+        }
+    }
+
+    private static List<MetricFamilySamples> collect(List<KafkaMetricsCollector> collectors, List<List<KafkaMetricsCollector.MetricFamily>> families) {
+        ParallelCollection parallel = collectors.get(0).parallel();
+        if (parallel.isEnabled(size(collectors))) {
+            return parallel.map(families, KafkaMetricsCollector::collect);
+        }
+        List<MetricFamilySamples> samples = new ArrayList<>(families.size());
+        for (List<KafkaMetricsCollector.MetricFamily> family : families) {
+            MetricFamilySamples familySamples = KafkaMetricsCollector.collect(family);
+            if (familySamples != null) {
+                samples.add(familySamples);
+            }
+        }
+        return samples;
+    }
+
+    @Override
+    public void write(ExpositionBuffer buffer) {
+        List<KafkaMetricsCollector> collectors = new ArrayList<>(this.collectors);
+        if (collectors.size() < 2) {
+            if (!collectors.isEmpty()) {
+                collectors.get(0).write(buffer);
+            }
+            return;
+        }
+        long start = System.nanoTime();
+        List<List<KafkaMetricsCollector.MetricFamily>> families = merge(collectors, c -> c.families().values());
+        ParallelCollection parallel = collectors.get(0).parallel();
+        if (parallel.isEnabled(size(collectors))) {
+            parallel.write(families, buffer, KafkaMetricsCollector::write);
+        } else {
+            for (List<KafkaMetricsCollector.MetricFamily> family : families) {
+                KafkaMetricsCollector.write(family, buffer);
+            }
+        }
+        STATS.recordCollection(start);
+    }
+
+    @Override
+    public void writeProtobuf(ExpositionBuffer buffer) {
+        List<KafkaMetricsCollector> collectors = new ArrayList<>(this.collectors);
+        if (collectors.size() < 2) {
+            if (!collectors.isEmpty()) {
+                collectors.get(0).writeProtobuf(buffer);
+            }
+            return;
+        }
+        long start = System.nanoTime();
+        List<List<KafkaMetricsCollector.MetricFamily>> families = merge(collectors, c -> c.families().values());
+        ParallelCollection parallel = collectors.get(0).parallel();
+        if (parallel.isEnabled(size(collectors))) {
+            parallel.write(families, buffer, KafkaMetricsCollector::writeProtobuf);
+        } else {
+            for (List<KafkaMetricsCollector.MetricFamily> family : families) {
+                KafkaMetricsCollector.writeProtobuf(family, buffer);
+            }
+        }
+        STATS.recordCollection(start);
+    }
+
+    /**
+     * Group the families of all the collectors by name, in name order like a single collector writes them.
+     */
+    private static List<List<KafkaMetricsCollector.MetricFamily>> merge(List<KafkaMetricsCollector> collectors,
+            Function<KafkaMetricsCollector, Collection<KafkaMetricsCollector.MetricFamily>> families) {
+        Map<String, List<KafkaMetricsCollector.MetricFamily>> merged = new TreeMap<>();
+        for (KafkaMetricsCollector collector : collectors) {
+            collector.drain();
+            for (KafkaMetricsCollector.MetricFamily family : families.apply(collector)) {
+                merged.computeIfAbsent(family.name, name -> new ArrayList<>(collectors.size())).add(family);
+            }
+        }
+        return new ArrayList<>(merged.values());
+    }
+
+    private static int size(List<KafkaMetricsCollector> collectors) {
+        int size = 0;
+        for (KafkaMetricsCollector collector : collectors) {
+            size += collector.size();
+        }
+        return size;
+    }
+}
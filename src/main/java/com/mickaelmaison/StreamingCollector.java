@@ -0,0 +1,60 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mickaelmaison;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Predicate;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A collector that can render its metrics directly in the text exposition format,
+ * without building {@link io.prometheus.client.Collector.MetricFamilySamples}.
+ */
+public abstract class StreamingCollector extends Collector {
+
+    /**
+     * Write all metrics to the buffer. The output must be identical to
+     * {@link io.prometheus.client.exporter.common.TextFormat#write004} applied to {@link #collect()}.
+     */
+    public abstract void write(ExpositionBuffer buffer);
+
+    /**
+     * Write all metrics to the buffer in the delimited protobuf format. The output must be identical to
+     * {@link ProtobufFormat#write} applied to {@link #collect()}.
+     */
+    public void writeProtobuf(ExpositionBuffer buffer) {
+        ProtobufFormat.write(buffer, Collections.enumeration(collect()));
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect(Predicate<String> sampleNameFilter) {
+        if (sampleNameFilter instanceof NameSelector) {
+            return collect((NameSelector) sampleNameFilter);
+        }
+        return super.collect(sampleNameFilter);
+    }
+
+    /**
+     * Collect the families that can have samples matching the selector. By default all the metrics are collected
+     * and filtered, collectors indexing their families by name only visit the selected ones.
+     */
+    public List<MetricFamilySamples> collect(NameSelector selector) {
+        return super.collect(selector);
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mickaelmaison;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The collectors rendered by {@link MetricsHttpHandler} directly, next to the ones in the
+ * {@link io.prometheus.client.CollectorRegistry}.
+ */
+public class StreamingCollectorRegistry {
+
+    public static final StreamingCollectorRegistry defaultRegistry = new StreamingCollectorRegistry();
+
+    private final List<StreamingCollector> collectors = new CopyOnWriteArrayList<>();
+
+    public void register(StreamingCollector collector) {
+        collectors.add(collector);
+    }
+
+    public void unregister(StreamingCollector collector) {
+        collectors.remove(collector);
+    }
+
+    public void clear() {
+        collectors.clear();
+    }
+
+    public List<StreamingCollector> collectors() {
+        return collectors;
+    }
+}
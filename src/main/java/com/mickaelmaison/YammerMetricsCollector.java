@@ -24,7 +24,11 @@ import com.yammer.metrics.core.Meter;
 import com.yammer.metrics.core.Metric;
 import com.yammer.metrics.core.MetricName;
 import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.core.MetricsRegistryListener;
+import com.yammer.metrics.core.Sampling;
+import com.yammer.metrics.core.Summarizable;
 import com.yammer.metrics.core.Timer;
+import com.yammer.metrics.stats.Snapshot;
 import io.prometheus.client.Collector;
 import org.apache.kafka.server.metrics.KafkaYammerMetrics;
 import org.slf4j.Logger;
@@ -36,59 +40,361 @@ import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
-public class YammerMetricsCollector extends Collector {
+public class YammerMetricsCollector extends StreamingCollector {
 
     private static final Logger LOG = LoggerFactory.getLogger(YammerMetricsCollector.class.getName());
+    private static final MetricFamily[] NO_FAMILIES = new MetricFamily[0];
+    private static final MetricWrapper[] NO_METRICS = new MetricWrapper[0];
+    private static final ReporterMetrics.CollectorStats STATS = ReporterMetrics.INSTANCE.yammer;
 
+    private final List<RegistryIndex> indexes;
     private final List<MetricsRegistry> registries;
+    // The allowed metrics of all registries grouped by Prometheus name, so each family is only described once.
+    // They are sorted by name so filtered scrapes only visit the matching families.
+    private final ConcurrentNavigableMap<String, MetricFamily> families;
     private final PrometheusMetricsReporterConfig config;
+    private final ParallelCollection parallel;
+    private final CardinalityLimiter limiter;
+    private volatile boolean dirty;
+    private volatile MetricFamily[] snapshot = NO_FAMILIES;
+    private volatile int seriesCount;
 
     public YammerMetricsCollector(PrometheusMetricsReporterConfig config) {
         this.config = config;
+        this.parallel = new ParallelCollection(config);
+        this.limiter = new CardinalityLimiter(config);
+        this.families = new ConcurrentSkipListMap<>();
+        this.indexes = new ArrayList<>();
         this.registries = Arrays.asList(KafkaYammerMetrics.defaultRegistry(), Metrics.defaultRegistry());
+        for (MetricsRegistry registry : registries) {
+            RegistryIndex index = new RegistryIndex();
+            indexes.add(index);
+            // The listener is notified of all the existing metrics when it's added
+            registry.addListener(index);
+        }
+    }
+
+    /**
+     * Stops tracking the metrics of the global registries, which would otherwise keep notifying this collector.
+     */
+    public void close() {
+        for (int i = 0; i < registries.size(); i++) {
+            registries.get(i).removeListener(indexes.get(i));
+        }
     }
 
     @Override
     public List<MetricFamilySamples> collect() {
-        List<MetricFamilySamples> samples = new ArrayList<>();
+        long start = System.nanoTime();
+        try {
+            MetricFamily[] families = families();
+            if (parallel.isEnabled(seriesCount)) {
+                return parallel.collect(Arrays.asList(families), YammerMetricsCollector::collect);
+            }
+            List<MetricFamilySamples> samples = new ArrayList<>();
+            for (MetricFamily family : families) {
+                collect(family, samples);
+            }
+            return samples;
+        } finally {
+            STATS.recordCollection(start);
+        }
+    }
 
-        for (MetricsRegistry registry : registries) {
-            for (Map.Entry<MetricName, Metric> entry : registry.allMetrics().entrySet()) {
-                MetricName metricName = entry.getKey();
-                Metric metric = entry.getValue();
-                LOG.trace("Collecting Yammer metric {}", metricName);
-
-                String name = metricName(metricName);
-                // TODO Filtering should take labels into account
-                if (!config.isAllowed(name)) {
-                    LOG.info("Yammer metric {} is not allowed", name);
-                    continue;
-                }
-                LOG.info("Yammer metric {} is allowed", name);
-                Map<String, String> labels = labelsFromScope(metricName.getScope());
-                LOG.info("labels " + labels);
-
-                MetricFamilySamples sample = null;
-                if (metric instanceof Counter) {
-                    sample = convert(name, (Counter) metric, labels);
-                } else if (metric instanceof Gauge) {
-                    sample = convert(name, (Gauge<?>) metric, labels);
-                } else if (metric instanceof Histogram) {
-                    sample = convert(name, (Histogram) metric, labels);
-                } else if (metric instanceof Meter) {
-                    sample = convert(name, (Meter) metric, labels);
-                } else if (metric instanceof Timer) {
-                    sample = convert(name, (Timer) metric, labels);
-                } else {
-                    LOG.error("The metric " + metric.getClass().getName() + " has an unexpected type.");
-                }
-                if (sample != null) {
-                    samples.add(sample);
+    @Override
+    public List<MetricFamilySamples> collect(NameSelector selector) {
+        long start = System.nanoTime();
+        try {
+            // Refresh the series of the families
+            families();
+            List<MetricFamilySamples> samples = new ArrayList<>();
+            for (MetricFamily family : selector.select(families)) {
+                collect(family, samples);
+            }
+            return samples;
+        } finally {
+            STATS.recordCollection(start);
+        }
+    }
+
+    private static void collect(MetricFamily family, List<MetricFamilySamples> samples) {
+        if (family.rollup != null) {
+            MetricFamilySamplesBuilder builder = new MetricFamilySamplesBuilder(family.name, family.rollup.type, "");
+            STATS.recordFamily(family.rollupValues().convert(builder), 0);
+            if (!builder.isEmpty()) {
+                samples.add(builder.build());
+            }
+            return;
+        }
+        MetricFamilySamplesBuilder builder = new MetricFamilySamplesBuilder(family.name, family.converter.type, "");
+        int emitted = 0;
+        for (MetricWrapper wrapper : family.snapshot) {
+            if (wrapper.converter.convert(wrapper, builder)) {
+                emitted++;
+            }
+        }
+        int skipped = family.snapshot.length - emitted;
+        OverflowTotals totals = family.overflowTotals();
+        if (totals != null) {
+            totals.convert(builder);
+            emitted++;
+        }
+        STATS.recordFamily(emitted, skipped);
+        if (builder.isEmpty()) {
+            return;
+        }
+        samples.add(builder.build());
+        if (family.converter.sampled) {
+            MetricFamilySamplesBuilder min = new MetricFamilySamplesBuilder(family.name + "_min", Type.GAUGE, "");
+            MetricFamilySamplesBuilder max = new MetricFamilySamplesBuilder(family.name + "_max", Type.GAUGE, "");
+            for (MetricWrapper wrapper : family.snapshot) {
+                Summarizable summary = (Summarizable) wrapper.metric;
+                min.addSample(family.name + "_min", summary.min(), wrapper.labelNames, wrapper.labelValues);
+                max.addSample(family.name + "_max", summary.max(), wrapper.labelNames, wrapper.labelValues);
+            }
+            if (totals != null) {
+                min.addSample(family.name + "_min", totals.min, totals.series.labelNames, totals.series.labelValues);
+                max.addSample(family.name + "_max", totals.max, totals.series.labelNames, totals.series.labelValues);
+            }
+            samples.add(min.build());
+            samples.add(max.build());
+        }
+    }
+
+    @Override
+    public void write(ExpositionBuffer buffer) {
+        long start = System.nanoTime();
+        MetricFamily[] families = families();
+        if (parallel.isEnabled(seriesCount)) {
+            parallel.write(Arrays.asList(families), buffer, YammerMetricsCollector::write);
+        } else {
+            for (MetricFamily family : families) {
+                write(family, buffer);
+            }
+        }
+        STATS.recordCollection(start);
+    }
+
+    private static void write(MetricFamily family, ExpositionBuffer buffer) {
+        int start = buffer.size();
+        buffer.write(family.header);
+        if (family.rollup != null) {
+            int emitted = family.rollupValues().write(buffer);
+            if (emitted == 0) {
+                buffer.truncate(start);
+            }
+            STATS.recordFamily(emitted, 0);
+            return;
+        }
+        int emitted = 0;
+        for (MetricWrapper wrapper : family.snapshot) {
+            if (wrapper.converter.write(wrapper, buffer)) {
+                emitted++;
+            }
+        }
+        int skipped = family.snapshot.length - emitted;
+        OverflowTotals totals = family.overflowTotals();
+        if (totals != null) {
+            totals.write(buffer);
+            emitted++;
+        }
+        STATS.recordFamily(emitted, skipped);
+        if (emitted == 0) {
+            // None of the metrics had a value, drop the header
+            buffer.truncate(start);
+        } else if (family.converter.sampled) {
+            // Min and max are not part of summaries and histograms, they are exposed as separate gauges
+            buffer.write(family.minHeader);
+            for (MetricWrapper wrapper : family.snapshot) {
+                wrapper.writeSample(buffer, wrapper.minIndex(), ((Summarizable) wrapper.metric).min());
+            }
+            if (totals != null) {
+                totals.series.writeSample(buffer, totals.series.minIndex(), totals.min);
+            }
+            buffer.write(family.maxHeader);
+            for (MetricWrapper wrapper : family.snapshot) {
+                wrapper.writeSample(buffer, wrapper.minIndex() + 1, ((Summarizable) wrapper.metric).max());
+            }
+            if (totals != null) {
+                totals.series.writeSample(buffer, totals.series.minIndex() + 1, totals.max);
+            }
+        }
+    }
+
+    @Override
+    public void writeProtobuf(ExpositionBuffer buffer) {
+        long start = System.nanoTime();
+        MetricFamily[] families = families();
+        if (parallel.isEnabled(seriesCount)) {
+            parallel.write(Arrays.asList(families), buffer, YammerMetricsCollector::writeProtobuf);
+        } else {
+            for (MetricFamily family : families) {
+                writeProtobuf(family, buffer);
+            }
+        }
+        STATS.recordCollection(start);
+    }
+
+    private static void writeProtobuf(MetricFamily family, ExpositionBuffer buffer) {
+        int start = ProtobufFormat.startFamily(buffer, family.protobufHeader);
+        if (family.rollup != null) {
+            int emitted = family.rollupValues().writeProtobuf(buffer);
+            ProtobufFormat.endFamily(buffer, start, family.protobufHeader);
+            STATS.recordFamily(emitted, 0);
+            return;
+        }
+        int emitted = 0;
+        for (MetricWrapper wrapper : family.snapshot) {
+            if (wrapper.converter.writeProtobuf(wrapper, buffer)) {
+                emitted++;
+            }
+        }
+        int skipped = family.snapshot.length - emitted;
+        OverflowTotals totals = family.overflowTotals();
+        if (totals != null) {
+            totals.writeProtobuf(buffer);
+            emitted++;
+        }
+        ProtobufFormat.endFamily(buffer, start, family.protobufHeader);
+        STATS.recordFamily(emitted, skipped);
+        if (emitted > 0 && family.converter.sampled) {
+            start = ProtobufFormat.startFamily(buffer, family.minProtobufHeader);
+            for (MetricWrapper wrapper : family.snapshot) {
+                ProtobufFormat.writeValue(buffer, Type.GAUGE, wrapper.protobufLabels, ((Summarizable) wrapper.metric).min());
+            }
+            if (totals != null) {
+                ProtobufFormat.writeValue(buffer, Type.GAUGE, totals.series.protobufLabels, totals.min);
+            }
+            ProtobufFormat.endFamily(buffer, start, family.minProtobufHeader);
+            start = ProtobufFormat.startFamily(buffer, family.maxProtobufHeader);
+            for (MetricWrapper wrapper : family.snapshot) {
+                ProtobufFormat.writeValue(buffer, Type.GAUGE, wrapper.protobufLabels, ((Summarizable) wrapper.metric).max());
+            }
+            if (totals != null) {
+                ProtobufFormat.writeValue(buffer, Type.GAUGE, totals.series.protobufLabels, totals.max);
+            }
+            ProtobufFormat.endFamily(buffer, start, family.maxProtobufHeader);
+        }
+    }
+
+    /**
+     * The families of allowed metrics. The arrays are only rebuilt when metrics have been added or removed
+     * since the previous call.
+     */
+    private MetricFamily[] families() {
+        if (dirty) {
+            synchronized (this) {
+                if (dirty) {
+                    // Clear the flag first so changes happening while copying trigger another rebuild
+                    dirty = false;
+                    int series = 0;
+                    for (MetricFamily family : families.values()) {
+                        family.snapshot = family.series.toArray(NO_METRICS);
+                        family.overflowSnapshot = family.overflow.toArray(NO_METRICS);
+                        series += family.snapshot.length + family.overflowSnapshot.length;
+                    }
+                    snapshot = families.values().toArray(NO_FAMILIES);
+                    seriesCount = series;
                 }
             }
         }
-        return samples;
+        return snapshot;
+    }
+
+    // Guarded by this, like the limiter and the roll-up groups these updates have side effects on
+    private void addToFamily(MetricWrapper wrapper) {
+        String name = wrapper.familyName;
+        MetricFamily family = families.get(name);
+        if (family == null) {
+            family = new MetricFamily(name, wrapper.converter, wrapper.converter.sampled ? null : config.rollup(wrapper.name));
+            families.put(name, family);
+        }
+        if (family.converter.type != wrapper.converter.type) {
+            LOG.warn("Yammer metric {} is ignored as its type {} is different from the existing {} metrics with the same name",
+                    name, wrapper.converter.type, family.converter.type);
+        } else if (family.rollup != null) {
+            // Only the groups are exposed, so the series limits don't apply
+            wrapper.rollupGroup = family.rollup.group(wrapper.labelNames, wrapper.labelValues);
+            family.series.add(wrapper);
+        } else if (limiter.admit(name, wrapper.labelNames, wrapper.labelValues)) {
+            family.series.add(wrapper);
+        } else {
+            LOG.debug("Yammer metric {} is over the series limits, it is added to the {} series", name, CardinalityLimiter.OVERFLOW);
+            STATS.recordOverflow();
+            family.addOverflow(wrapper);
+        }
+        dirty = true;
+    }
+
+    // Guarded by this
+    private void removeFromFamily(MetricWrapper wrapper) {
+        String name = wrapper.familyName;
+        MetricFamily family = families.get(name);
+        if (family == null) {
+            return;
+        }
+        if (family.series.remove(wrapper)) {
+            if (family.rollup != null) {
+                family.rollup.release(wrapper.rollupGroup);
+            } else {
+                limiter.release(name, wrapper.labelNames, wrapper.labelValues);
+            }
+        } else {
+            family.overflow.remove(wrapper);
+        }
+        if (family.series.isEmpty() && family.overflow.isEmpty()) {
+            families.remove(name);
+        }
+        dirty = true;
+    }
+
+    private MetricWrapper wrap(MetricName metricName, Metric metric) {
+        long start = System.nanoTime();
+        try {
+            return wrap(metricName, metric, metricName(metricName));
+        } finally {
+            ReporterMetrics.INSTANCE.recordStage(ReporterMetrics.Stage.REGISTRATION, System.nanoTime() - start);
+        }
+    }
+
+    private MetricWrapper wrap(MetricName metricName, Metric metric, String name) {
+        // TODO Filtering should take labels into account
+        if (!config.isAllowed(name)) {
+            LOG.debug("Yammer metric {} is not allowed", name);
+            STATS.recordDropped();
+            return null;
+        }
+        LOG.debug("Yammer metric {} is allowed", name);
+
+        double[] buckets = config.histogramBuckets(name);
+        Converter converter;
+        if (metric instanceof Counter) {
+            converter = Converter.COUNTER;
+        } else if (metric instanceof Gauge) {
+            converter = Converter.GAUGE;
+        } else if (metric instanceof Histogram) {
+            converter = buckets != null ? Converter.BUCKETED_HISTOGRAM : Converter.HISTOGRAM;
+        } else if (metric instanceof Meter) {
+            converter = Converter.METER;
+        } else if (metric instanceof Timer) {
+            converter = buckets != null ? Converter.BUCKETED_TIMER : Converter.TIMER;
+        } else {
+            LOG.error("The metric " + metric.getClass().getName() + " has an unexpected type.");
+            return null;
+        }
+        Map<String, String> labels = labelsFromScope(metricName.getScope());
+        return new MetricWrapper(metric, name,
+                new ArrayList<>(labels.keySet()),
+                new ArrayList<>(labels.values()),
+                converter,
+                converter.type == Type.SUMMARY ? config.quantiles(name) : Quantiles.NONE,
+                converter.type == Type.HISTOGRAM ? buckets : null,
+                converter == Converter.GAUGE ? config.cachedValue(name, ((Gauge<?>) metric)::value) : null);
     }
 
     static String metricName(MetricName metricName) {
@@ -97,7 +403,7 @@ public class YammerMetricsCollector extends Collector {
                 metricName.getGroup() + '_' +
                 metricName.getType() + '_' +
                 metricName.getName()).toLowerCase();
-        LOG.info("metricName group {}, type {}, name {} converted into {}", metricName.getGroup(), metricName.getType(), metricName.getName(), metricNameStr);
+        LOG.debug("metricName group {}, type {}, name {} converted into {}", metricName.getGroup(), metricName.getType(), metricName.getName(), metricNameStr);
         return metricNameStr;
     }
 
@@ -115,41 +421,579 @@ public class YammerMetricsCollector extends Collector {
         return Collections.emptyMap();
     }
 
-    static MetricFamilySamples convert(String name, Counter counter, Map<String, String> labels) {
-        return new MetricFamilySamplesBuilder(Type.GAUGE, "")
-                .addSample(name + "_count", counter.count(), labels)
-                .build();
+    static void convert(MetricFamilySamplesBuilder builder, String name, Counter counter, List<String> labelNames, List<String> labelValues) {
+        builder.addSample(name + "_count", counter.count(), labelNames, labelValues);
     }
 
-    static MetricFamilySamples convert(String name, Gauge<?> gauge, Map<String, String> labels) {
-        Object value = gauge.value();
-        if (!(value instanceof Number)) {
+    static boolean convert(MetricFamilySamplesBuilder builder, String name, long value, List<String> labelNames, List<String> labelValues) {
+        if (!CachedValue.isNumeric(value)) {
             // Prometheus only accepts numeric metrics.
             // Some Kafka gauges have string values (for example kafka.server:type=KafkaServer,name=ClusterId), so skip them
-            return null;
+            return false;
         }
-        return new MetricFamilySamplesBuilder(Type.GAUGE, "")
-                .addSample(name, ((Number) value).doubleValue(), labels)
-                .build();
+        builder.addSample(name, Double.longBitsToDouble(value), labelNames, labelValues);
+        return true;
     }
 
-    static MetricFamilySamples convert(String name, Meter meter, Map<String, String> labels) {
-        return new MetricFamilySamplesBuilder(Type.COUNTER, "")
-                .addSample(name + "_count", meter.count(), labels)
-                .build();
+    static void convert(MetricFamilySamplesBuilder builder, String name, Meter meter, List<String> labelNames, List<String> labelValues) {
+        builder.addSample(name + "_count", meter.count(), labelNames, labelValues);
     }
 
-    static MetricFamilySamples convert(String name, Histogram histogram, Map<String, String> labels) {
-        return new MetricFamilySamplesBuilder(Type.SUMMARY, "")
-                .addSample(name + "_count", histogram.count(), labels)
-                .addQuantileSamples(name, histogram.getSnapshot(), labels)
-                .build();
+    static void convert(MetricFamilySamplesBuilder builder, MetricWrapper w, long count, Summarizable summary, Sampling sampling) {
+        builder.addSample(w.name + "_count", count, w.labelNames, w.labelValues)
+                .addSample(w.name + "_sum", summary.sum(), w.labelNames, w.labelValues);
+        if (w.quantiles.size() > 0) {
+            // Taking a snapshot copies and sorts the reservoir, so it's skipped when there are no quantiles
+            builder.addQuantileSamples(w.name, sampling.getSnapshot(), w.quantiles, w.boundLabelNames, w.boundLabelValues);
+        }
     }
 
-    static MetricFamilySamples convert(String name, Timer metric, Map<String, String> labels) {
-        return new MetricFamilySamplesBuilder(Type.SUMMARY, "")
-                .addSample(name + "_count", metric.count(), labels)
-                .addQuantileSamples(name, metric.getSnapshot(), labels)
-                .build();
+    static void convertBuckets(MetricFamilySamplesBuilder builder, MetricWrapper w, long count, Summarizable summary, Sampling sampling) {
+        synchronized (w.buckets) {
+            w.buckets.update(count, sampling);
+            long cumulative = 0;
+            for (int i = 0; i < w.buckets.counts.length; i++) {
+                cumulative += w.buckets.counts[i];
+                builder.addSample(w.name + "_bucket", cumulative, w.boundLabelNames, w.boundLabelValues.get(i));
+            }
+            builder.addSample(w.name + "_count", w.buckets.count, w.labelNames, w.labelValues)
+                    .addSample(w.name + "_sum", summary.sum(), w.labelNames, w.labelValues);
+        }
+    }
+
+    /**
+     * Yammer metric with its Prometheus name, labels and conversion, computed once when the metric is registered.
+     */
+    static final class MetricWrapper {
+
+        final Metric metric;
+        final String name;
+        final List<String> labelNames;
+        final List<String> labelValues;
+        final Converter converter;
+        final String familyName;
+        final Quantiles quantiles;
+        // Only set for the metrics exposed as histograms
+        final HistogramBuckets buckets;
+        // The labels of each quantile or bucket sample, with the quantile or le label appended
+        final List<String> boundLabelNames;
+        final List<List<String>> boundLabelValues;
+        // The first prefix is for the main sample. Histograms and timers are followed by _sum, one per quantile
+        // or bucket, _min and _max
+        final byte[][] samplePrefixes;
+        final byte[] protobufLabels;
+        // Only set for the gauges of a refresh tier, or when metrics have a timeout
+        final CachedValue cache;
+        // Index of the roll-up group, assigned before the wrapper is added to its family
+        Rollup.Group rollupGroup;
+
+        MetricWrapper(Metric metric, String name, List<String> labelNames, List<String> labelValues, Converter converter,
+                      Quantiles quantiles, double[] buckets, CachedValue cache) {
+            this.metric = metric;
+            this.cache = cache;
+            this.name = name;
+            this.labelNames = labelNames;
+            this.labelValues = labelValues;
+            this.converter = converter;
+            this.quantiles = quantiles;
+            this.buckets = buckets != null ? new HistogramBuckets(buckets) : null;
+
+            // Summaries and histograms are named after their base name, other families after their only sample
+            this.familyName = converter.sampled ? name : name + converter.suffix;
+            // Like MetricFamilySamples, counters get the _total suffix
+            String sampleName = converter.type == Type.COUNTER ? name + converter.suffix + "_total" : name + converter.suffix;
+            if (!converter.sampled) {
+                this.boundLabelNames = null;
+                this.boundLabelValues = null;
+                this.samplePrefixes = new byte[][] {ExpositionBuffer.samplePrefix(sampleName, labelNames, labelValues)};
+            } else {
+                String boundSampleName;
+                List<String> bounds = new ArrayList<>();
+                List<String> boundLabelNames = new ArrayList<>(labelNames);
+                if (buckets != null) {
+                    boundSampleName = name + "_bucket";
+                    boundLabelNames.add("le");
+                    for (double bound : buckets) {
+                        bounds.add(Collector.doubleToGoString(bound));
+                    }
+                    bounds.add("+Inf");
+                } else {
+                    boundSampleName = name;
+                    boundLabelNames.add("quantile");
+                    bounds.addAll(Arrays.asList(quantiles.labels));
+                }
+                this.boundLabelNames = boundLabelNames;
+                this.boundLabelValues = new ArrayList<>(bounds.size());
+                this.samplePrefixes = new byte[4 + bounds.size()][];
+                samplePrefixes[0] = ExpositionBuffer.samplePrefix(sampleName, labelNames, labelValues);
+                samplePrefixes[1] = ExpositionBuffer.samplePrefix(name + "_sum", labelNames, labelValues);
+                for (int i = 0; i < bounds.size(); i++) {
+                    List<String> values = new ArrayList<>(labelValues);
+                    values.add(bounds.get(i));
+                    boundLabelValues.add(values);
+                    samplePrefixes[2 + i] = ExpositionBuffer.samplePrefix(boundSampleName, boundLabelNames, values);
+                }
+                samplePrefixes[minIndex()] = ExpositionBuffer.samplePrefix(name + "_min", labelNames, labelValues);
+                samplePrefixes[minIndex() + 1] = ExpositionBuffer.samplePrefix(name + "_max", labelNames, labelValues);
+            }
+            this.protobufLabels = ProtobufFormat.labels(labelNames, labelValues);
+        }
+
+        int minIndex() {
+            return samplePrefixes.length - 2;
+        }
+
+        /**
+         * The value of a gauge as the bits of a double, or {@link CachedValue#NOT_NUMERIC}.
+         */
+        long gaugeValue() {
+            return cache != null ? cache.get(STATS) : CachedValue.bits(((Gauge<?>) metric).value());
+        }
+
+        void writeSample(ExpositionBuffer buffer, int index, double value) {
+            buffer.write(samplePrefixes[index]);
+            buffer.writeDouble(value);
+            buffer.write('\n');
+        }
+
+        void writeSummary(ExpositionBuffer buffer, long count, Summarizable summary, Sampling sampling) {
+            writeSample(buffer, 0, count);
+            writeSample(buffer, 1, summary.sum());
+            if (quantiles.size() > 0) {
+                Snapshot snapshot = sampling.getSnapshot();
+                for (int i = 0; i < quantiles.size(); i++) {
+                    writeSample(buffer, 2 + i, snapshot.getValue(quantiles.values[i]));
+                }
+            }
+        }
+
+        void writeHistogram(ExpositionBuffer buffer, long count, Summarizable summary, Sampling sampling) {
+            synchronized (buckets) {
+                buckets.update(count, sampling);
+                long cumulative = 0;
+                for (int i = 0; i < buckets.counts.length; i++) {
+                    cumulative += buckets.counts[i];
+                    writeSample(buffer, 2 + i, cumulative);
+                }
+                writeSample(buffer, 0, buckets.count);
+                writeSample(buffer, 1, summary.sum());
+            }
+        }
+
+        void writeValue(ExpositionBuffer buffer, double value) {
+            ProtobufFormat.writeValue(buffer, converter.type, protobufLabels, value);
+        }
+
+        void writeProtobufSummary(ExpositionBuffer buffer, long count, Summarizable summary, Sampling sampling) {
+            ProtobufFormat.startSummary(buffer, protobufLabels, count, summary.sum(), quantiles.size());
+            if (quantiles.size() > 0) {
+                Snapshot snapshot = sampling.getSnapshot();
+                for (int i = 0; i < quantiles.size(); i++) {
+                    ProtobufFormat.writeQuantile(buffer, quantiles.values[i], snapshot.getValue(quantiles.values[i]));
+                }
+            }
+        }
+
+        void writeProtobufHistogram(ExpositionBuffer buffer, long count, Summarizable summary, Sampling sampling) {
+            synchronized (buckets) {
+                buckets.update(count, sampling);
+                ProtobufFormat.writeHistogram(buffer, protobufLabels, buckets.count, summary.sum(), buckets.bounds, buckets.counts);
+            }
+        }
+    }
+
+    enum Converter {
+        // Yammer counters can be decremented, so unlike meters they are not Prometheus counters
+        COUNTER(Type.GAUGE, "_count") {
+            @Override
+            double value(MetricWrapper w) {
+                return ((Counter) w.metric).count();
+            }
+
+            @Override
+            boolean convert(MetricWrapper w, MetricFamilySamplesBuilder builder) {
+                YammerMetricsCollector.convert(builder, w.name, (Counter) w.metric, w.labelNames, w.labelValues);
+                return true;
+            }
+
+            @Override
+            boolean write(MetricWrapper w, ExpositionBuffer buffer) {
+                w.writeSample(buffer, 0, ((Counter) w.metric).count());
+                return true;
+            }
+
+            @Override
+            boolean writeProtobuf(MetricWrapper w, ExpositionBuffer buffer) {
+                w.writeValue(buffer, ((Counter) w.metric).count());
+                return true;
+            }
+        },
+        GAUGE(Type.GAUGE, "") {
+            @Override
+            double value(MetricWrapper w) {
+                long value = w.gaugeValue();
+                return CachedValue.isNumeric(value) ? Double.longBitsToDouble(value) : Double.NaN;
+            }
+
+            @Override
+            boolean convert(MetricWrapper w, MetricFamilySamplesBuilder builder) {
+                return YammerMetricsCollector.convert(builder, w.name, w.gaugeValue(), w.labelNames, w.labelValues);
+            }
+
+            @Override
+            boolean write(MetricWrapper w, ExpositionBuffer buffer) {
+                long value = w.gaugeValue();
+                if (CachedValue.isNumeric(value)) {
+                    w.writeSample(buffer, 0, Double.longBitsToDouble(value));
+                    return true;
+                }
+                return false;
+            }
+
+            @Override
+            boolean writeProtobuf(MetricWrapper w, ExpositionBuffer buffer) {
+                long value = w.gaugeValue();
+                if (CachedValue.isNumeric(value)) {
+                    w.writeValue(buffer, Double.longBitsToDouble(value));
+                    return true;
+                }
+                return false;
+            }
+        },
+        METER(Type.COUNTER, "_count") {
+            @Override
+            double value(MetricWrapper w) {
+                return ((Meter) w.metric).count();
+            }
+
+            @Override
+            boolean convert(MetricWrapper w, MetricFamilySamplesBuilder builder) {
+                YammerMetricsCollector.convert(builder, w.name, (Meter) w.metric, w.labelNames, w.labelValues);
+                return true;
+            }
+
+            @Override
+            boolean write(MetricWrapper w, ExpositionBuffer buffer) {
+                w.writeSample(buffer, 0, ((Meter) w.metric).count());
+                return true;
+            }
+
+            @Override
+            boolean writeProtobuf(MetricWrapper w, ExpositionBuffer buffer) {
+                w.writeValue(buffer, ((Meter) w.metric).count());
+                return true;
+            }
+        },
+        HISTOGRAM(Type.SUMMARY, "_count") {
+            @Override
+            boolean convert(MetricWrapper w, MetricFamilySamplesBuilder builder) {
+                Histogram histogram = (Histogram) w.metric;
+                YammerMetricsCollector.convert(builder, w, histogram.count(), histogram, histogram);
+                return true;
+            }
+
+            @Override
+            boolean write(MetricWrapper w, ExpositionBuffer buffer) {
+                Histogram histogram = (Histogram) w.metric;
+                w.writeSummary(buffer, histogram.count(), histogram, histogram);
+                return true;
+            }
+
+            @Override
+            boolean writeProtobuf(MetricWrapper w, ExpositionBuffer buffer) {
+                Histogram histogram = (Histogram) w.metric;
+                w.writeProtobufSummary(buffer, histogram.count(), histogram, histogram);
+                return true;
+            }
+        },
+        TIMER(Type.SUMMARY, "_count") {
+            @Override
+            boolean convert(MetricWrapper w, MetricFamilySamplesBuilder builder) {
+                Timer timer = (Timer) w.metric;
+                YammerMetricsCollector.convert(builder, w, timer.count(), timer, timer);
+                return true;
+            }
+
+            @Override
+            boolean write(MetricWrapper w, ExpositionBuffer buffer) {
+                Timer timer = (Timer) w.metric;
+                w.writeSummary(buffer, timer.count(), timer, timer);
+                return true;
+            }
+
+            @Override
+            boolean writeProtobuf(MetricWrapper w, ExpositionBuffer buffer) {
+                Timer timer = (Timer) w.metric;
+                w.writeProtobufSummary(buffer, timer.count(), timer, timer);
+                return true;
+            }
+        },
+        BUCKETED_HISTOGRAM(Type.HISTOGRAM, "_count") {
+            @Override
+            boolean convert(MetricWrapper w, MetricFamilySamplesBuilder builder) {
+                Histogram histogram = (Histogram) w.metric;
+                YammerMetricsCollector.convertBuckets(builder, w, histogram.count(), histogram, histogram);
+                return true;
+            }
+
+            @Override
+            boolean write(MetricWrapper w, ExpositionBuffer buffer) {
+                Histogram histogram = (Histogram) w.metric;
+                w.writeHistogram(buffer, histogram.count(), histogram, histogram);
+                return true;
+            }
+
+            @Override
+            boolean writeProtobuf(MetricWrapper w, ExpositionBuffer buffer) {
+                Histogram histogram = (Histogram) w.metric;
+                w.writeProtobufHistogram(buffer, histogram.count(), histogram, histogram);
+                return true;
+            }
+        },
+        BUCKETED_TIMER(Type.HISTOGRAM, "_count") {
+            @Override
+            boolean convert(MetricWrapper w, MetricFamilySamplesBuilder builder) {
+                Timer timer = (Timer) w.metric;
+                YammerMetricsCollector.convertBuckets(builder, w, timer.count(), timer, timer);
+                return true;
+            }
+
+            @Override
+            boolean write(MetricWrapper w, ExpositionBuffer buffer) {
+                Timer timer = (Timer) w.metric;
+                w.writeHistogram(buffer, timer.count(), timer, timer);
+                return true;
+            }
+
+            @Override
+            boolean writeProtobuf(MetricWrapper w, ExpositionBuffer buffer) {
+                Timer timer = (Timer) w.metric;
+                w.writeProtobufHistogram(buffer, timer.count(), timer, timer);
+                return true;
+            }
+        };
+
+        // Type of the metric family and name suffix of the main sample
+        final Type type;
+        final String suffix;
+        // Histograms and timers, exposed as summaries or histograms
+        final boolean sampled;
+
+        Converter(Type type, String suffix) {
+            this.type = type;
+            this.suffix = suffix;
+            this.sampled = type == Type.SUMMARY || type == Type.HISTOGRAM;
+        }
+
+        /**
+         * The value of a metric with a single sample, NaN if it's not numeric. Only used by roll-ups, which ignore
+         * histograms and timers as they have more than one value.
+         */
+        double value(MetricWrapper wrapper) {
+            return Double.NaN;
+        }
+
+        // These return whether the metric had a value that could be exposed
+        abstract boolean convert(MetricWrapper wrapper, MetricFamilySamplesBuilder builder);
+
+        abstract boolean write(MetricWrapper wrapper, ExpositionBuffer buffer);
+
+        abstract boolean writeProtobuf(MetricWrapper wrapper, ExpositionBuffer buffer);
+    }
+
+    /**
+     * All the allowed metrics sharing the same Prometheus name.
+     */
+    static final class MetricFamily {
+
+        final String name;
+        final Converter converter;
+        final Rollup rollup;
+        final byte[] header;
+        final byte[] protobufHeader;
+        // The gauges exposing the min and max of histograms and timers
+        final byte[] minHeader;
+        final byte[] maxHeader;
+        final byte[] minProtobufHeader;
+        final byte[] maxProtobufHeader;
+        final Set<MetricWrapper> series = ConcurrentHashMap.newKeySet();
+        volatile MetricWrapper[] snapshot = NO_METRICS;
+        // The metrics over the series limits, exposed as a single series
+        final Set<MetricWrapper> overflow = ConcurrentHashMap.newKeySet();
+        volatile MetricWrapper[] overflowSnapshot = NO_METRICS;
+        volatile MetricWrapper overflowSeries;
+
+        MetricFamily(String name, Converter converter, Rollup.Rule rule) {
+            this.name = name;
+            this.converter = converter;
+            this.rollup = rule != null ? new Rollup(rule, name, converter.type) : null;
+            Type type = rollup != null ? rollup.type : converter.type;
+            this.header = ExpositionBuffer.header(name, type, "");
+            this.protobufHeader = ProtobufFormat.familyHeader(name, type, "");
+            boolean sampled = converter.sampled;
+            this.minHeader = sampled ? ExpositionBuffer.header(name + "_min", Type.GAUGE, "") : null;
+            this.maxHeader = sampled ? ExpositionBuffer.header(name + "_max", Type.GAUGE, "") : null;
+            this.minProtobufHeader = sampled ? ProtobufFormat.familyHeader(name + "_min", Type.GAUGE, "") : null;
+            this.maxProtobufHeader = sampled ? ProtobufFormat.familyHeader(name + "_max", Type.GAUGE, "") : null;
+        }
+
+        Rollup.Values rollupValues() {
+            Rollup.Values values = rollup.values();
+            for (MetricWrapper wrapper : snapshot) {
+                values.add(wrapper.rollupGroup, wrapper.converter.value(wrapper));
+            }
+            return values;
+        }
+
+        void addOverflow(MetricWrapper wrapper) {
+            if (overflowSeries == null) {
+                List<String> values = Collections.nCopies(wrapper.labelNames.size(), CardinalityLimiter.OVERFLOW);
+                // Quantiles can't be summed, so the overflow series of summaries only has the count and sum
+                overflowSeries = new MetricWrapper(null, wrapper.name, wrapper.labelNames, values, converter, Quantiles.NONE,
+                        wrapper.buckets != null ? wrapper.buckets.bounds : null, null);
+            }
+            overflow.add(wrapper);
+        }
+
+        /**
+         * The totals of the metrics over the series limits, or null if there are none with a numeric value.
+         */
+        OverflowTotals overflowTotals() {
+            MetricWrapper[] overflow = overflowSnapshot;
+            if (overflow.length == 0) {
+                return null;
+            }
+            OverflowTotals totals = new OverflowTotals(overflowSeries);
+            for (MetricWrapper wrapper : overflow) {
+                totals.add(wrapper);
+            }
+            return totals.numeric ? totals : null;
+        }
+    }
+
+    /**
+     * The sum of the metrics of a family over the series limits. Histograms and timers add up their counts,
+     * sums and bucket counts, and keep the lowest min and highest max.
+     */
+    static final class OverflowTotals {
+
+        final MetricWrapper series;
+        final long[] buckets;
+        double value;
+        double sum;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        boolean numeric;
+
+        OverflowTotals(MetricWrapper series) {
+            this.series = series;
+            this.buckets = series.buckets != null ? new long[series.buckets.counts.length] : null;
+        }
+
+        void add(MetricWrapper wrapper) {
+            Metric metric = wrapper.metric;
+            if (metric instanceof Gauge) {
+                long gaugeValue = wrapper.gaugeValue();
+                if (!CachedValue.isNumeric(gaugeValue)) {
+                    return;
+                }
+                value += Double.longBitsToDouble(gaugeValue);
+            } else if (metric instanceof Counter) {
+                value += ((Counter) metric).count();
+            } else if (metric instanceof Histogram || metric instanceof Timer) {
+                long count = metric instanceof Histogram ? ((Histogram) metric).count() : ((Timer) metric).count();
+                if (buckets != null) {
+                    synchronized (wrapper.buckets) {
+                        wrapper.buckets.update(count, (Sampling) metric);
+                        for (int i = 0; i < buckets.length; i++) {
+                            buckets[i] += wrapper.buckets.counts[i];
+                        }
+                        count = wrapper.buckets.count;
+                    }
+                }
+                Summarizable summary = (Summarizable) metric;
+                value += count;
+                sum += summary.sum();
+                min = Math.min(min, summary.min());
+                max = Math.max(max, summary.max());
+            } else if (metric instanceof Meter) {
+                value += ((Meter) metric).count();
+            }
+            numeric = true;
+        }
+
+        void convert(MetricFamilySamplesBuilder builder) {
+            MetricWrapper w = series;
+            if (!w.converter.sampled) {
+                builder.addSample(w.name + w.converter.suffix, value, w.labelNames, w.labelValues);
+                return;
+            }
+            if (buckets != null) {
+                long cumulative = 0;
+                for (int i = 0; i < buckets.length; i++) {
+                    cumulative += buckets[i];
+                    builder.addSample(w.name + "_bucket", cumulative, w.boundLabelNames, w.boundLabelValues.get(i));
+                }
+            }
+            builder.addSample(w.name + "_count", value, w.labelNames, w.labelValues)
+                    .addSample(w.name + "_sum", sum, w.labelNames, w.labelValues);
+        }
+
+        void write(ExpositionBuffer buffer) {
+            if (buckets != null) {
+                long cumulative = 0;
+                for (int i = 0; i < buckets.length; i++) {
+                    cumulative += buckets[i];
+                    series.writeSample(buffer, 2 + i, cumulative);
+                }
+            }
+            series.writeSample(buffer, 0, value);
+            if (series.converter.sampled) {
+                series.writeSample(buffer, 1, sum);
+            }
+        }
+
+        void writeProtobuf(ExpositionBuffer buffer) {
+            if (buckets != null) {
+                ProtobufFormat.writeHistogram(buffer, series.protobufLabels, (long) value, sum, series.buckets.bounds, buckets);
+            } else if (series.converter.sampled) {
+                ProtobufFormat.startSummary(buffer, series.protobufLabels, (long) value, sum, 0);
+            } else {
+                series.writeValue(buffer, value);
+            }
+        }
+    }
+
+    /**
+     * Keeps the allowed metrics of a registry up to date as metrics are added and removed.
+     */
+    private class RegistryIndex implements MetricsRegistryListener {
+
+        private final Map<MetricName, MetricWrapper> metrics = new ConcurrentHashMap<>();
+
+        @Override
+        public void onMetricAdded(MetricName name, Metric metric) {
+            MetricWrapper wrapper = wrap(name, metric);
+            if (wrapper != null) {
+                // Metrics are registered from many threads, the families are updated one metric at a time
+                synchronized (YammerMetricsCollector.this) {
+                    MetricWrapper previous = metrics.put(name, wrapper);
+                    if (previous != null) {
+                        removeFromFamily(previous);
+                    }
+                    addToFamily(wrapper);
+                }
+            }
+        }
+
+        @Override
+        public void onMetricRemoved(MetricName name) {
+            synchronized (YammerMetricsCollector.this) {
+                MetricWrapper previous = metrics.remove(name);
+                if (previous != null) {
+                    removeFromFamily(previous);
+                }
+            }
+        }
     }
 }
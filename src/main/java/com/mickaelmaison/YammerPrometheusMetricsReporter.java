@@ -16,7 +16,6 @@
  */
 package com.mickaelmaison;
 
-import io.prometheus.client.CollectorRegistry;
 import kafka.metrics.KafkaMetricsReporter;
 import kafka.utils.VerifiableProperties;
 import org.slf4j.Logger;
@@ -26,12 +25,26 @@ public class YammerPrometheusMetricsReporter implements KafkaMetricsReporter {
 
     private static final Logger LOG = LoggerFactory.getLogger(YammerPrometheusMetricsReporter.class.getName());
 
+    private PrometheusMetricsReporterConfig config;
+    private YammerMetricsCollector collector;
+
     @Override
     public void init(VerifiableProperties props) {
         LOG.info(">>> in init() yammer");
-        PrometheusMetricsReporterConfig config = new PrometheusMetricsReporterConfig(props.props());
-        LOG.info("yammer defaultRegistry" + CollectorRegistry.defaultRegistry);
-        CollectorRegistry.defaultRegistry.register(new YammerMetricsCollector(config));
+        config = new PrometheusMetricsReporterConfig(props.props());
+        collector = new YammerMetricsCollector(config);
+        config.register(collector);
+    }
+
+    /**
+     * Unregisters the collector. Kafka never stops its Yammer reporters, this is for embedding applications and tests.
+     */
+    public void close() {
+        if (collector != null) {
+            config.unregister(collector);
+            collector.close();
+            collector = null;
+        }
     }
 
 }
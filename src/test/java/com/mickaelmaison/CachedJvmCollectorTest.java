@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mickaelmaison;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.hotspot.BufferPoolsExports;
+import io.prometheus.client.hotspot.ClassLoadingExports;
+import io.prometheus.client.hotspot.ThreadExports;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CachedJvmCollectorTest {
+
+    @Test
+    public void testSameSeriesAsHotspot() {
+        assertEquals(series(new ThreadExports()), series(started(new CachedJvmCollector.Threads())));
+        assertEquals(series(new BufferPoolsExports()), series(started(new CachedJvmCollector.BufferPools())));
+        assertEquals(series(new ClassLoadingExports()), series(started(new CachedJvmCollector.ClassLoading())));
+    }
+
+    @Test
+    public void testRefresh() throws Exception {
+        CachedJvmCollector.Threads collector = new CachedJvmCollector.Threads();
+        collector.start(20);
+        try {
+            double started = value(collector, "jvm_threads_started_total");
+            assertTrue(started > 0);
+            Thread thread = new Thread(() -> { });
+            thread.start();
+            thread.join();
+            // Scrapes get the cached value until the background thread reads it again
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (value(collector, "jvm_threads_started_total") == started && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(value(collector, "jvm_threads_started_total") > started);
+        } finally {
+            collector.stop();
+        }
+    }
+
+    private static CachedJvmCollector started(CachedJvmCollector collector) {
+        collector.start(60_000);
+        collector.stop();
+        return collector;
+    }
+
+    private static List<String> series(Collector collector) {
+        List<String> series = new ArrayList<>();
+        for (Collector.MetricFamilySamples family : collector.collect()) {
+            for (Collector.MetricFamilySamples.Sample sample : family.samples) {
+                series.add(family.type + " " + family.help + " " + sample.name + sample.labelNames + sample.labelValues);
+            }
+        }
+        // ThreadExports orders the states by hash
+        Collections.sort(series);
+        return series;
+    }
+
+    private static double value(Collector collector, String name) {
+        for (Collector.MetricFamilySamples family : collector.collect()) {
+            for (Collector.MetricFamilySamples.Sample sample : family.samples) {
+                if (sample.name.equals(name)) {
+                    return sample.value;
+                }
+            }
+        }
+        throw new AssertionError("No sample " + name);
+    }
+}
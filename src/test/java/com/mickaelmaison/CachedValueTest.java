@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mickaelmaison;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CachedValueTest {
+
+    private final ReporterMetrics.CollectorStats stats = new ReporterMetrics.CollectorStats("test");
+
+    @Test
+    public void testCaching() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CachedValue value = new CachedValue("test", calls::incrementAndGet, 50, 0);
+        assertEquals(1.0, Double.longBitsToDouble(value.get(stats)), 0);
+        assertEquals(1.0, Double.longBitsToDouble(value.get(stats)), 0);
+        assertEquals(1, calls.get());
+        assertEquals(1, stats.cachedValues.sum());
+        assertTrue(stats.cachedAgeNanos.sum() > 0);
+
+        Thread.sleep(60);
+        assertEquals(2.0, Double.longBitsToDouble(value.get(stats)), 0);
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void testNonNumeric() {
+        long bits = new CachedValue("test", () -> "value", 1000, 0).get(stats);
+        assertEquals(CachedValue.NOT_NUMERIC, bits);
+        assertFalse(CachedValue.isNumeric(bits));
+
+        // NaN is a numeric value
+        bits = new CachedValue("test", () -> Double.NaN, 1000, 0).get(stats);
+        assertTrue(CachedValue.isNumeric(bits));
+        assertTrue(Double.isNaN(Double.longBitsToDouble(bits)));
+        assertTrue(CachedValue.isNumeric(CachedValue.bits(Double.longBitsToDouble(CachedValue.NOT_NUMERIC))));
+    }
+
+    @Test
+    public void testSlowMetric() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch blocked = new CountDownLatch(1);
+        // The gauge blocks on its very first call, like one waiting on a lock held by the broker
+        CachedValue value = new CachedValue("test", () -> {
+            int call = calls.incrementAndGet();
+            try {
+                blocked.await();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            return call;
+        }, 0, 50);
+
+        // The evaluation runs on a separate thread, so scrapes stop waiting and omit the metric as it has no value yet
+        long start = System.nanoTime();
+        assertEquals(CachedValue.NOT_NUMERIC, value.get(stats));
+        assertEquals(CachedValue.NOT_NUMERIC, value.get(stats));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertEquals(2, stats.deadlineMissed.sum());
+        // Only one evaluation runs at a time
+        assertEquals(1, calls.get());
+
+        blocked.countDown();
+        long bits = value.get(stats);
+        while (!CachedValue.isNumeric(bits)) {
+            bits = value.get(stats);
+        }
+        assertTrue(Double.longBitsToDouble(bits) >= 1);
+    }
+
+    @Test
+    public void testCollectionDeadline() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch blocked = new CountDownLatch(1);
+        CachedValue value = new CachedValue("test", () -> {
+            calls.incrementAndGet();
+            try {
+                blocked.await();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            return 1;
+        }, 3600000, 60000);
+
+        CollectionDeadline.set(System.nanoTime() - 1);
+        try {
+            // The deadline has passed and there is no value yet, so the metric is omitted
+            assertEquals(CachedValue.NOT_NUMERIC, value.get(stats));
+            assertEquals(1, stats.deadlineMissed.sum());
+            // Nothing is evaluated for a scrape already out of time
+            assertEquals(0, calls.get());
+        } finally {
+            CollectionDeadline.set(CollectionDeadline.NONE);
+        }
+
+        blocked.countDown();
+        assertEquals(1.0, Double.longBitsToDouble(value.get(stats)), 0);
+    }
+}
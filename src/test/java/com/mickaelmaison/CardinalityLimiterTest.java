@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mickaelmaison;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CardinalityLimiterTest {
+
+    private static final List<String> NAMES = Collections.singletonList("topic");
+
+    @Test
+    public void testLimits() {
+        CardinalityLimiter limiter = new CardinalityLimiter(2, 3);
+        assertTrue(limiter.admit("a", NAMES, values("t0")));
+        assertTrue(limiter.admit("a", NAMES, values("t1")));
+        assertFalse(limiter.admit("a", NAMES, values("t2")));
+        // Already admitted
+        assertTrue(limiter.admit("a", NAMES, values("t0")));
+        assertTrue(limiter.admit("b", NAMES, values("t0")));
+        assertFalse(limiter.admit("c", NAMES, values("t0")));
+        assertEquals(3, limiter.size());
+
+        limiter.release("a", NAMES, values("t0"));
+        // Releasing a series that wasn't admitted does nothing
+        limiter.release("a", NAMES, values("t2"));
+        assertEquals(2, limiter.size());
+        assertTrue(limiter.admit("a", NAMES, values("t2")));
+        assertFalse(limiter.admit("a", NAMES, values("t3")));
+    }
+
+    @Test
+    public void testManySeries() {
+        CardinalityLimiter limiter = new CardinalityLimiter(Integer.MAX_VALUE, Integer.MAX_VALUE);
+        List<List<String>> series = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            series.add(values("topic" + i));
+            assertTrue(limiter.admit("family", NAMES, series.get(i)));
+        }
+        assertEquals(10000, limiter.size());
+        // Remove every other series, the remaining ones must still be found after the entries were shifted
+        for (int i = 0; i < series.size(); i += 2) {
+            limiter.release("family", NAMES, series.get(i));
+        }
+        assertEquals(5000, limiter.size());
+        for (int i = 1; i < series.size(); i += 2) {
+            limiter.release("family", NAMES, series.get(i));
+        }
+        assertEquals(0, limiter.size());
+    }
+
+    private static List<String> values(String value) {
+        return Collections.singletonList(value);
+    }
+}
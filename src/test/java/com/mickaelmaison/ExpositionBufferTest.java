@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mickaelmaison;
+
+import io.prometheus.client.Collector;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ExpositionBufferTest {
+
+    @Test
+    public void testWriteDouble() {
+        double[] values = {0.0, -0.0, 1.0, -1.0, 42.0, 9999999.0, 1e7, -1e7, 123456789.0, 0.5, 1e-3, 1e-4,
+                Math.PI, Long.MAX_VALUE, Long.MIN_VALUE, Double.MAX_VALUE, Double.MIN_VALUE,
+                Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        for (double value : values) {
+            ExpositionBuffer buffer = new ExpositionBuffer();
+            buffer.writeDouble(value);
+            assertEquals(Collector.doubleToGoString(value), toString(buffer));
+        }
+    }
+
+    @Test
+    public void testWriteLong() {
+        long[] values = {0, 1, -1, 10, 1234567890L, Long.MAX_VALUE, Long.MIN_VALUE};
+        for (long value : values) {
+            ExpositionBuffer buffer = new ExpositionBuffer();
+            buffer.writeLong(value);
+            assertEquals(Long.toString(value), toString(buffer));
+        }
+    }
+
+    @Test
+    public void testWriteVarint() {
+        ExpositionBuffer buffer = new ExpositionBuffer();
+        buffer.writeVarint(1);
+        buffer.writeVarint(300);
+        buffer.writeVarint(-1);
+        assertArrayEquals(new byte[] {1, (byte) 0xAC, 0x02,
+            (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x01},
+                buffer.toByteArray());
+        assertEquals(1, ExpositionBuffer.varintSize(1));
+        assertEquals(2, ExpositionBuffer.varintSize(300));
+        assertEquals(10, ExpositionBuffer.varintSize(-1));
+    }
+
+    @Test
+    public void testInsertVarint() {
+        ExpositionBuffer buffer = new ExpositionBuffer();
+        buffer.write('a');
+        buffer.write(new byte[300]);
+        buffer.insertVarint(1, 300);
+        byte[] bytes = buffer.toByteArray();
+        assertEquals(303, bytes.length);
+        assertEquals('a', bytes[0]);
+        assertEquals((byte) 0xAC, bytes[1]);
+        assertEquals(0x02, bytes[2]);
+    }
+
+    @Test
+    public void testGrow() {
+        ExpositionBuffer buffer = new ExpositionBuffer();
+        byte[] chunk = new byte[100_000];
+        Arrays.fill(chunk, (byte) 'a');
+        buffer.write(chunk);
+        buffer.write(chunk);
+        assertEquals(200_000, buffer.size());
+        buffer.reset();
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void testSamplePrefix() {
+        assertEquals("name ", new String(ExpositionBuffer.samplePrefix("name", Collections.emptyList(), Collections.emptyList()), StandardCharsets.UTF_8));
+        assertEquals("name{k1=\"v\\\"1\",k2=\"v\\\\2\\n\",} ", new String(ExpositionBuffer.samplePrefix("name",
+                Arrays.asList("k1", "k2"), Arrays.asList("v\"1", "v\\2\n")), StandardCharsets.UTF_8));
+    }
+
+    private String toString(ExpositionBuffer buffer) {
+        return new String(buffer.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mickaelmaison;
+
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.MetricsRegistry;
+import org.apache.kafka.common.config.ConfigException;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HistogramBucketsTest {
+
+    @Test
+    public void testUpdate() {
+        MetricsRegistry registry = new MetricsRegistry();
+        Histogram histogram = registry.newHistogram(HistogramBucketsTest.class, "histogram", true);
+        HistogramBuckets buckets = new HistogramBuckets(new double[] {10, 100});
+
+        buckets.update(0, histogram);
+        assertArrayEquals(new long[] {0, 0, 0}, buckets.counts);
+
+        for (int i = 0; i < 4; i++) {
+            histogram.update(5);
+        }
+        buckets.update(histogram.count(), histogram);
+        assertArrayEquals(new long[] {4, 0, 0}, buckets.counts);
+
+        // The new values are spread like the sample: half of it is <= 10, all of it is <= 100
+        for (int i = 0; i < 4; i++) {
+            histogram.update(50);
+        }
+        buckets.update(histogram.count(), histogram);
+        assertArrayEquals(new long[] {6, 2, 0}, buckets.counts);
+        assertEquals(8, buckets.count);
+
+        // Nothing new
+        buckets.update(histogram.count(), histogram);
+        assertArrayEquals(new long[] {6, 2, 0}, buckets.counts);
+
+        // Cleared metric
+        histogram.clear();
+        histogram.update(500);
+        buckets.update(histogram.count(), histogram);
+        assertArrayEquals(new long[] {0, 0, 1}, buckets.counts);
+        registry.shutdown();
+    }
+
+    @Test
+    public void testParseBounds() {
+        assertArrayEquals(new double[] {0.1, 1, 10}, HistogramBuckets.parseBounds("config", "0.1; 1;10"), 0);
+        assertThrows(ConfigException.class, () -> HistogramBuckets.parseBounds("config", "1;1"));
+        assertThrows(ConfigException.class, () -> HistogramBuckets.parseBounds("config", "1;Infinity"));
+    }
+}
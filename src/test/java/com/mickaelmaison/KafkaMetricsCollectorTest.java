@@ -17,20 +17,35 @@
 package com.mickaelmaison;
 
 import io.prometheus.client.Collector;
+import io.prometheus.client.exporter.common.TextFormat;
 import org.apache.kafka.common.MetricName;
 import org.apache.kafka.common.metrics.Gauge;
 import org.apache.kafka.common.metrics.KafkaMetric;
 import org.apache.kafka.common.metrics.Measurable;
+import org.apache.kafka.common.metrics.MeasurableStat;
 import org.apache.kafka.common.metrics.MetricConfig;
+import org.apache.kafka.common.metrics.stats.Avg;
+import org.apache.kafka.common.metrics.stats.CumulativeCount;
+import org.apache.kafka.common.metrics.stats.CumulativeSum;
+import org.apache.kafka.common.metrics.stats.Max;
+import org.apache.kafka.common.metrics.stats.Rate;
 import org.apache.kafka.common.utils.Time;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
@@ -91,6 +106,410 @@ public class KafkaMetricsCollectorTest {
         assertTrue(metrics.isEmpty());
     }
 
+    @Test
+    public void testQueuedRegistrations() {
+        KafkaMetricsCollector collector = new KafkaMetricsCollector(new PrometheusMetricsReporterConfig(Collections.emptyMap()));
+        collector.setPrefix("kafka.server");
+
+        collector.queueAddition(buildMetric("name", "group", 1.0));
+        collector.queueAddition(buildMetric("other", "group", 2.0));
+        // Queued metrics are registered when collecting
+        assertEquals(2, collector.collect().size());
+
+        // Additions and removals of the same metric are applied in order
+        collector.queueRemoval(buildMetric("name", "group", 1.0));
+        collector.queueAddition(buildMetric("name", "group", 3.0));
+        collector.queueRemoval(buildMetric("other", "group", 2.0));
+        ExpositionBuffer buffer = new ExpositionBuffer();
+        collector.write(buffer);
+        assertEquals("# HELP kafka_server_group_name \n# TYPE kafka_server_group_name gauge\nkafka_server_group_name{key=\"value\",} 3.0\n",
+                new String(buffer.toByteArray(), StandardCharsets.UTF_8));
+
+        collector.queueRemoval(buildMetric("name", "group", 3.0));
+        collector.drain();
+        assertTrue(collector.collect().isEmpty());
+    }
+
+    @Test
+    public void testSetPrefix() {
+        Map<String, String> props = new HashMap<>();
+        props.put(PrometheusMetricsReporterConfig.ALLOWLIST_CONFIG, "kafka_consumer_group_name.*");
+        PrometheusMetricsReporterConfig config = new PrometheusMetricsReporterConfig(props);
+        KafkaMetricsCollector collector = new KafkaMetricsCollector(config);
+
+        // Metrics added before the prefix is known are not collected
+        collector.addMetric(buildMetric("name", "group", 1.0));
+        assertTrue(collector.collect().isEmpty());
+
+        // Setting the prefix renames the existing metrics and re-evaluates the allowlist
+        collector.setPrefix("kafka.server");
+        assertTrue(collector.collect().isEmpty());
+
+        collector.setPrefix("kafka.consumer");
+        List<Collector.MetricFamilySamples> metrics = collector.collect();
+        assertEquals(1, metrics.size());
+        assertEquals("kafka_consumer_group_name", metrics.get(0).name);
+    }
+
+    @Test
+    public void testFamilies() {
+        PrometheusMetricsReporterConfig config = new PrometheusMetricsReporterConfig(Collections.emptyMap());
+        KafkaMetricsCollector collector = new KafkaMetricsCollector(config);
+        collector.setPrefix("kafka.consumer");
+
+        // Metrics with the same name and different tags are grouped in a single family
+        KafkaMetric metric1 = buildMetric("lag", "fetch", 1.0);
+        collector.addMetric(metric1);
+        labels = Collections.singletonMap("key", "value2");
+        collector.addMetric(buildMetric("lag", "fetch", 2.0));
+        collector.addMetric(buildMetric("other", "fetch", 3.0));
+
+        List<Collector.MetricFamilySamples> metrics = collector.collect();
+        assertEquals(2, metrics.size());
+        Collector.MetricFamilySamples lag = metrics.stream().filter(m -> m.name.equals("kafka_consumer_fetch_lag")).findFirst().get();
+        assertEquals(2, lag.samples.size());
+
+        collector.removeMetric(metric1);
+        metrics = collector.collect();
+        assertEquals(2, metrics.size());
+        lag = metrics.stream().filter(m -> m.name.equals("kafka_consumer_fetch_lag")).findFirst().get();
+        assertEquals(1, lag.samples.size());
+        assertEquals(Collections.singletonList("value2"), lag.samples.get(0).labelValues);
+    }
+
+    @Test
+    public void testTotalsOnly() {
+        Map<String, String> props = new HashMap<>();
+        props.put(PrometheusMetricsReporterConfig.TOTALS_ONLY_CONFIG, "true");
+        KafkaMetricsCollector collector = new KafkaMetricsCollector(new PrometheusMetricsReporterConfig(props));
+        collector.setPrefix("kafka.producer");
+        collector.addMetric(buildStatMetric("record-send-rate", new Rate()));
+        collector.addMetric(buildStatMetric("request-latency-avg", new Avg()));
+        collector.addMetric(buildStatMetric("record-send-total", new CumulativeCount()));
+        collector.addMetric(buildStatMetric("request-latency-max", new Max()));
+        collector.addMetric(buildMetric("lag", "group", 1.0));
+
+        Set<String> names = new HashSet<>();
+        for (Collector.MetricFamilySamples family : collector.collect()) {
+            names.add(family.name);
+            if (family.name.equals("kafka_producer_group_record_send")) {
+                assertEquals(Collector.Type.COUNTER, family.type);
+            }
+        }
+        // The counter family name doesn't have the _total suffix
+        assertEquals(new HashSet<>(Arrays.asList("kafka_producer_group_record_send", "kafka_producer_group_request_latency_max",
+                "kafka_producer_group_lag")), names);
+    }
+
+    @Test
+    public void testCollectSelected() {
+        KafkaMetricsCollector collector = new KafkaMetricsCollector(new PrometheusMetricsReporterConfig(Collections.emptyMap()));
+        collector.setPrefix("kafka.server");
+        collector.addMetric(buildMetric("name", "group", 1.0));
+        collector.addMetric(buildMetric("other", "group", 2.0));
+        collector.addMetric(buildMetric("name", "other", 3.0));
+        collector.addMetric(buildCumulativeMetric("bytes_total", "group", 4.0));
+
+        assertEquals(Collections.singleton("kafka_server_group_name"),
+                names(collector.collect(new NameSelector(Collections.singletonList("kafka_server_group_name")))));
+        assertEquals(new HashSet<>(Arrays.asList("kafka_server_group_name", "kafka_server_group_other", "kafka_server_group_bytes")),
+                names(collector.collect(new NameSelector(Collections.singletonList("kafka_server_group_*")))));
+        assertEquals(new HashSet<>(Arrays.asList("kafka_server_group_name", "kafka_server_other_name", "kafka_server_group_bytes")),
+                names(collector.collect(new NameSelector(Arrays.asList("kafka_server_group_na*", "kafka_server_other_name", "kafka_server_group_bytes_total")))));
+        assertTrue(collector.collect(new NameSelector(Arrays.asList("kafka_server_missing", "kafka_server_name*"))).isEmpty());
+
+        // Selecting through the Prometheus filter gives the same families
+        NameSelector selector = new NameSelector(Collections.singletonList("kafka_server_group_*"));
+        assertEquals(new HashSet<>(collector.collect(selector)), new HashSet<>(((Collector) collector).collect(selector)));
+    }
+
+    private static Set<String> names(List<Collector.MetricFamilySamples> metrics) {
+        Set<String> names = new HashSet<>();
+        for (Collector.MetricFamilySamples family : metrics) {
+            names.add(family.name);
+        }
+        return names;
+    }
+
+    @Test
+    public void testRefreshTiers() throws Exception {
+        Map<String, String> props = new HashMap<>();
+        props.put(PrometheusMetricsReporterConfig.REFRESH_TIERS_CONFIG, "kafka_server_group_slow=3600000");
+        KafkaMetricsCollector collector = new KafkaMetricsCollector(new PrometheusMetricsReporterConfig(props));
+        collector.setPrefix("kafka.server");
+        AtomicInteger slowCalls = new AtomicInteger();
+        AtomicInteger fastCalls = new AtomicInteger();
+        collector.addMetric(new KafkaMetric(new Object(), new MetricName("slow", "group", "", labels),
+                (Measurable) (config, now) -> slowCalls.incrementAndGet(), metricConfig, time));
+        collector.addMetric(new KafkaMetric(new Object(), new MetricName("fast", "group", "", labels),
+                (Measurable) (config, now) -> fastCalls.incrementAndGet(), metricConfig, time));
+
+        long cachedValues = ReporterMetrics.INSTANCE.kafka.cachedValues.sum();
+        for (int i = 0; i < 3; i++) {
+            collector.write(new ExpositionBuffer());
+        }
+        // The slow metric is served from the cache after the first scrape
+        assertEquals(1, slowCalls.get());
+        assertEquals(3, fastCalls.get());
+        assertEquals(cachedValues + 2, ReporterMetrics.INSTANCE.kafka.cachedValues.sum());
+
+        Map<String, Double> values = new HashMap<>();
+        for (Collector.MetricFamilySamples family : collector.collect()) {
+            values.put(family.name, family.samples.get(0).value);
+        }
+        assertEquals(1.0, values.get("kafka_server_group_slow"), 0);
+        assertEquals(4.0, values.get("kafka_server_group_fast"), 0);
+    }
+
+    @Test
+    public void testWrite() throws Exception {
+        PrometheusMetricsReporterConfig config = new PrometheusMetricsReporterConfig(Collections.emptyMap());
+        KafkaMetricsCollector collector = new KafkaMetricsCollector(config);
+        collector.setPrefix("kafka.server");
+        labels = new HashMap<>();
+        labels.put("escaped", "a\"b\\c\nd");
+        collector.addMetric(buildMetric("name", "group", 1.0));
+        collector.addMetric(buildMetric("other-name", "group", 0.25));
+        labels = Collections.singletonMap("key", "value");
+        collector.addMetric(buildMetric("name", "group", 2.0));
+        collector.addMetric(buildNonNumericMetric("name2", "group"));
+        labels = Collections.emptyMap();
+        collector.addMetric(buildMetric("no-labels", "group", 1e9));
+        collector.addMetric(buildCumulativeMetric("bytes-total", "group", 42));
+
+        ExpositionBuffer buffer = new ExpositionBuffer();
+        collector.write(buffer);
+        StringWriter expected = new StringWriter();
+        TextFormat.write004(expected, Collections.enumeration(collector.collect()));
+        assertEquals(expected.toString(), new String(buffer.toByteArray(), StandardCharsets.UTF_8));
+
+        buffer.reset();
+        collector.writeProtobuf(buffer);
+        ExpositionBuffer expectedProtobuf = new ExpositionBuffer();
+        ProtobufFormat.write(expectedProtobuf, Collections.enumeration(collector.collect()));
+        assertArrayEquals(expectedProtobuf.toByteArray(), buffer.toByteArray());
+    }
+
+    @Test
+    public void testStats() {
+        Map<String, String> props = new HashMap<>();
+        props.put(PrometheusMetricsReporterConfig.ALLOWLIST_CONFIG, "kafka_server_group_name.*");
+        PrometheusMetricsReporterConfig config = new PrometheusMetricsReporterConfig(props);
+        KafkaMetricsCollector collector = new KafkaMetricsCollector(config);
+        collector.setPrefix("kafka.server");
+        ReporterMetrics.CollectorStats stats = ReporterMetrics.INSTANCE.kafka;
+        long dropped = stats.dropped.sum();
+        collector.addMetric(buildMetric("name", "group", 1.0));
+        collector.addMetric(buildNonNumericMetric("name2", "group"));
+        KafkaMetric other = buildMetric("other", "group", 1.0);
+        collector.addMetric(other);
+        assertEquals(dropped + 1, stats.dropped.sum());
+        // Dropped metrics are counted once, not each time they are registered or rewrapped
+        collector.addMetric(other);
+        collector.setContext("kafka.server", Collections.singletonMap("client.id", "client"));
+        assertEquals(dropped + 1, stats.dropped.sum());
+
+        long series = stats.series.sum();
+        long families = stats.families.sum();
+        long skipped = stats.skipped.sum();
+        collector.write(new ExpositionBuffer());
+        assertEquals(series + 1, stats.series.sum());
+        assertEquals(families + 1, stats.families.sum());
+        assertEquals(skipped + 1, stats.skipped.sum());
+    }
+
+    @Test
+    public void testSeriesLimits() throws Exception {
+        Map<String, String> props = new HashMap<>();
+        props.put(PrometheusMetricsReporterConfig.MAX_SERIES_PER_FAMILY_CONFIG, "2");
+        props.put(PrometheusMetricsReporterConfig.MAX_SERIES_CONFIG, "3");
+        KafkaMetricsCollector collector = new KafkaMetricsCollector(new PrometheusMetricsReporterConfig(props));
+        collector.setPrefix("kafka.server");
+        long overflow = ReporterMetrics.INSTANCE.kafka.overflow.sum();
+        List<KafkaMetric> metrics = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            labels = Collections.singletonMap("topic", "topic" + i);
+            metrics.add(buildMetric("name", "group", i + 1));
+            collector.addMetric(metrics.get(i));
+        }
+        labels = Collections.singletonMap("topic", "topic0");
+        collector.addMetric(buildMetric("other", "group", 10));
+        collector.addMetric(buildMetric("another", "group", 20));
+        assertEquals(overflow + 3, ReporterMetrics.INSTANCE.kafka.overflow.sum());
+
+        Map<String, Collector.MetricFamilySamples> families = new HashMap<>();
+        for (Collector.MetricFamilySamples family : collector.collect()) {
+            families.put(family.name, family);
+        }
+        List<Collector.MetricFamilySamples.Sample> samples = families.get("kafka_server_group_name").samples;
+        assertEquals(3, samples.size());
+        Collector.MetricFamilySamples.Sample overflowSample = samples.get(2);
+        assertEquals(Collections.singletonList(CardinalityLimiter.OVERFLOW), overflowSample.labelValues);
+        assertEquals(7.0, overflowSample.value, 0);
+        assertEquals(1, families.get("kafka_server_group_other").samples.size());
+        // The total limit is reached, the whole family is in the overflow series
+        assertEquals(Collections.singletonList(CardinalityLimiter.OVERFLOW), families.get("kafka_server_group_another").samples.get(0).labelValues);
+
+        ExpositionBuffer buffer = new ExpositionBuffer();
+        collector.write(buffer);
+        StringWriter expected = new StringWriter();
+        TextFormat.write004(expected, Collections.enumeration(collector.collect()));
+        assertEquals(expected.toString(), new String(buffer.toByteArray(), StandardCharsets.UTF_8));
+
+        buffer.reset();
+        collector.writeProtobuf(buffer);
+        ExpositionBuffer expectedProtobuf = new ExpositionBuffer();
+        ProtobufFormat.write(expectedProtobuf, Collections.enumeration(collector.collect()));
+        assertArrayEquals(expectedProtobuf.toByteArray(), buffer.toByteArray());
+
+        // Removing an admitted metric frees a slot for new metrics
+        collector.removeMetric(metrics.get(0));
+        labels = Collections.singletonMap("topic", "topic4");
+        collector.addMetric(buildMetric("name", "group", 5));
+        collector.removeMetric(metrics.get(3));
+        families.clear();
+        for (Collector.MetricFamilySamples family : collector.collect()) {
+            families.put(family.name, family);
+        }
+        samples = families.get("kafka_server_group_name").samples;
+        assertEquals(3, samples.size());
+        assertEquals(3.0, samples.get(2).value, 0);
+    }
+
+    @Test
+    public void testRollup() throws Exception {
+        Map<String, String> props = new HashMap<>();
+        props.put(PrometheusMetricsReporterConfig.ROLLUPS_CONFIG, "kafka_server_group_lag=sum:topic,kafka_server_group_max=max:");
+        KafkaMetricsCollector collector = new KafkaMetricsCollector(new PrometheusMetricsReporterConfig(props));
+        collector.setPrefix("kafka.server");
+        for (int i = 0; i < 6; i++) {
+            labels = new HashMap<>();
+            labels.put("topic", "topic" + (i % 2));
+            labels.put("partition", String.valueOf(i));
+            collector.addMetric(buildMetric("lag", "group", i));
+            collector.addMetric(buildMetric("max", "group", i));
+        }
+        labels = Collections.singletonMap("topic", "topic1");
+        collector.addMetric(buildNonNumericMetric("lag", "group"));
+
+        Map<String, Collector.MetricFamilySamples> families = new HashMap<>();
+        for (Collector.MetricFamilySamples family : collector.collect()) {
+            families.put(family.name, family);
+        }
+        List<Collector.MetricFamilySamples.Sample> lag = families.get("kafka_server_group_lag").samples;
+        assertEquals(2, lag.size());
+        assertEquals(Collections.singletonList("topic"), lag.get(0).labelNames);
+        assertEquals(Collections.singletonList("topic0"), lag.get(0).labelValues);
+        assertEquals(0.0 + 2 + 4, lag.get(0).value, 0);
+        assertEquals(1.0 + 3 + 5, lag.get(1).value, 0);
+        List<Collector.MetricFamilySamples.Sample> max = families.get("kafka_server_group_max").samples;
+        assertEquals(1, max.size());
+        assertTrue(max.get(0).labelNames.isEmpty());
+        assertEquals(5.0, max.get(0).value, 0);
+
+        ExpositionBuffer buffer = new ExpositionBuffer();
+        collector.write(buffer);
+        StringWriter expected = new StringWriter();
+        TextFormat.write004(expected, Collections.enumeration(collector.collect()));
+        assertEquals(expected.toString(), new String(buffer.toByteArray(), StandardCharsets.UTF_8));
+
+        buffer.reset();
+        collector.writeProtobuf(buffer);
+        ExpositionBuffer expectedProtobuf = new ExpositionBuffer();
+        ProtobufFormat.write(expectedProtobuf, Collections.enumeration(collector.collect()));
+        assertArrayEquals(expectedProtobuf.toByteArray(), buffer.toByteArray());
+    }
+
+    @Test
+    public void testRollupGroupsReleased() {
+        Map<String, String> props = new HashMap<>();
+        props.put(PrometheusMetricsReporterConfig.ROLLUPS_CONFIG, "kafka_server_group_lag=sum:topic");
+        KafkaMetricsCollector collector = new KafkaMetricsCollector(new PrometheusMetricsReporterConfig(props));
+        collector.setPrefix("kafka.server");
+        List<KafkaMetric> topic0 = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            labels = new HashMap<>();
+            labels.put("topic", "topic" + (i % 2));
+            labels.put("partition", String.valueOf(i));
+            KafkaMetric metric = buildMetric("lag", "group", i);
+            collector.addMetric(metric);
+            if (i % 2 == 0) {
+                topic0.add(metric);
+            }
+        }
+        Rollup rollup = collector.families().get("kafka_server_group_lag").rollup;
+        assertEquals(2, rollup.groupCount());
+
+        // The group of a deleted topic is dropped with its last series
+        collector.removeMetric(topic0.get(0));
+        assertEquals(2, rollup.groupCount());
+        collector.removeMetric(topic0.get(1));
+        assertEquals(1, rollup.groupCount());
+        List<Collector.MetricFamilySamples.Sample> lag = collector.collect().get(0).samples;
+        assertEquals(1, lag.size());
+        assertEquals(Collections.singletonList("topic1"), lag.get(0).labelValues);
+
+        // A new topic reuses the released slot
+        labels = new HashMap<>();
+        labels.put("topic", "topic2");
+        labels.put("partition", "0");
+        collector.addMetric(buildMetric("lag", "group", 10));
+        assertEquals(2, rollup.groupCount());
+        lag = collector.collect().get(0).samples;
+        assertEquals(2, lag.size());
+        assertEquals(Collections.singletonList("topic2"), lag.get(0).labelValues);
+        assertEquals(10.0, lag.get(0).value, 0);
+        assertEquals(Collections.singletonList("topic1"), lag.get(1).labelValues);
+        assertEquals(1.0 + 3, lag.get(1).value, 0);
+    }
+
+    @Test
+    public void testParallelWrite() throws Exception {
+        Map<String, String> props = new HashMap<>();
+        props.put(PrometheusMetricsReporterConfig.COLLECTION_PARALLELISM_CONFIG, "4");
+        props.put(PrometheusMetricsReporterConfig.COLLECTION_PARALLEL_THRESHOLD_CONFIG, "10");
+        KafkaMetricsCollector collector = new KafkaMetricsCollector(new PrometheusMetricsReporterConfig(props));
+        collector.setPrefix("kafka.server");
+        for (int i = 0; i < 100; i++) {
+            labels = Collections.singletonMap("key", "value" + i);
+            collector.addMetric(buildMetric("name" + (i % 30), "group", i));
+        }
+
+        ExpositionBuffer buffer = new ExpositionBuffer();
+        collector.write(buffer);
+        StringWriter expected = new StringWriter();
+        TextFormat.write004(expected, Collections.enumeration(collector.collect()));
+        assertEquals(expected.toString(), new String(buffer.toByteArray(), StandardCharsets.UTF_8));
+
+        buffer.reset();
+        collector.writeProtobuf(buffer);
+        ExpositionBuffer expectedProtobuf = new ExpositionBuffer();
+        ProtobufFormat.write(expectedProtobuf, Collections.enumeration(collector.collect()));
+        assertArrayEquals(expectedProtobuf.toByteArray(), buffer.toByteArray());
+    }
+
+    @Test
+    public void testCumulativeMetrics() {
+        PrometheusMetricsReporterConfig config = new PrometheusMetricsReporterConfig(Collections.emptyMap());
+        KafkaMetricsCollector collector = new KafkaMetricsCollector(config);
+        collector.setPrefix("kafka.server");
+
+        // Cumulative stats are counters, as long as that doesn't change their name
+        collector.addMetric(buildCumulativeMetric("bytes-total", "group", 10));
+        collector.addMetric(buildCumulativeMetric("bytes-sum", "group", 10));
+        collector.addMetric(buildMetric("rate-total", "group", 1.0));
+
+        Map<String, Collector.MetricFamilySamples> metrics = new HashMap<>();
+        for (Collector.MetricFamilySamples family : collector.collect()) {
+            metrics.put(family.name, family);
+        }
+        assertEquals(3, metrics.size());
+        assertEquals(Collector.Type.COUNTER, metrics.get("kafka_server_group_bytes").type);
+        assertEquals("kafka_server_group_bytes_total", metrics.get("kafka_server_group_bytes").samples.get(0).name);
+        assertEquals(Collector.Type.GAUGE, metrics.get("kafka_server_group_bytes_sum").type);
+        assertEquals(Collector.Type.GAUGE, metrics.get("kafka_server_group_rate_total").type);
+    }
+
     private KafkaMetric buildMetric(String name, String group, double value) {
         Measurable measurable = (config, now) -> value;
         return new KafkaMetric(
@@ -101,6 +520,24 @@ public class KafkaMetricsCollectorTest {
                 time);
     }
 
+    private KafkaMetric buildCumulativeMetric(String name, String group, double value) {
+        return new KafkaMetric(
+                new Object(),
+                new MetricName(name, group, "", labels),
+                new CumulativeSum(value),
+                metricConfig,
+                time);
+    }
+
+    private KafkaMetric buildStatMetric(String name, MeasurableStat stat) {
+        return new KafkaMetric(
+                new Object(),
+                new MetricName(name, "group", "", labels),
+                stat,
+                metricConfig,
+                time);
+    }
+
     private KafkaMetric buildNonNumericMetric(String name, String group) {
         Gauge<String> measurable = (config, now) -> "hello";
         return new KafkaMetric(
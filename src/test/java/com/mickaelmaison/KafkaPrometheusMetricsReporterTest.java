@@ -16,7 +16,7 @@
  */
 package com.mickaelmaison;
 
-import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Collector;
 import org.apache.kafka.common.MetricName;
 import org.apache.kafka.common.metrics.Gauge;
 import org.apache.kafka.common.metrics.KafkaMetric;
@@ -32,6 +32,7 @@ import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -47,7 +48,9 @@ public class KafkaPrometheusMetricsReporterTest {
 
     @Before
     public void setup() {
-        CollectorRegistry.defaultRegistry.clear();
+        PrometheusMetricsReporterConfig.JVM_COLLECTORS.unregister();
+        PrometheusMetricsReporterConfig.COLLECTOR_REGISTRY.clear();
+        StreamingCollectorRegistry.defaultRegistry.clear();
     }
 
     @Test
@@ -84,6 +87,52 @@ public class KafkaPrometheusMetricsReporterTest {
         reporter.close();
     }
 
+    @Test
+    public void testStreamingDisabled() throws Exception {
+        KafkaPrometheusMetricsReporter reporter = new KafkaPrometheusMetricsReporter();
+        Map<String, String> configs = new HashMap<>();
+        configs.put(PrometheusMetricsReporterConfig.PORT_CONFIG, "0");
+        configs.put(PrometheusMetricsReporterConfig.STREAMING_ENABLED_CONFIG, "false");
+        reporter.configure(configs);
+        reporter.contextChange(new KafkaMetricsContext("kafka.server"));
+        int port = reporter.getPort();
+        int initialMetrics = getMetrics(port).size();
+
+        KafkaMetric metric1 = buildMetric("name1", "group", 0);
+        reporter.init(Collections.singletonList(metric1));
+        List<String> metrics = getMetrics(port);
+        assertEquals(initialMetrics + 1, metrics.size());
+        assertTrue(metrics.contains("kafka_server_group_name1{key=\"value\",} 0.0"));
+
+        reporter.close();
+    }
+
+    @Test
+    public void testPrerender() throws Exception {
+        KafkaPrometheusMetricsReporter reporter = new KafkaPrometheusMetricsReporter();
+        Map<String, String> configs = new HashMap<>();
+        configs.put(PrometheusMetricsReporterConfig.PORT_CONFIG, "0");
+        configs.put(PrometheusMetricsReporterConfig.PRERENDER_INTERVAL_MS_CONFIG, "50");
+        reporter.configure(configs);
+        reporter.contextChange(new KafkaMetricsContext("kafka.server"));
+        int port = reporter.getPort();
+
+        KafkaMetric metric1 = buildMetric("name1", "group", 0);
+        reporter.init(Collections.singletonList(metric1));
+
+        // The new metric shows up once the background thread has rendered the metrics again
+        long deadline = System.currentTimeMillis() + 10_000;
+        List<String> metrics = getMetrics(port);
+        while (!metrics.contains("kafka_server_group_name1{key=\"value\",} 0.0") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+            metrics = getMetrics(port);
+        }
+        assertTrue(metrics.contains("kafka_server_group_name1{key=\"value\",} 0.0"));
+        assertTrue(metrics.stream().anyMatch(m -> m.startsWith(MetricsHttpHandler.SNAPSHOT_TIMESTAMP_NAME + " ")));
+
+        reporter.close();
+    }
+
     @Test
     public void testMultipleReporters() throws Exception {
         Map<String, String> configs = new HashMap<>();
@@ -109,10 +158,107 @@ public class KafkaPrometheusMetricsReporterTest {
         int endMetrics = getMetrics(port).size();
         assertTrue(initialMetrics < endMetrics);
 
+        // The server is shared, and stays up until the last reporter is closed
+        assertEquals(port, reporter2.getPort());
+        reporter1.close();
+        List<String> metrics = getMetrics(port);
+        assertFalse(metrics.contains("kafka_server_group_name1{key=\"value\",} 0.0"));
+        assertTrue(metrics.contains("kafka_server_group_name2{key=\"value\",} 0.0"));
+        assertTrue(metrics.stream().anyMatch(line -> line.startsWith("jvm_threads_")));
+        reporter2.close();
+
+        // The JVM collectors don't outlive the last reporter
+        for (Collector.MetricFamilySamples family : Collections.list(PrometheusMetricsReporterConfig.COLLECTOR_REGISTRY.metricFamilySamples())) {
+            assertFalse(family.name.startsWith("jvm"));
+        }
+    }
+
+    @Test
+    public void testIgnoredConfigs() {
+        Map<String, String> configs = new HashMap<>();
+        configs.put(PrometheusMetricsReporterConfig.PORT_CONFIG, "0");
+        PrometheusMetricsReporterConfig first = new PrometheusMetricsReporterConfig(configs);
+        // Settings of the collectors aren't shared
+        configs.put(PrometheusMetricsReporterConfig.TOTALS_ONLY_CONFIG, "true");
+        assertTrue(SharedEndpoint.ignoredConfigs(first, new PrometheusMetricsReporterConfig(configs)).isEmpty());
+
+        configs.put(PrometheusMetricsReporterConfig.PORT_CONFIG, "8080");
+        configs.put(PrometheusMetricsReporterConfig.CACHE_TTL_MS_CONFIG, "1000");
+        assertEquals(Arrays.asList(PrometheusMetricsReporterConfig.PORT_CONFIG, PrometheusMetricsReporterConfig.CACHE_TTL_MS_CONFIG),
+                SharedEndpoint.ignoredConfigs(first, new PrometheusMetricsReporterConfig(configs)));
+    }
+
+    @Test
+    public void testSharedFamilies() throws Exception {
+        Map<String, String> configs = new HashMap<>();
+        configs.put(PrometheusMetricsReporterConfig.PORT_CONFIG, "0");
+        configs.put(PrometheusMetricsReporterConfig.CONTEXT_LABELS_ENABLED_CONFIG, "true");
+        configs.put("client.id", "producer-1");
+        KafkaPrometheusMetricsReporter reporter1 = new KafkaPrometheusMetricsReporter();
+        reporter1.configure(configs);
+        reporter1.contextChange(new KafkaMetricsContext("kafka.producer"));
+        int port = reporter1.getPort();
+
+        configs.put("client.id", "producer-2");
+        KafkaPrometheusMetricsReporter reporter2 = new KafkaPrometheusMetricsReporter();
+        reporter2.configure(configs);
+        reporter2.contextChange(new KafkaMetricsContext("kafka.producer", Collections.singletonMap("app", "test")));
+
+        reporter1.init(Collections.singletonList(buildMetric("name", "group", 1)));
+        reporter2.init(Collections.singletonList(buildMetric("name", "group", 2)));
+
+        List<String> lines = getLines(port);
+        assertEquals(1, lines.stream().filter(l -> l.equals("# TYPE kafka_producer_group_name gauge")).count());
+        int header = lines.indexOf("# TYPE kafka_producer_group_name gauge");
+        assertEquals("kafka_producer_group_name{key=\"value\",client_id=\"producer-1\",} 1.0", lines.get(header + 1));
+        assertEquals("kafka_producer_group_name{key=\"value\",app=\"test\",client_id=\"producer-2\",} 2.0", lines.get(header + 2));
+
         reporter1.close();
         reporter2.close();
     }
 
+    @Test
+    public void testSharedOverflow() throws Exception {
+        Map<String, String> configs = new HashMap<>();
+        configs.put(PrometheusMetricsReporterConfig.PORT_CONFIG, "0");
+        configs.put(PrometheusMetricsReporterConfig.CONTEXT_LABELS_ENABLED_CONFIG, "true");
+        configs.put(PrometheusMetricsReporterConfig.MAX_SERIES_PER_FAMILY_CONFIG, "1");
+        List<KafkaPrometheusMetricsReporter> reporters = new ArrayList<>();
+        int port = 0;
+        for (int i = 1; i <= 2; i++) {
+            configs.put("client.id", "consumer-" + i);
+            KafkaPrometheusMetricsReporter reporter = new KafkaPrometheusMetricsReporter();
+            reporter.configure(configs);
+            reporter.contextChange(new KafkaMetricsContext("kafka.consumer"));
+            port = reporter.getPort();
+            List<KafkaMetric> metrics = new ArrayList<>();
+            for (int topic = 0; topic < 3; topic++) {
+                metrics.add(buildMetric("lag", "group", Collections.singletonMap("topic", "topic" + topic), 1));
+            }
+            reporter.init(metrics);
+            reporters.add(reporter);
+        }
+
+        // Each client has its own overflow series
+        List<String> metrics = getMetrics(port);
+        assertTrue(metrics.contains("kafka_consumer_group_lag{topic=\"__overflow__\",client_id=\"consumer-1\",} 2.0"));
+        assertTrue(metrics.contains("kafka_consumer_group_lag{topic=\"__overflow__\",client_id=\"consumer-2\",} 2.0"));
+
+        for (KafkaPrometheusMetricsReporter reporter : reporters) {
+            reporter.close();
+        }
+    }
+
+    private KafkaMetric buildMetric(String name, String group, Map<String, String> tags, double value) {
+        Measurable measurable = (config, now) -> value;
+        return new KafkaMetric(
+                new Object(),
+                new MetricName(name, group, "", tags),
+                measurable,
+                metricConfig,
+                time);
+    }
+
     private KafkaMetric buildMetric(String name, String group, double value) {
         Measurable measurable = (config, now) -> value;
         return new KafkaMetric(
@@ -135,6 +281,16 @@ public class KafkaPrometheusMetricsReporterTest {
 
     private List<String> getMetrics(int port) throws Exception {
         List<String> metrics = new ArrayList<>();
+        for (String line : getLines(port)) {
+            if (!line.startsWith("#")) {
+                metrics.add(line);
+            }
+        }
+        return metrics;
+    }
+
+    private List<String> getLines(int port) throws Exception {
+        List<String> lines = new ArrayList<>();
         URL url = new URL("http://localhost:" + port + "/metrics");
         HttpURLConnection con = (HttpURLConnection) url.openConnection();
         con.setRequestMethod("GET");
@@ -142,12 +298,10 @@ public class KafkaPrometheusMetricsReporterTest {
         try (BufferedReader in = new BufferedReader(new InputStreamReader(con.getInputStream()))) {
             String inputLine;
             while ((inputLine = in.readLine()) != null) {
-                if (!inputLine.startsWith("#")) {
-                    metrics.add(inputLine);
-                }
+                lines.add(inputLine);
             }
         }
-        return metrics;
+        return lines;
     }
 
 }
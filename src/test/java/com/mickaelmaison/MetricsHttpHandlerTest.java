@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mickaelmaison;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.exporter.common.TextFormat;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class MetricsHttpHandlerTest {
+
+    private static final String PROMETHEUS_ACCEPT = "application/vnd.google.protobuf;proto=io.prometheus.client.MetricFamily;encoding=delimited;q=0.7," +
+            "text/plain;version=0.0.4;q=0.3,*/*;q=0.2";
+
+    @Test
+    public void testChooseContentType() {
+        assertEquals(TextFormat.CONTENT_TYPE_004, MetricsHttpHandler.chooseContentType(null));
+        assertEquals(TextFormat.CONTENT_TYPE_004, MetricsHttpHandler.chooseContentType("*/*"));
+        assertEquals(TextFormat.CONTENT_TYPE_004, MetricsHttpHandler.chooseContentType("application/json"));
+        assertEquals(ProtobufFormat.CONTENT_TYPE, MetricsHttpHandler.chooseContentType(PROMETHEUS_ACCEPT));
+        assertEquals(TextFormat.CONTENT_TYPE_OPENMETRICS_100, MetricsHttpHandler.chooseContentType(
+                "application/openmetrics-text;version=1.0.0,text/plain;version=0.0.4;q=0.5,*/*;q=0.1"));
+        assertEquals(TextFormat.CONTENT_TYPE_004, MetricsHttpHandler.chooseContentType(
+                "application/openmetrics-text;q=0.2,text/plain;version=0.0.4;q=0.5"));
+        // Only the delimited encoding is supported
+        assertEquals(TextFormat.CONTENT_TYPE_004, MetricsHttpHandler.chooseContentType(
+                "application/vnd.google.protobuf;proto=io.prometheus.client.MetricFamily;encoding=text,text/plain;q=0.5"));
+    }
+
+    @Test
+    public void testFormats() throws Exception {
+        CollectorRegistry registry = new CollectorRegistry();
+        Gauge.build().name("test_gauge").help("help").register(registry).set(2);
+        StreamingCollectorRegistry streamingRegistry = new StreamingCollectorRegistry();
+        MetricsHttpHandler handler = new MetricsHttpHandler(streamingRegistry, registry, new PrometheusMetricsReporterConfig(Collections.emptyMap()));
+
+        MetricsHttpHandler.Response response = handler.handle(request(PROMETHEUS_ACCEPT));
+        assertEquals(ProtobufFormat.CONTENT_TYPE, response.contentType);
+        ExpositionBuffer expected = new ExpositionBuffer();
+        ProtobufFormat.write(expected, registry.metricFamilySamples());
+        assertEquals(ByteBuffer.wrap(expected.toByteArray()), response.body);
+
+        response = handler.handle(request("application/openmetrics-text"));
+        assertEquals(TextFormat.CONTENT_TYPE_OPENMETRICS_100, response.contentType);
+        assertEquals("# TYPE test_gauge gauge\n# HELP test_gauge help\ntest_gauge 2.0\n# EOF\n", toString(response.body));
+
+        response = handler.handle(request(null));
+        assertEquals(TextFormat.CONTENT_TYPE_004, response.contentType);
+        assertEquals("# HELP test_gauge help\n# TYPE test_gauge gauge\ntest_gauge 2.0\n", toString(response.body));
+    }
+
+    @Test
+    public void testNamedEndpoints() throws Exception {
+        CollectorRegistry registry = new CollectorRegistry();
+        Gauge.build().name("critical_one").help("help").register(registry).set(1);
+        Gauge.build().name("critical_two").help("help").register(registry).set(2);
+        Gauge.build().name("other").help("help").register(registry).set(3);
+        Map<String, String> props = new HashMap<>();
+        props.put(PrometheusMetricsReporterConfig.HTTP_ENDPOINTS_CONFIG, "critical=critical_*, single=other");
+        MetricsHttpHandler handler = new MetricsHttpHandler(new StreamingCollectorRegistry(), registry, new PrometheusMetricsReporterConfig(props));
+
+        // The registry doesn't guarantee the order of the families
+        String critical = toString(handler.handle(request("/metrics/critical", null)).body);
+        assertTrue(critical.contains("# HELP critical_one help\n# TYPE critical_one gauge\ncritical_one 1.0\n"));
+        assertTrue(critical.contains("# HELP critical_two help\n# TYPE critical_two gauge\ncritical_two 2.0\n"));
+        assertEquals("# HELP critical_one help\n# TYPE critical_one gauge\ncritical_one 1.0\n".length() * 2, critical.length());
+        assertEquals("# HELP other help\n# TYPE other gauge\nother 3.0\n", toString(handler.handle(request("/metrics/single", null)).body));
+        assertEquals("# HELP other help\n# TYPE other gauge\nother 3.0\n", toString(handler.handle(request("/metrics", "name[]=other")).body));
+        // The name[] parameters narrow down the metrics of an endpoint
+        assertEquals("# HELP critical_two help\n# TYPE critical_two gauge\ncritical_two 2.0\n",
+                toString(handler.handle(request("/metrics/critical", "name[]=critical_two&name[]=other")).body));
+        assertEquals("", toString(handler.handle(request("/metrics/critical", "name[]=other")).body));
+        assertEquals(404, handler.handle(request("/metrics/unknown", null)).status);
+    }
+
+    private static MetricsHttpHandler.Request request(String path, String query) {
+        return new MetricsHttpHandler.Request("GET", path, query, Collections.emptyMap());
+    }
+
+    private static MetricsHttpHandler.Request request(String accept) {
+        Map<String, String> headers = new HashMap<>();
+        if (accept != null) {
+            headers.put("accept", accept);
+        }
+        return new MetricsHttpHandler.Request("GET", "/metrics", null, headers);
+    }
+
+    private static String toString(ByteBuffer buffer) {
+        return StandardCharsets.UTF_8.decode(buffer.duplicate()).toString();
+    }
+}
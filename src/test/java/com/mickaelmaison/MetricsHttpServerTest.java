@@ -0,0 +1,218 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mickaelmaison;
+
+import io.prometheus.client.CollectorRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+public class MetricsHttpServerTest {
+
+    private static final byte[] METRICS = "# HELP test_metric help\n# TYPE test_metric gauge\ntest_metric 1.0\n".getBytes(StandardCharsets.UTF_8);
+
+    private final StreamingCollectorRegistry streamingRegistry = new StreamingCollectorRegistry();
+    private final CountDownLatch collecting = new CountDownLatch(1);
+    private final CountDownLatch blocked = new CountDownLatch(1);
+    private volatile boolean block;
+    private MetricsHttpServer server;
+
+    @Before
+    public void setup() {
+        streamingRegistry.register(new StreamingCollector() {
+            @Override
+            public void write(ExpositionBuffer buffer) {
+                if (block) {
+                    collecting.countDown();
+                    try {
+                        blocked.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                buffer.write(METRICS);
+            }
+
+            @Override
+            public List<MetricFamilySamples> collect() {
+                return Collections.emptyList();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        blocked.countDown();
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    private MetricsHttpServer startServer(Map<String, String> props) throws IOException {
+        Map<String, String> configs = new HashMap<>(props);
+        configs.putIfAbsent(PrometheusMetricsReporterConfig.PORT_CONFIG, "0");
+        server = new MetricsHttpServer(new PrometheusMetricsReporterConfig(configs), streamingRegistry, new CollectorRegistry());
+        return server;
+    }
+
+    @Test
+    public void testKeepAlive() throws Exception {
+        startServer(Collections.emptyMap());
+        try (Socket socket = new Socket("localhost", server.getPort())) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            for (int i = 0; i < 3; i++) {
+                out.write("GET /metrics HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                String headers = readHeaders(in);
+                assertTrue(headers.startsWith("HTTP/1.1 200 OK"));
+                assertTrue(headers.contains("Connection: keep-alive"));
+                assertArrayEquals(METRICS, readBody(in, headers));
+            }
+
+            // Pipelined requests
+            out.write("GET /-/healthy HTTP/1.1\r\n\r\nHEAD /metrics HTTP/1.1\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            String headers = readHeaders(in);
+            assertEquals("Exporter is Healthy.", new String(readBody(in, headers), StandardCharsets.UTF_8));
+            headers = readHeaders(in);
+            assertTrue(headers.contains("Content-Length: " + METRICS.length));
+            assertTrue(headers.contains("Connection: close"));
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    public void testGzip() throws Exception {
+        startServer(Collections.emptyMap());
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + server.getPort() + "/metrics").openConnection();
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("gzip", connection.getContentEncoding());
+        try (InputStream in = new GZIPInputStream(connection.getInputStream())) {
+            assertArrayEquals(METRICS, readAll(in));
+        }
+    }
+
+    @Test
+    public void testMethodNotAllowed() throws Exception {
+        startServer(Collections.emptyMap());
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + server.getPort() + "/metrics").openConnection();
+        connection.setRequestMethod("DELETE");
+        assertEquals(405, connection.getResponseCode());
+    }
+
+    @Test
+    public void testMaxConcurrentScrapes() throws Exception {
+        Map<String, String> props = new HashMap<>();
+        props.put(PrometheusMetricsReporterConfig.HTTP_MAX_CONCURRENT_SCRAPES_CONFIG, "1");
+        startServer(props);
+        block = true;
+        Thread scrape = new Thread(() -> {
+            try {
+                ((HttpURLConnection) new URL("http://localhost:" + server.getPort() + "/metrics").openConnection()).getResponseCode();
+            } catch (IOException ioe) {
+                // ignored
+            }
+        });
+        scrape.start();
+        assertTrue(collecting.await(10, TimeUnit.SECONDS));
+
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + server.getPort() + "/metrics").openConnection();
+        assertEquals(503, connection.getResponseCode());
+        blocked.countDown();
+        scrape.join();
+    }
+
+    @Test
+    public void testRequestTimeout() throws Exception {
+        Map<String, String> props = new HashMap<>();
+        props.put(PrometheusMetricsReporterConfig.HTTP_REQUEST_TIMEOUT_MS_CONFIG, "100");
+        startServer(props);
+        try (Socket socket = new Socket("localhost", server.getPort())) {
+            socket.setSoTimeout(10000);
+            socket.getOutputStream().write("GET /metrics HTTP/1.1\r\n".getBytes(StandardCharsets.US_ASCII));
+            // The incomplete request is dropped
+            assertEquals(-1, socket.getInputStream().read());
+        }
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        startServer(Collections.emptyMap());
+        int port = server.getPort();
+        server.close();
+        server = startServer(Collections.singletonMap(PrometheusMetricsReporterConfig.PORT_CONFIG, String.valueOf(port)));
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + "/metrics").openConnection();
+        assertEquals(200, connection.getResponseCode());
+    }
+
+    private static String readHeaders(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        while (!sb.toString().endsWith("\r\n\r\n")) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Unexpected end of stream");
+            }
+            sb.append((char) b);
+        }
+        return sb.toString();
+    }
+
+    private static byte[] readBody(InputStream in, String headers) throws IOException {
+        int start = headers.indexOf("Content-Length: ") + "Content-Length: ".length();
+        int length = Integer.parseInt(headers.substring(start, headers.indexOf("\r\n", start)));
+        byte[] body = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int n = in.read(body, read, length - read);
+            if (n < 0) {
+                throw new IOException("Unexpected end of stream");
+            }
+            read += n;
+        }
+        return body;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mickaelmaison;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NameSelectorTest {
+
+    @Test
+    public void testTest() {
+        NameSelector selector = new NameSelector(Arrays.asList("a_b", "c_*"));
+        assertTrue(selector.test("a_b"));
+        assertFalse(selector.test("a_b_sum"));
+        assertTrue(selector.test("c_"));
+        assertTrue(selector.test("c_d_total"));
+        assertFalse(selector.test("c"));
+        assertTrue(new NameSelector(Collections.singletonList("*")).test("a"));
+        assertTrue(new NameSelector(Collections.emptyList()).isEmpty());
+    }
+
+    @Test
+    public void testSelect() {
+        NavigableMap<String, String> families = new TreeMap<>();
+        for (String name : Arrays.asList("a", "a_b", "a_b_c", "a_bc", "b", "b_count", "c_total")) {
+            families.put(name, name);
+        }
+        assertEquals(Arrays.asList("a_b"), select(families, "a_b"));
+        // Samples of histograms and summaries are prefixed by the name of their family
+        assertEquals(Arrays.asList("b_count", "b"), select(families, "b_count"));
+        assertEquals(Arrays.asList("a_b"), select(families, "a_b_bucket"));
+        assertEquals(Arrays.asList("c_total"), select(families, "c_total"));
+        assertEquals(Collections.emptyList(), select(families, "d", "a_c"));
+        assertEquals(Arrays.asList("a_b", "a_b_c", "a_bc", "a"), select(families, "a_b*"));
+        assertEquals(Arrays.asList("a", "a_b", "a_b_c", "a_bc", "b", "b_count", "c_total"), select(families, "*"));
+        // Families whose samples could start with the prefix
+        assertEquals(Arrays.asList("a", "a_b"), select(families, "a_b_m*"));
+    }
+
+    @Test
+    public void testRestrictTo() {
+        NameSelector endpoint = new NameSelector(Arrays.asList("a", "b_*"));
+        NameSelector selector = new NameSelector(Arrays.asList("a", "b_c", "c")).restrictTo(endpoint);
+        assertTrue(selector.test("a"));
+        assertTrue(selector.test("b_c"));
+        assertFalse(selector.test("b_d"));
+        assertFalse(selector.test("c"));
+    }
+
+    private static ArrayList<String> select(NavigableMap<String, String> families, String... entries) {
+        return new ArrayList<>(new NameSelector(Arrays.asList(entries)).select(families));
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mickaelmaison;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ParallelCollectionTest {
+
+    @Test
+    public void testIsEnabled() {
+        assertFalse(new ParallelCollection(1, 0).isEnabled(100));
+        assertFalse(new ParallelCollection(4, 1000).isEnabled(100));
+        assertTrue(new ParallelCollection(4, 100).isEnabled(100));
+    }
+
+    @Test
+    public void testOrder() {
+        List<Integer> families = new ArrayList<>();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            families.add(i);
+            expected.append(i).append('\n');
+        }
+        ParallelCollection parallel = new ParallelCollection(4, 0);
+
+        ExpositionBuffer buffer = new ExpositionBuffer();
+        parallel.write(families, buffer, (family, shardBuffer) -> {
+            shardBuffer.writeLong(family);
+            shardBuffer.write('\n');
+        });
+        assertEquals(expected.toString(), new String(buffer.toByteArray(), StandardCharsets.UTF_8));
+
+        List<Integer> odd = parallel.map(families, family -> family % 2 == 1 ? family : null);
+        assertEquals(500, odd.size());
+        for (int i = 0; i < odd.size(); i++) {
+            assertEquals(2 * i + 1, (int) odd.get(i));
+        }
+    }
+
+    @Test
+    public void testFewerFamiliesThanShards() {
+        ParallelCollection parallel = new ParallelCollection(8, 0);
+        List<Integer> families = new ArrayList<>();
+        families.add(1);
+        families.add(2);
+        assertEquals(families, parallel.map(families, family -> family));
+        assertTrue(parallel.map(new ArrayList<Integer>(), family -> family).isEmpty());
+    }
+}
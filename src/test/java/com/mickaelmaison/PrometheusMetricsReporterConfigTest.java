@@ -16,10 +16,17 @@
  */
 package com.mickaelmaison;
 
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
+import org.apache.kafka.common.config.ConfigException;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import static org.junit.Assert.*;
@@ -32,6 +39,14 @@ public class PrometheusMetricsReporterConfigTest {
 
         assertEquals(PrometheusMetricsReporterConfig.PORT_CONFIG_DEFAULT, config.port());
         assertTrue(config.isAllowed("random_name"));
+        assertTrue(config.isStreamingEnabled());
+        assertEquals(PrometheusMetricsReporterConfig.CACHE_TTL_MS_CONFIG_DEFAULT, config.cacheTtlMs());
+        assertEquals(PrometheusMetricsReporterConfig.HTTP_WORKER_THREADS_CONFIG_DEFAULT, config.httpWorkerThreads());
+        assertFalse(config.httpVirtualThreadsEnabled());
+        assertEquals(PrometheusMetricsReporterConfig.HTTP_MAX_CONCURRENT_SCRAPES_CONFIG_DEFAULT, config.httpMaxConcurrentScrapes());
+        assertEquals(PrometheusMetricsReporterConfig.HTTP_REQUEST_TIMEOUT_MS_CONFIG_DEFAULT, config.httpRequestTimeoutMs());
+        assertEquals(1, config.collectionParallelism());
+        assertSame(Quantiles.DEFAULT, config.quantiles("random_name"));
     }
 
     @Test
@@ -39,11 +54,150 @@ public class PrometheusMetricsReporterConfigTest {
         Map<String, String> props = new HashMap<>();
         props.put(PrometheusMetricsReporterConfig.PORT_CONFIG, "1234");
         props.put(PrometheusMetricsReporterConfig.ALLOWLIST_CONFIG, "kafka_server.*");
+        props.put(PrometheusMetricsReporterConfig.STREAMING_ENABLED_CONFIG, "false");
+        props.put(PrometheusMetricsReporterConfig.CACHE_TTL_MS_CONFIG, "5000");
+        props.put(PrometheusMetricsReporterConfig.HTTP_WORKER_THREADS_CONFIG, "4");
+        props.put(PrometheusMetricsReporterConfig.HTTP_VIRTUAL_THREADS_ENABLED_CONFIG, "true");
+        props.put(PrometheusMetricsReporterConfig.HTTP_MAX_CONNECTIONS_CONFIG, "20");
+        props.put(PrometheusMetricsReporterConfig.HTTP_REQUEST_TIMEOUT_MS_CONFIG, "1000");
+        props.put(PrometheusMetricsReporterConfig.COLLECTION_PARALLELISM_CONFIG, "8");
+        props.put(PrometheusMetricsReporterConfig.COLLECTION_PARALLEL_THRESHOLD_CONFIG, "500");
         PrometheusMetricsReporterConfig config = new PrometheusMetricsReporterConfig(props);
 
         assertEquals(1234, config.port());
         assertFalse(config.isAllowed("random_name"));
         assertTrue(config.isAllowed("kafka_server_metric"));
+        assertFalse(config.isStreamingEnabled());
+        assertEquals(5000L, config.cacheTtlMs());
+        assertEquals(4, config.httpWorkerThreads());
+        assertTrue(config.httpVirtualThreadsEnabled());
+        assertEquals(20, config.httpMaxConnections());
+        assertEquals(1000L, config.httpRequestTimeoutMs());
+        assertEquals(8, config.collectionParallelism());
+        assertEquals(500, config.collectionParallelThreshold());
+    }
+
+    @Test
+    public void testQuantiles() {
+        Map<String, String> props = new HashMap<>();
+        props.put(PrometheusMetricsReporterConfig.QUANTILES_CONFIG, "kafka_network_.*=none, kafka_.*=0.5;0.99");
+        PrometheusMetricsReporterConfig config = new PrometheusMetricsReporterConfig(props);
+
+        assertSame(Quantiles.NONE, config.quantiles("kafka_network_requestmetrics_totaltimems"));
+        assertEquals("0.5;0.99", config.quantiles("kafka_server_metric").toString());
+        assertSame(Quantiles.DEFAULT, config.quantiles("random_name"));
+
+        props.put(PrometheusMetricsReporterConfig.QUANTILES_CONFIG, "kafka_.*=0.5;1.5");
+        assertThrows(ConfigException.class, () -> new PrometheusMetricsReporterConfig(props));
+        props.put(PrometheusMetricsReporterConfig.QUANTILES_CONFIG, "kafka_.*");
+        assertThrows(ConfigException.class, () -> new PrometheusMetricsReporterConfig(props));
+    }
+
+    @Test
+    public void testHistograms() {
+        Map<String, String> props = new HashMap<>();
+        props.put(PrometheusMetricsReporterConfig.HISTOGRAMS_CONFIG, "kafka_network_.*=0.5;1;5");
+        PrometheusMetricsReporterConfig config = new PrometheusMetricsReporterConfig(props);
+
+        assertArrayEquals(new double[] {0.5, 1, 5}, config.histogramBuckets("kafka_network_requestmetrics_totaltimems"), 0);
+        assertNull(config.histogramBuckets("kafka_server_metric"));
+
+        props.put(PrometheusMetricsReporterConfig.HISTOGRAMS_CONFIG, "kafka_.*=5;1");
+        assertThrows(ConfigException.class, () -> new PrometheusMetricsReporterConfig(props));
+        props.put(PrometheusMetricsReporterConfig.HISTOGRAMS_CONFIG, "kafka_.*=a");
+        assertThrows(ConfigException.class, () -> new PrometheusMetricsReporterConfig(props));
+    }
+
+    @Test
+    public void testRollups() {
+        Map<String, String> props = new HashMap<>();
+        props.put(PrometheusMetricsReporterConfig.ROLLUPS_CONFIG, "kafka_log_log_size=sum:topic, kafka_server_.*=MAX:");
+        PrometheusMetricsReporterConfig config = new PrometheusMetricsReporterConfig(props);
+
+        Rollup.Rule rule = config.rollup("kafka_log_log_size");
+        assertEquals(Rollup.Function.SUM, rule.function);
+        assertEquals(Collections.singletonList("topic"), rule.labels);
+        assertEquals("max:", config.rollup("kafka_server_metric").toString());
+        assertNull(config.rollup("random_name"));
+
+        props.put(PrometheusMetricsReporterConfig.ROLLUPS_CONFIG, "kafka_.*=avg:topic");
+        assertThrows(ConfigException.class, () -> new PrometheusMetricsReporterConfig(props));
+        props.put(PrometheusMetricsReporterConfig.ROLLUPS_CONFIG, "kafka_.*=sum");
+        assertThrows(ConfigException.class, () -> new PrometheusMetricsReporterConfig(props));
+    }
+
+    @Test
+    public void testRefreshTiers() {
+        Map<String, String> props = new HashMap<>();
+        props.put(PrometheusMetricsReporterConfig.REFRESH_TIERS_CONFIG, "kafka_log_log_size=60000, kafka_log_.*=10000");
+        PrometheusMetricsReporterConfig config = new PrometheusMetricsReporterConfig(props);
+        assertEquals(60000L, config.refreshIntervalMs("kafka_log_log_size"));
+        assertEquals(10000L, config.refreshIntervalMs("kafka_log_log_offset"));
+        assertEquals(0L, config.refreshIntervalMs("kafka_server_metric"));
+
+        props.put(PrometheusMetricsReporterConfig.REFRESH_TIERS_CONFIG, "kafka_.*=0");
+        assertThrows(ConfigException.class, () -> new PrometheusMetricsReporterConfig(props));
+        props.put(PrometheusMetricsReporterConfig.REFRESH_TIERS_CONFIG, "kafka_.*=slow");
+        assertThrows(ConfigException.class, () -> new PrometheusMetricsReporterConfig(props));
+    }
+
+    @Test
+    public void testSlowMetrics() {
+        Map<String, String> props = new HashMap<>();
+        props.put(PrometheusMetricsReporterConfig.REFRESH_TIERS_CONFIG, "kafka_log_log_size=60000");
+        props.put(PrometheusMetricsReporterConfig.SLOW_METRICS_CONFIG, "kafka_server_slow_.*");
+        PrometheusMetricsReporterConfig config = new PrometheusMetricsReporterConfig(props);
+        // Without timeout, slow metrics are evaluated on the scraping thread
+        assertNull(config.cachedValue("kafka_server_slow_metric", () -> 1));
+        assertNotNull(config.cachedValue("kafka_log_log_size", () -> 1));
+
+        props.put(PrometheusMetricsReporterConfig.METRIC_TIMEOUT_MS_CONFIG, "1000");
+        config = new PrometheusMetricsReporterConfig(props);
+        assertTrue(config.isSlow("kafka_server_slow_metric"));
+        assertNotNull(config.cachedValue("kafka_server_slow_metric", () -> 1));
+        assertNotNull(config.cachedValue("kafka_log_log_size", () -> 1));
+        // Cheap metrics stay on the scraping thread
+        assertFalse(config.isSlow("kafka_server_metric"));
+        assertNull(config.cachedValue("kafka_server_metric", () -> 1));
+    }
+
+    @Test
+    public void testJvmCollectors() {
+        Map<String, String> props = new HashMap<>();
+        props.put(PrometheusMetricsReporterConfig.JVM_COLLECTORS_CONFIG, "version,threads");
+        PrometheusMetricsReporterConfig config = new PrometheusMetricsReporterConfig(props);
+        assertEquals(Arrays.asList("version", "threads"), config.jvmCollectors());
+        assertFalse(config.isDefaultRegistryEnabled());
+
+        props.put(PrometheusMetricsReporterConfig.JVM_COLLECTORS_CONFIG, "version,unknown");
+        assertThrows(ConfigException.class, () -> new PrometheusMetricsReporterConfig(props));
+    }
+
+    @Test
+    public void testRegisterJvmCollectors() {
+        CollectorRegistry registry = new CollectorRegistry();
+        JvmCollectors collectors = new JvmCollectors(registry);
+        collectors.register(Collections.singletonList("version"), 0L, false);
+        // Registering them again, for example from the Yammer reporter, is a no-op
+        collectors.register(Collections.singletonList("version"), 0L, false);
+        assertEquals(Collections.singletonList("jvm"), familyNames(registry));
+
+        Gauge gauge = Gauge.build("other_library_metric", "help").register();
+        try {
+            collectors.register(Collections.singletonList("version"), 0L, true);
+            assertEquals(Arrays.asList("jvm", "other_library_metric"), familyNames(registry));
+        } finally {
+            CollectorRegistry.defaultRegistry.unregister(gauge);
+        }
+    }
+
+    private static List<String> familyNames(CollectorRegistry registry) {
+        List<String> names = new ArrayList<>();
+        for (Collector.MetricFamilySamples family : Collections.list(registry.metricFamilySamples())) {
+            names.add(family.name);
+        }
+        Collections.sort(names);
+        return names;
     }
 
     @Test
@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mickaelmaison;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
+import io.prometheus.client.Summary;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class ProtobufFormatTest {
+
+    @Test
+    public void testGauge() {
+        Collector.MetricFamilySamples family = new Collector.MetricFamilySamples("a", Collector.Type.GAUGE, "h",
+                Collections.singletonList(new Collector.MetricFamilySamples.Sample("a", Collections.singletonList("k"), Collections.singletonList("v"), 1.0)));
+        ExpositionBuffer buffer = new ExpositionBuffer();
+        ProtobufFormat.write(buffer, Collections.enumeration(Collections.singletonList(family)));
+
+        byte[] expected = {
+            29, // length of the family
+            0x0a, 1, 'a', // name
+            0x12, 1, 'h', // help
+            0x18, 1, // type GAUGE
+            0x22, 19, // metric
+            0x0a, 6, 0x0a, 1, 'k', 0x12, 1, 'v', // label
+            0x12, 9, 0x09, 0, 0, 0, 0, 0, 0, (byte) 0xf0, 0x3f // gauge value
+        };
+        assertArrayEquals(expected, buffer.toByteArray());
+    }
+
+    @Test
+    public void testEmptyFamily() {
+        Collector.MetricFamilySamples family = new Collector.MetricFamilySamples("a", Collector.Type.GAUGE, "h", Collections.emptyList());
+        ExpositionBuffer buffer = new ExpositionBuffer();
+        ProtobufFormat.write(buffer, Collections.enumeration(Collections.singletonList(family)));
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void testCounter() {
+        Counter counter = Counter.build().name("requests").help("h").labelNames("k").create();
+        counter.labels("v").inc(3);
+        ExpositionBuffer buffer = new ExpositionBuffer();
+        ProtobufFormat.write(buffer, Collections.enumeration(counter.collect()));
+
+        // The family is named like in the text format and the _created sample is skipped
+        byte[] header = ProtobufFormat.familyHeader("requests", Collector.Type.COUNTER, "h");
+        byte[] labels = ProtobufFormat.labels(Collections.singletonList("k"), Collections.singletonList("v"));
+        ExpositionBuffer expected = new ExpositionBuffer();
+        int start = ProtobufFormat.startFamily(expected, header);
+        ProtobufFormat.writeValue(expected, Collector.Type.COUNTER, labels, 3.0);
+        ProtobufFormat.endFamily(expected, start, header);
+        assertArrayEquals(expected.toByteArray(), buffer.toByteArray());
+        assertArrayEquals(ProtobufFormat.familyHeader("requests_total", Collector.Type.COUNTER, "h"), header);
+        assertEquals("requests_total", new String(header, 2, header[1]));
+    }
+
+    @Test
+    public void testSummary() {
+        Summary summary = Summary.build().name("latency").help("h").quantile(0.5, 0.01).create();
+        summary.observe(2);
+        ExpositionBuffer buffer = new ExpositionBuffer();
+        ProtobufFormat.write(buffer, Collections.enumeration(summary.collect()));
+
+        byte[] header = ProtobufFormat.familyHeader("latency", Collector.Type.SUMMARY, "h");
+        ExpositionBuffer expected = new ExpositionBuffer();
+        int start = ProtobufFormat.startFamily(expected, header);
+        // count, sum and one quantile
+        int summarySize = 2 + 9 + 20;
+        expected.write(0x22);
+        expected.writeVarint(2 + summarySize);
+        expected.write(0x22);
+        expected.writeVarint(summarySize);
+        expected.write(0x08);
+        expected.writeVarint(1);
+        expected.write(0x11);
+        expected.writeFixed64(2.0);
+        ProtobufFormat.writeQuantile(expected, 0.5, 2.0);
+        ProtobufFormat.endFamily(expected, start, header);
+        assertArrayEquals(expected.toByteArray(), buffer.toByteArray());
+    }
+
+    @Test
+    public void testHistogram() {
+        Histogram histogram = Histogram.build().name("size").help("h").buckets(1, 10).create();
+        histogram.observe(5);
+        histogram.observe(50);
+        ExpositionBuffer buffer = new ExpositionBuffer();
+        ProtobufFormat.write(buffer, Collections.enumeration(histogram.collect()));
+
+        byte[] header = ProtobufFormat.familyHeader("size", Collector.Type.HISTOGRAM, "h");
+        ExpositionBuffer expected = new ExpositionBuffer();
+        int start = ProtobufFormat.startFamily(expected, header);
+        // count, sum and the 2 finite buckets
+        int histogramSize = 2 + 9 + 2 * 13;
+        expected.write(0x22);
+        expected.writeVarint(2 + histogramSize);
+        expected.write(0x3a);
+        expected.writeVarint(histogramSize);
+        expected.write(0x08);
+        expected.writeVarint(2);
+        expected.write(0x11);
+        expected.writeFixed64(55.0);
+        for (double[] bucket : Arrays.asList(new double[] {0, 1}, new double[] {1, 10})) {
+            expected.write(0x1a);
+            expected.write(11);
+            expected.write(0x08);
+            expected.writeVarint((long) bucket[0]);
+            expected.write(0x11);
+            expected.writeFixed64(bucket[1]);
+        }
+        ProtobufFormat.endFamily(expected, start, header);
+        assertArrayEquals(expected.toByteArray(), buffer.toByteArray());
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mickaelmaison;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class RemoteWriteBufferTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testAppendAndReplay() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        RemoteWriteBuffer buffer = new RemoteWriteBuffer(dir, 10000, 1024);
+        assertNull(buffer.peek());
+        for (int i = 0; i < 30; i++) {
+            buffer.append(body(i), i);
+        }
+        // 30 records of 100 bytes don't fit in one segment
+        assertEquals(3072, buffer.totalBytes());
+        for (int i = 0; i < 10; i++) {
+            RemoteWriteBuffer.Record record = buffer.peek();
+            assertEquals(i, record.series);
+            assertEquals(new String(body(i), StandardCharsets.UTF_8), new String(record.body, StandardCharsets.UTF_8));
+            buffer.advance();
+        }
+        // Not advancing returns the same record
+        assertEquals(10, buffer.peek().series);
+        buffer.close();
+
+        // Resumes from the checkpoint after a restart, and keeps appending after the last record
+        buffer = new RemoteWriteBuffer(dir, 10000, 1024);
+        buffer.append(body(30), 30);
+        for (int i = 10; i <= 30; i++) {
+            assertEquals(i, buffer.peek().series);
+            buffer.advance();
+        }
+        assertNull(buffer.peek());
+        // Delivered segments are deleted
+        assertEquals(1024, buffer.totalBytes());
+        buffer.close();
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        RemoteWriteBuffer buffer = new RemoteWriteBuffer(dir, 2048, 1024);
+        for (int i = 0; i < 30; i++) {
+            buffer.append(body(i), i);
+        }
+        assertEquals(2048, buffer.totalBytes());
+        // The oldest segments were dropped, 10 records of 100 bytes fit in a segment
+        assertEquals(10, buffer.peek().series);
+        // Too large for the buffer
+        buffer.append(new byte[4096], 1);
+        buffer.close();
+
+        buffer = new RemoteWriteBuffer(dir, 2048, 1024);
+        for (int i = 10; i < 30; i++) {
+            assertEquals(i, buffer.peek().series);
+            buffer.advance();
+        }
+        assertNull(buffer.peek());
+        buffer.close();
+    }
+
+    @Test
+    public void testLargeRecord() throws Exception {
+        RemoteWriteBuffer buffer = new RemoteWriteBuffer(folder.getRoot().toPath(), 10000, 1024);
+        buffer.append(new byte[2000], 1);
+        buffer.append(body(2), 2);
+        assertEquals(2000, buffer.peek().body.length);
+        buffer.advance();
+        assertEquals(2, buffer.peek().series);
+        buffer.close();
+    }
+
+    private static byte[] body(int i) {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 92) {
+            sb.append(i).append(' ');
+        }
+        return sb.substring(0, 92).getBytes(StandardCharsets.UTF_8);
+    }
+}
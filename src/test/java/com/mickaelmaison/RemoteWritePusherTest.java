@@ -0,0 +1,165 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mickaelmaison;
+
+import io.prometheus.client.CollectorRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RemoteWritePusherTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final StreamingCollectorRegistry streamingRegistry = new StreamingCollectorRegistry();
+    private final CollectorRegistry registry = new CollectorRegistry();
+    private RemoteWriteReceiver receiver;
+
+    @Before
+    public void setup() throws Exception {
+        receiver = new RemoteWriteReceiver();
+        streamingRegistry.register(new StreamingCollector() {
+            @Override
+            public void write(ExpositionBuffer buffer) {
+            }
+
+            @Override
+            public List<MetricFamilySamples> collect() {
+                MetricFamilySamplesBuilder builder = new MetricFamilySamplesBuilder("test_metric", Type.GAUGE, "help");
+                for (int i = 0; i < 5; i++) {
+                    builder.addSample("test_metric", i, Arrays.asList("topic", "instance"), Arrays.asList("t" + i, "from-sample"));
+                }
+                return Collections.singletonList(builder.build());
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        receiver.close();
+    }
+
+    private RemoteWritePusher pusher(Map<String, String> props) throws Exception {
+        Map<String, String> configs = new HashMap<>(props);
+        configs.put(PrometheusMetricsReporterConfig.PUSH_URL_CONFIG, receiver.url());
+        configs.putIfAbsent(PrometheusMetricsReporterConfig.PUSH_RETRY_BACKOFF_MS_CONFIG, "1");
+        return new RemoteWritePusher(new PrometheusMetricsReporterConfig(configs), streamingRegistry, registry);
+    }
+
+    @Test
+    public void testPush() throws Exception {
+        Map<String, String> props = new HashMap<>();
+        props.put(PrometheusMetricsReporterConfig.PUSH_LABELS_CONFIG, "job=test, instance=from-config");
+        long start = System.currentTimeMillis();
+        assertEquals(5, pusher(props).push());
+
+        List<RemoteWriteReceiver.Series> series = receiver.series();
+        assertEquals(5, series.size());
+        RemoteWriteReceiver.Series first = series.get(0);
+        // Sorted by name, and the labels of the sample take precedence
+        assertEquals(Arrays.asList("__name__", "instance", "job", "topic"), new ArrayList<>(first.labels.keySet()));
+        assertEquals("test_metric", first.labels.get("__name__"));
+        assertEquals("from-sample", first.labels.get("instance"));
+        assertEquals("test", first.labels.get("job"));
+        assertEquals("t0", first.labels.get("topic"));
+        assertEquals(0.0, first.value, 0);
+        assertEquals(4.0, series.get(4).value, 0);
+        assertTrue(first.timestampMs >= start);
+    }
+
+    @Test
+    public void testBatching() throws Exception {
+        Map<String, String> props = new HashMap<>();
+        props.put(PrometheusMetricsReporterConfig.PUSH_MAX_SERIES_PER_REQUEST_CONFIG, "2");
+        assertEquals(5, pusher(props).push());
+        assertEquals(3, receiver.requests().size());
+        assertEquals(2, receiver.requests().get(0).size());
+        assertEquals(1, receiver.requests().get(2).size());
+    }
+
+    @Test
+    public void testRetries() throws Exception {
+        Map<String, String> props = new HashMap<>();
+        props.put(PrometheusMetricsReporterConfig.PUSH_RETRIES_CONFIG, "2");
+        RemoteWritePusher pusher = pusher(props);
+        receiver.failNext(2);
+        assertEquals(5, pusher.push());
+        assertEquals(1, receiver.requests().size());
+
+        // The batch is dropped once the retries are exhausted
+        receiver.failNext(3);
+        assertEquals(0, pusher.push());
+        assertEquals(1, receiver.requests().size());
+    }
+
+    @Test
+    public void testCloseDoesLastPush() throws Exception {
+        RemoteWritePusher pusher = pusher(Collections.emptyMap());
+        pusher.schedule();
+        pusher.close();
+        assertEquals(5, receiver.series().size());
+    }
+
+    @Test
+    public void testOutage() throws Exception {
+        Map<String, String> props = new HashMap<>();
+        props.put(PrometheusMetricsReporterConfig.PUSH_BUFFER_DIR_CONFIG, folder.getRoot().getPath());
+        props.put(PrometheusMetricsReporterConfig.PUSH_RETRIES_CONFIG, "0");
+        RemoteWritePusher pusher = pusher(props);
+        receiver.failNext(Integer.MAX_VALUE);
+        assertEquals(0, pusher.push());
+        assertEquals(0, pusher.push());
+        assertTrue(receiver.requests().isEmpty());
+
+        // The endpoint is back, the buffered requests are delivered in order before the new one
+        receiver.failNext(0);
+        assertEquals(15, pusher.push());
+        List<List<RemoteWriteReceiver.Series>> requests = receiver.requests();
+        assertEquals(3, requests.size());
+        assertTrue(requests.get(0).get(0).timestampMs <= requests.get(1).get(0).timestampMs);
+        assertTrue(requests.get(1).get(0).timestampMs <= requests.get(2).get(0).timestampMs);
+    }
+
+    @Test
+    public void testOutageAcrossRestarts() throws Exception {
+        Map<String, String> props = new HashMap<>();
+        props.put(PrometheusMetricsReporterConfig.PUSH_BUFFER_DIR_CONFIG, folder.getRoot().getPath());
+        props.put(PrometheusMetricsReporterConfig.PUSH_RETRIES_CONFIG, "0");
+        receiver.failNext(Integer.MAX_VALUE);
+        RemoteWritePusher pusher = pusher(props);
+        pusher.push();
+        // Closing does a last push, which is buffered too
+        pusher.close();
+
+        receiver.failNext(0);
+        assertEquals(15, pusher(props).push());
+        assertEquals(3, receiver.requests().size());
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mickaelmaison;
+
+import com.sun.net.httpserver.HttpServer;
+import org.xerial.snappy.Snappy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process stand-in for a Prometheus remote write endpoint, decoding the series it receives.
+ */
+public class RemoteWriteReceiver implements Closeable {
+
+    /**
+     * A decoded TimeSeries with its single sample.
+     */
+    public static final class Series {
+
+        public final Map<String, String> labels;
+        public final double value;
+        public final long timestampMs;
+
+        Series(Map<String, String> labels, double value, long timestampMs) {
+            this.labels = labels;
+            this.value = value;
+            this.timestampMs = timestampMs;
+        }
+    }
+
+    private final HttpServer server;
+    private final List<List<Series>> requests = new CopyOnWriteArrayList<>();
+    // The number of requests to fail with a 503 before accepting them
+    private final AtomicInteger failures = new AtomicInteger();
+
+    public RemoteWriteReceiver() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/api/v1/write", exchange -> {
+            byte[] body = readAll(exchange.getRequestBody());
+            int status;
+            if (failures.getAndUpdate(f -> Math.max(0, f - 1)) > 0) {
+                status = 503;
+            } else if (!"snappy".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                status = 400;
+            } else {
+                requests.add(decode(Snappy.uncompress(body)));
+                status = 204;
+            }
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    public String url() {
+        return "http://localhost:" + server.getAddress().getPort() + "/api/v1/write";
+    }
+
+    public void failNext(int count) {
+        failures.set(count);
+    }
+
+    public List<List<Series>> requests() {
+        return requests;
+    }
+
+    public List<Series> series() {
+        List<Series> series = new ArrayList<>();
+        for (List<Series> request : requests) {
+            series.addAll(request);
+        }
+        return series;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    static List<Series> decode(byte[] request) {
+        ByteBuffer buffer = ByteBuffer.wrap(request).order(ByteOrder.LITTLE_ENDIAN);
+        List<Series> series = new ArrayList<>();
+        while (buffer.hasRemaining()) {
+            int tag = (int) readVarint(buffer);
+            if (tag != (1 << 3 | 2)) {
+                throw new IllegalArgumentException("Unexpected WriteRequest field " + tag);
+            }
+            ByteBuffer timeSeries = slice(buffer);
+            Map<String, String> labels = new LinkedHashMap<>();
+            double value = Double.NaN;
+            long timestampMs = 0;
+            while (timeSeries.hasRemaining()) {
+                tag = (int) readVarint(timeSeries);
+                ByteBuffer message = slice(timeSeries);
+                if (tag == (1 << 3 | 2)) {
+                    String name = null;
+                    while (message.hasRemaining()) {
+                        int field = (int) readVarint(message);
+                        String s = StandardCharsets.UTF_8.decode(slice(message)).toString();
+                        if (field == (1 << 3 | 2)) {
+                            name = s;
+                        } else {
+                            labels.put(name, s);
+                        }
+                    }
+                } else if (tag == (2 << 3 | 2)) {
+                    while (message.hasRemaining()) {
+                        int field = (int) readVarint(message);
+                        if (field == (1 << 3 | 1)) {
+                            value = message.getDouble();
+                        } else {
+                            timestampMs = readVarint(message);
+                        }
+                    }
+                } else {
+                    throw new IllegalArgumentException("Unexpected TimeSeries field " + tag);
+                }
+            }
+            series.add(new Series(Collections.unmodifiableMap(labels), value, timestampMs));
+        }
+        return series;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer) {
+        int length = (int) readVarint(buffer);
+        ByteBuffer slice = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        slice.limit(length);
+        buffer.position(buffer.position() + length);
+        return slice;
+    }
+
+    private static long readVarint(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mickaelmaison;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.exporter.common.TextFormat;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class ReporterMetricsTest {
+
+    @Test
+    public void testCollect() throws Exception {
+        ReporterMetrics metrics = new ReporterMetrics();
+        metrics.recordScrape(TimeUnit.MILLISECONDS.toNanos(3), 100);
+        metrics.recordScrape(TimeUnit.SECONDS.toNanos(20), 50);
+        metrics.recordCompression(TimeUnit.MILLISECONDS.toNanos(1), 1000, 100);
+        metrics.recordStage(ReporterMetrics.Stage.REGISTRATION, TimeUnit.MILLISECONDS.toNanos(500));
+        metrics.kafka.recordFamily(3, 1);
+        metrics.kafka.recordFamily(0, 2);
+        metrics.yammer.recordDropped();
+        metrics.kafka.recordCachedAge(TimeUnit.SECONDS.toNanos(2));
+        metrics.kafka.recordCachedAge(TimeUnit.SECONDS.toNanos(4));
+
+        Map<String, Collector.MetricFamilySamples.Sample> samples = new HashMap<>();
+        List<Collector.MetricFamilySamples> families = metrics.collect();
+        for (Collector.MetricFamilySamples family : families) {
+            for (Collector.MetricFamilySamples.Sample sample : family.samples) {
+                String key = sample.labelValues.isEmpty() ? sample.name : sample.name + "{" + sample.labelValues.get(0) + "}";
+                samples.put(key, sample);
+            }
+        }
+        assertEquals(0.0, samples.get("prometheus_metrics_reporter_scrape_duration_seconds_bucket{0.0025}").value, 0);
+        assertEquals(1.0, samples.get("prometheus_metrics_reporter_scrape_duration_seconds_bucket{0.005}").value, 0);
+        assertEquals(1.0, samples.get("prometheus_metrics_reporter_scrape_duration_seconds_bucket{10.0}").value, 0);
+        assertEquals(2.0, samples.get("prometheus_metrics_reporter_scrape_duration_seconds_bucket{+Inf}").value, 0);
+        assertEquals(2.0, samples.get("prometheus_metrics_reporter_scrape_duration_seconds_count").value, 0);
+        assertEquals(20.003, samples.get("prometheus_metrics_reporter_scrape_duration_seconds_sum").value, 1e-9);
+        assertEquals(150.0, samples.get("prometheus_metrics_reporter_response_bytes_total").value, 0);
+        assertEquals(1000.0, samples.get("prometheus_metrics_reporter_compression_input_bytes_total").value, 0);
+        assertEquals(100.0, samples.get("prometheus_metrics_reporter_compression_output_bytes_total").value, 0);
+        assertEquals(0.5, samples.get("prometheus_metrics_reporter_stage_seconds_total{registration}").value, 0);
+        assertEquals(0.001, samples.get("prometheus_metrics_reporter_stage_seconds_total{compression}").value, 0);
+        assertEquals(3.0, samples.get("prometheus_metrics_reporter_series_total{kafka}").value, 0);
+        assertEquals(1.0, samples.get("prometheus_metrics_reporter_families_total{kafka}").value, 0);
+        assertEquals(3.0, samples.get("prometheus_metrics_reporter_skipped_total{kafka}").value, 0);
+        assertEquals(1.0, samples.get("prometheus_metrics_reporter_dropped_total{yammer}").value, 0);
+        assertEquals(0.0, samples.get("prometheus_metrics_reporter_dropped_total{kafka}").value, 0);
+        assertEquals(2.0, samples.get("prometheus_metrics_reporter_cached_value_age_seconds_count{kafka}").value, 0);
+        assertEquals(6.0, samples.get("prometheus_metrics_reporter_cached_value_age_seconds_sum{kafka}").value, 0);
+        // Collecting doesn't reset them
+        assertEquals(2.0, metrics.kafka.cachedValues.sum(), 0);
+
+        ExpositionBuffer buffer = new ExpositionBuffer();
+        metrics.write(buffer);
+        StringWriter expected = new StringWriter();
+        TextFormat.write004(expected, Collections.enumeration(families));
+        assertEquals(expected.toString(), new String(buffer.toByteArray(), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mickaelmaison;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class ScrapeCacheTest {
+
+    @Test
+    public void testSingleFlight() throws Exception {
+        ScrapeCache cache = new ScrapeCache(0);
+        AtomicInteger renders = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ScrapeCache.Renderer renderer = () -> {
+            renders.incrementAndGet();
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return "metrics".getBytes(StandardCharsets.UTF_8);
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<MetricsSnapshot> first = executor.submit(() -> cache.get(renderer));
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            Future<MetricsSnapshot> second = executor.submit(() -> cache.get(renderer));
+            // Give the second scrape time to join the in-flight collection
+            Thread.sleep(100);
+            release.countDown();
+            assertSame(first.get(10, TimeUnit.SECONDS), second.get(10, TimeUnit.SECONDS));
+            assertEquals(1, renders.get());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Without TTL, the next scrape collects again
+        cache.get(renderer);
+        assertEquals(2, renders.get());
+    }
+
+    @Test
+    public void testJoinTimeout() throws Exception {
+        ScrapeCache cache = new ScrapeCache(0, false, 50);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ScrapeCache.Renderer renderer = () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return "metrics".getBytes(StandardCharsets.UTF_8);
+        };
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<MetricsSnapshot> stuck = executor.submit(() -> cache.get(renderer));
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            // The joining scrape gives up instead of waiting for the stuck collection
+            assertThrows(IOException.class, () -> cache.get(renderer));
+            release.countDown();
+            stuck.get(10, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testTtl() throws Exception {
+        ScrapeCache cache = new ScrapeCache(TimeUnit.HOURS.toMillis(1));
+        AtomicInteger renders = new AtomicInteger();
+        ScrapeCache.Renderer renderer = () -> String.valueOf(renders.incrementAndGet()).getBytes(StandardCharsets.UTF_8);
+
+        MetricsSnapshot snapshot = cache.get(renderer);
+        assertSame(snapshot, cache.get(renderer));
+        assertEquals(1, renders.get());
+
+        ScrapeCache noCache = new ScrapeCache(0);
+        assertNotSame(noCache.get(renderer), noCache.get(renderer));
+    }
+
+    @Test
+    public void testRefresh() throws Exception {
+        ScrapeCache cache = new ScrapeCache(0, true);
+        AtomicInteger renders = new AtomicInteger();
+        ScrapeCache.Renderer renderer = () -> String.valueOf(renders.incrementAndGet()).getBytes(StandardCharsets.UTF_8);
+
+        // Until the first refresh, scrapes render the metrics themselves
+        MetricsSnapshot snapshot = cache.get(renderer);
+        assertEquals(1, renders.get());
+        // Then they're served the latest rendering
+        assertSame(snapshot, cache.get(renderer));
+        cache.refresh(renderer);
+        MetricsSnapshot refreshed = cache.get(renderer);
+        assertNotSame(snapshot, refreshed);
+        assertArrayEquals("2".getBytes(StandardCharsets.UTF_8), refreshed.body());
+        assertEquals(2, renders.get());
+
+        // The refresh also compressed the body, so scrapes don't
+        assertFalse(snapshot.isCompressed());
+        assertTrue(refreshed.isCompressed());
+    }
+
+    @Test
+    public void testGzipped() throws Exception {
+        byte[] body = "# HELP name \n# TYPE name gauge\nname 1.0\n".getBytes(StandardCharsets.UTF_8);
+        MetricsSnapshot snapshot = new MetricsSnapshot(body, System.nanoTime());
+        byte[] gzipped = snapshot.gzipped();
+        assertSame(gzipped, snapshot.gzipped());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped))) {
+            byte[] chunk = new byte[1024];
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                out.write(chunk, 0, read);
+            }
+        }
+        assertArrayEquals(body, out.toByteArray());
+    }
+}
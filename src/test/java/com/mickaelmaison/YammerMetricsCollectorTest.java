@@ -18,23 +18,37 @@ package com.mickaelmaison;
 
 import com.yammer.metrics.core.Counter;
 import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Histogram;
 import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
 import io.prometheus.client.Collector;
+import io.prometheus.client.exporter.common.TextFormat;
 import org.apache.kafka.server.metrics.KafkaYammerMetrics;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
 public class YammerMetricsCollectorTest {
 
+    private final List<YammerMetricsCollector> collectors = new ArrayList<>();
     private LinkedHashMap<String, String> tags;
 
     @Before
@@ -44,12 +58,42 @@ public class YammerMetricsCollectorTest {
         tags.put("k2", "v2");
     }
 
+    @After
+    public void teardown() {
+        for (YammerMetricsCollector collector : collectors) {
+            collector.close();
+        }
+        collectors.clear();
+    }
+
+    private YammerMetricsCollector newCollector(PrometheusMetricsReporterConfig config) {
+        YammerMetricsCollector collector = new YammerMetricsCollector(config);
+        collectors.add(collector);
+        return collector;
+    }
+
+    @Test
+    public void testClose() {
+        Map<String, String> props = new HashMap<>();
+        props.put(PrometheusMetricsReporterConfig.ALLOWLIST_CONFIG, "kafka_server_closed.*");
+        YammerMetricsCollector collector = newCollector(new PrometheusMetricsReporterConfig(props));
+        newCounter("closed", "before", "type");
+        assertEquals(1, collector.collect().size());
+
+        // Once closed, the collector isn't notified of the metrics added or removed
+        collector.close();
+        newCounter("closed", "after", "type");
+        removeMetric("closed", "before", "type");
+        assertEquals(1, collector.collect().size());
+        removeMetric("closed", "after", "type");
+    }
+
     @Test
     public void testCollect() {
         Map<String, String> props = new HashMap<>();
         props.put(PrometheusMetricsReporterConfig.ALLOWLIST_CONFIG, "kafka_server_group_name.*");
         PrometheusMetricsReporterConfig config = new PrometheusMetricsReporterConfig(props);
-        YammerMetricsCollector collector = new YammerMetricsCollector(config);
+        YammerMetricsCollector collector = newCollector(config);
 
         List<Collector.MetricFamilySamples> metrics = collector.collect();
         assertTrue(metrics.isEmpty());
@@ -88,6 +132,339 @@ public class YammerMetricsCollectorTest {
         assertTrue(metrics.isEmpty());
     }
 
+    @Test
+    public void testWrite() throws Exception {
+        Map<String, String> props = new HashMap<>();
+        props.put(PrometheusMetricsReporterConfig.ALLOWLIST_CONFIG, "kafka_server_write.*");
+        PrometheusMetricsReporterConfig config = new PrometheusMetricsReporterConfig(props);
+        YammerMetricsCollector collector = newCollector(config);
+        MetricsRegistry registry = KafkaYammerMetrics.defaultRegistry();
+
+        newCounter("write", "counter", "type").inc(3);
+        LinkedHashMap<String, String> otherTags = new LinkedHashMap<>();
+        otherTags.put("k1", "other");
+        registry.newCounter(KafkaYammerMetrics.getMetricName("write", "counter", "type", otherTags)).inc(4);
+        registry.newGauge(KafkaYammerMetrics.getMetricName("write", "gauge", "type", tags), new Gauge<Double>() {
+            @Override
+            public Double value() {
+                return 1.5;
+            }
+        });
+        newNonNumericGauge("write", "string", "type");
+        registry.newMeter(KafkaYammerMetrics.getMetricName("write", "meter", "type", tags), "events", TimeUnit.SECONDS).mark(5);
+        Histogram histogram = registry.newHistogram(KafkaYammerMetrics.getMetricName("write", "histogram", "type", tags), true);
+        for (int i = 0; i < 100; i++) {
+            histogram.update(i);
+        }
+        registry.newTimer(KafkaYammerMetrics.getMetricName("write", "timer", "type", tags), TimeUnit.MILLISECONDS, TimeUnit.SECONDS)
+                .update(10, TimeUnit.MILLISECONDS);
+
+        List<Collector.MetricFamilySamples> metrics = collector.collect();
+        // Histograms and timers also have _min and _max gauges
+        assertEquals(9, metrics.size());
+        assertEquals(2, metrics.stream().filter(m -> m.name.equals("kafka_server_write_counter_type_count")).findFirst().get().samples.size());
+        // Meters are counters and summaries are named after their quantiles
+        assertEquals(Collector.Type.COUNTER, metrics.stream().filter(m -> m.name.equals("kafka_server_write_meter_type_count")).findFirst().get().type);
+        assertEquals(Collector.Type.SUMMARY, metrics.stream().filter(m -> m.name.equals("kafka_server_write_histogram_type")).findFirst().get().type);
+
+        ExpositionBuffer buffer = new ExpositionBuffer();
+        collector.write(buffer);
+        StringWriter expected = new StringWriter();
+        TextFormat.write004(expected, Collections.enumeration(collector.collect()));
+        assertEquals(expected.toString(), new String(buffer.toByteArray(), StandardCharsets.UTF_8));
+
+        buffer.reset();
+        collector.writeProtobuf(buffer);
+        ExpositionBuffer expectedProtobuf = new ExpositionBuffer();
+        ProtobufFormat.write(expectedProtobuf, Collections.enumeration(collector.collect()));
+        assertArrayEquals(expectedProtobuf.toByteArray(), buffer.toByteArray());
+    }
+
+    @Test
+    public void testQuantiles() throws Exception {
+        Map<String, String> props = new HashMap<>();
+        props.put(PrometheusMetricsReporterConfig.ALLOWLIST_CONFIG, "kafka_server_quantiles.*");
+        props.put(PrometheusMetricsReporterConfig.QUANTILES_CONFIG, "kafka_server_quantiles_none.*=none,kafka_server_quantiles_.*=0.5;0.99");
+        PrometheusMetricsReporterConfig config = new PrometheusMetricsReporterConfig(props);
+        YammerMetricsCollector collector = newCollector(config);
+        MetricsRegistry registry = KafkaYammerMetrics.defaultRegistry();
+
+        Histogram histogram = registry.newHistogram(KafkaYammerMetrics.getMetricName("quantiles", "histogram", "type", tags), true);
+        Histogram none = registry.newHistogram(KafkaYammerMetrics.getMetricName("quantiles", "none", "type", tags), true);
+        for (int i = 1; i <= 100; i++) {
+            histogram.update(i);
+            none.update(i);
+        }
+
+        Map<String, Collector.MetricFamilySamples> metrics = new HashMap<>();
+        for (Collector.MetricFamilySamples family : collector.collect()) {
+            metrics.put(family.name, family);
+        }
+        List<Collector.MetricFamilySamples.Sample> samples = metrics.get("kafka_server_quantiles_histogram_type").samples;
+        assertEquals(4, samples.size());
+        assertEquals("kafka_server_quantiles_histogram_type_count", samples.get(0).name);
+        assertEquals(100.0, samples.get(0).value, 0);
+        assertEquals("kafka_server_quantiles_histogram_type_sum", samples.get(1).name);
+        assertEquals(5050.0, samples.get(1).value, 0);
+        assertEquals("0.5", samples.get(2).labelValues.get(samples.get(2).labelValues.size() - 1));
+        assertEquals("0.99", samples.get(3).labelValues.get(samples.get(3).labelValues.size() - 1));
+        assertEquals(1.0, metrics.get("kafka_server_quantiles_histogram_type_min").samples.get(0).value, 0);
+        assertEquals(100.0, metrics.get("kafka_server_quantiles_histogram_type_max").samples.get(0).value, 0);
+        // Only the count and sum
+        assertEquals(2, metrics.get("kafka_server_quantiles_none_type").samples.size());
+
+        ExpositionBuffer buffer = new ExpositionBuffer();
+        collector.write(buffer);
+        StringWriter expected = new StringWriter();
+        TextFormat.write004(expected, Collections.enumeration(collector.collect()));
+        assertEquals(expected.toString(), new String(buffer.toByteArray(), StandardCharsets.UTF_8));
+
+        buffer.reset();
+        collector.writeProtobuf(buffer);
+        ExpositionBuffer expectedProtobuf = new ExpositionBuffer();
+        ProtobufFormat.write(expectedProtobuf, Collections.enumeration(collector.collect()));
+        assertArrayEquals(expectedProtobuf.toByteArray(), buffer.toByteArray());
+    }
+
+    @Test
+    public void testHistogramBuckets() throws Exception {
+        Map<String, String> props = new HashMap<>();
+        props.put(PrometheusMetricsReporterConfig.ALLOWLIST_CONFIG, "kafka_server_buckets.*");
+        props.put(PrometheusMetricsReporterConfig.HISTOGRAMS_CONFIG, "kafka_server_buckets_.*=10;50");
+        PrometheusMetricsReporterConfig config = new PrometheusMetricsReporterConfig(props);
+        YammerMetricsCollector collector = newCollector(config);
+        MetricsRegistry registry = KafkaYammerMetrics.defaultRegistry();
+
+        Histogram histogram = registry.newHistogram(KafkaYammerMetrics.getMetricName("buckets", "histogram", "type", tags), true);
+        for (int i = 1; i <= 100; i++) {
+            histogram.update(i);
+        }
+
+        Map<String, Collector.MetricFamilySamples> metrics = new HashMap<>();
+        for (Collector.MetricFamilySamples family : collector.collect()) {
+            metrics.put(family.name, family);
+        }
+        Collector.MetricFamilySamples family = metrics.get("kafka_server_buckets_histogram_type");
+        assertEquals(Collector.Type.HISTOGRAM, family.type);
+        List<Collector.MetricFamilySamples.Sample> samples = family.samples;
+        assertEquals(5, samples.size());
+        assertEquals("kafka_server_buckets_histogram_type_bucket", samples.get(0).name);
+        assertEquals("10.0", samples.get(0).labelValues.get(samples.get(0).labelValues.size() - 1));
+        assertEquals(10.0, samples.get(0).value, 0);
+        assertEquals(50.0, samples.get(1).value, 0);
+        assertEquals("+Inf", samples.get(2).labelValues.get(samples.get(2).labelValues.size() - 1));
+        assertEquals(100.0, samples.get(2).value, 0);
+        assertEquals("kafka_server_buckets_histogram_type_count", samples.get(3).name);
+        assertEquals(100.0, samples.get(3).value, 0);
+        assertEquals("kafka_server_buckets_histogram_type_sum", samples.get(4).name);
+        assertEquals(5050.0, samples.get(4).value, 0);
+        assertEquals(100.0, metrics.get("kafka_server_buckets_histogram_type_max").samples.get(0).value, 0);
+
+        ExpositionBuffer buffer = new ExpositionBuffer();
+        collector.write(buffer);
+        StringWriter expected = new StringWriter();
+        TextFormat.write004(expected, Collections.enumeration(collector.collect()));
+        assertEquals(expected.toString(), new String(buffer.toByteArray(), StandardCharsets.UTF_8));
+
+        buffer.reset();
+        collector.writeProtobuf(buffer);
+        ExpositionBuffer expectedProtobuf = new ExpositionBuffer();
+        ProtobufFormat.write(expectedProtobuf, Collections.enumeration(collector.collect()));
+        assertArrayEquals(expectedProtobuf.toByteArray(), buffer.toByteArray());
+    }
+
+    @Test
+    public void testCollectSelected() {
+        Map<String, String> props = new HashMap<>();
+        props.put(PrometheusMetricsReporterConfig.ALLOWLIST_CONFIG, "kafka_server_selected.*");
+        YammerMetricsCollector collector = newCollector(new PrometheusMetricsReporterConfig(props));
+        Histogram histogram = KafkaYammerMetrics.defaultRegistry().newHistogram(
+                KafkaYammerMetrics.getMetricName("selected", "histogram", "type", tags), true);
+        histogram.update(10);
+        newCounter("selected", "counter", "type").inc();
+        newCounter("selected", "other", "type");
+
+        NameSelector selector = new NameSelector(Arrays.asList("kafka_server_selected_histogram_type_count",
+                "kafka_server_selected_histogram_type_max", "kafka_server_selected_counter*"));
+        Map<String, Collector.MetricFamilySamples> selected = new HashMap<>();
+        for (Collector.MetricFamilySamples family : collector.collect(selector)) {
+            selected.put(family.name, family);
+        }
+        // The other counter is not collected, the families of the histogram are filtered afterwards
+        assertEquals(new HashSet<>(Arrays.asList("kafka_server_selected_histogram_type", "kafka_server_selected_histogram_type_min",
+                "kafka_server_selected_histogram_type_max", "kafka_server_selected_counter_type_count")), selected.keySet());
+        Set<Collector.MetricFamilySamples> expected = new HashSet<>();
+        for (Collector.MetricFamilySamples family : collector.collect()) {
+            if (family.filter(selector) != null) {
+                expected.add(family.filter(selector));
+            }
+        }
+        Set<Collector.MetricFamilySamples> actual = new HashSet<>();
+        for (Collector.MetricFamilySamples family : selected.values()) {
+            if (family.filter(selector) != null) {
+                actual.add(family.filter(selector));
+            }
+        }
+        assertEquals(3, actual.size());
+        assertEquals(expected, actual);
+
+        KafkaYammerMetrics.defaultRegistry().removeMetric(KafkaYammerMetrics.getMetricName("selected", "histogram", "type", tags));
+        removeMetric("selected", "counter", "type");
+        removeMetric("selected", "other", "type");
+        assertTrue(collector.collect(selector).isEmpty());
+    }
+
+    @Test
+    public void testSeriesLimits() throws Exception {
+        Map<String, String> props = new HashMap<>();
+        props.put(PrometheusMetricsReporterConfig.ALLOWLIST_CONFIG, "kafka_server_limits.*");
+        props.put(PrometheusMetricsReporterConfig.HISTOGRAMS_CONFIG, "kafka_server_limits_bucketed.*=10;50");
+        props.put(PrometheusMetricsReporterConfig.MAX_SERIES_PER_FAMILY_CONFIG, "1");
+        PrometheusMetricsReporterConfig config = new PrometheusMetricsReporterConfig(props);
+        YammerMetricsCollector collector = newCollector(config);
+        MetricsRegistry registry = KafkaYammerMetrics.defaultRegistry();
+        long overflow = ReporterMetrics.INSTANCE.yammer.overflow.sum();
+
+        for (int i = 0; i < 3; i++) {
+            LinkedHashMap<String, String> topicTags = new LinkedHashMap<>();
+            topicTags.put("topic", "t" + i);
+            Histogram histogram = registry.newHistogram(KafkaYammerMetrics.getMetricName("limits", "histogram", "type", topicTags), true);
+            Histogram bucketed = registry.newHistogram(KafkaYammerMetrics.getMetricName("limits", "bucketed", "type", topicTags), true);
+            registry.newCounter(KafkaYammerMetrics.getMetricName("limits", "counter", "type", topicTags)).inc(i + 1);
+            for (int j = 1; j <= 10 * (i + 1); j++) {
+                histogram.update(j);
+                bucketed.update(j);
+            }
+        }
+        assertEquals(overflow + 6, ReporterMetrics.INSTANCE.yammer.overflow.sum());
+
+        Map<String, Collector.MetricFamilySamples> metrics = new HashMap<>();
+        for (Collector.MetricFamilySamples family : collector.collect()) {
+            metrics.put(family.name, family);
+        }
+        List<String> overflowLabels = Collections.singletonList(CardinalityLimiter.OVERFLOW);
+        List<Collector.MetricFamilySamples.Sample> counter = metrics.get("kafka_server_limits_counter_type_count").samples;
+        assertEquals(2, counter.size());
+        assertEquals(overflowLabels, counter.get(1).labelValues);
+        assertEquals(5.0, counter.get(1).value, 0);
+
+        // Quantiles can't be summed, the overflow series only has the count and sum
+        List<Collector.MetricFamilySamples.Sample> histogram = metrics.get("kafka_server_limits_histogram_type").samples;
+        assertEquals(10, histogram.size());
+        assertEquals(overflowLabels, histogram.get(8).labelValues);
+        assertEquals(50.0, histogram.get(8).value, 0);
+        assertEquals(20 * 21 / 2 + 30 * 31 / 2, histogram.get(9).value, 0);
+        List<Collector.MetricFamilySamples.Sample> max = metrics.get("kafka_server_limits_histogram_type_max").samples;
+        assertEquals(30.0, max.get(1).value, 0);
+
+        List<Collector.MetricFamilySamples.Sample> bucketed = metrics.get("kafka_server_limits_bucketed_type").samples;
+        assertEquals(10, bucketed.size());
+        assertEquals("kafka_server_limits_bucketed_type_bucket", bucketed.get(5).name);
+        assertEquals(Arrays.asList(CardinalityLimiter.OVERFLOW, "10.0"), bucketed.get(5).labelValues);
+        assertEquals(20.0, bucketed.get(5).value, 0);
+        assertEquals(50.0, bucketed.get(6).value, 0);
+        assertEquals(50.0, bucketed.get(7).value, 0);
+
+        ExpositionBuffer buffer = new ExpositionBuffer();
+        collector.write(buffer);
+        StringWriter expected = new StringWriter();
+        TextFormat.write004(expected, Collections.enumeration(collector.collect()));
+        assertEquals(expected.toString(), new String(buffer.toByteArray(), StandardCharsets.UTF_8));
+
+        buffer.reset();
+        collector.writeProtobuf(buffer);
+        ExpositionBuffer expectedProtobuf = new ExpositionBuffer();
+        ProtobufFormat.write(expectedProtobuf, Collections.enumeration(collector.collect()));
+        assertArrayEquals(expectedProtobuf.toByteArray(), buffer.toByteArray());
+    }
+
+    @Test
+    public void testRollup() throws Exception {
+        Map<String, String> props = new HashMap<>();
+        props.put(PrometheusMetricsReporterConfig.ALLOWLIST_CONFIG, "kafka_server_rollup.*");
+        props.put(PrometheusMetricsReporterConfig.ROLLUPS_CONFIG, "kafka_server_rollup_size.*=sum:topic, kafka_server_rollup_.*=count:");
+        PrometheusMetricsReporterConfig config = new PrometheusMetricsReporterConfig(props);
+        YammerMetricsCollector collector = newCollector(config);
+        MetricsRegistry registry = KafkaYammerMetrics.defaultRegistry();
+        for (int i = 0; i < 4; i++) {
+            LinkedHashMap<String, String> partitionTags = new LinkedHashMap<>();
+            partitionTags.put("topic", "t" + (i % 2));
+            partitionTags.put("partition", String.valueOf(i));
+            long size = i * 10;
+            registry.newGauge(KafkaYammerMetrics.getMetricName("rollup", "size", "type", partitionTags), new Gauge<Long>() {
+                @Override
+                public Long value() {
+                    return size;
+                }
+            });
+            registry.newMeter(KafkaYammerMetrics.getMetricName("rollup", "meter", "type", partitionTags), "events", TimeUnit.SECONDS).mark(i);
+        }
+
+        Map<String, Collector.MetricFamilySamples> metrics = new HashMap<>();
+        for (Collector.MetricFamilySamples family : collector.collect()) {
+            metrics.put(family.name, family);
+        }
+        List<Collector.MetricFamilySamples.Sample> size = metrics.get("kafka_server_rollup_size_type").samples;
+        assertEquals(2, size.size());
+        assertEquals(Collections.singletonList("t0"), size.get(0).labelValues);
+        assertEquals(20.0, size.get(0).value, 0);
+        assertEquals(40.0, size.get(1).value, 0);
+        // Counting meters gives a gauge
+        Collector.MetricFamilySamples meter = metrics.get("kafka_server_rollup_meter_type_count");
+        assertEquals(Collector.Type.GAUGE, meter.type);
+        assertEquals(1, meter.samples.size());
+        assertEquals(4.0, meter.samples.get(0).value, 0);
+
+        ExpositionBuffer buffer = new ExpositionBuffer();
+        collector.write(buffer);
+        StringWriter expected = new StringWriter();
+        TextFormat.write004(expected, Collections.enumeration(collector.collect()));
+        assertEquals(expected.toString(), new String(buffer.toByteArray(), StandardCharsets.UTF_8));
+
+        buffer.reset();
+        collector.writeProtobuf(buffer);
+        ExpositionBuffer expectedProtobuf = new ExpositionBuffer();
+        ProtobufFormat.write(expectedProtobuf, Collections.enumeration(collector.collect()));
+        assertArrayEquals(expectedProtobuf.toByteArray(), buffer.toByteArray());
+    }
+
+    @Test
+    public void testConcurrentRegistrations() throws Exception {
+        Map<String, String> props = new HashMap<>();
+        props.put(PrometheusMetricsReporterConfig.ALLOWLIST_CONFIG, "kafka_server_concurrent_.*");
+        props.put(PrometheusMetricsReporterConfig.MAX_SERIES_PER_FAMILY_CONFIG, "10");
+        YammerMetricsCollector collector = newCollector(new PrometheusMetricsReporterConfig(props));
+        long overflow = ReporterMetrics.INSTANCE.yammer.overflow.sum();
+
+        // The listeners are called by the threads registering the metrics
+        List<MetricName> names = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            names.add(KafkaYammerMetrics.getMetricName("concurrent", "name", "type",
+                    new LinkedHashMap<>(Collections.singletonMap("id", String.valueOf(i)))));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                List<MetricName> batch = names.subList(t * 25, (t + 1) * 25);
+                futures.add(executor.submit(() -> batch.forEach(name -> KafkaYammerMetrics.defaultRegistry().newCounter(name))));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        // Each metric over the limit is counted once
+        assertEquals(overflow + 90, ReporterMetrics.INSTANCE.yammer.overflow.sum());
+        assertEquals(11, collector.collect().get(0).samples.size());
+
+        for (MetricName name : names) {
+            KafkaYammerMetrics.defaultRegistry().removeMetric(name);
+        }
+        assertTrue(collector.collect().isEmpty());
+    }
+
     @Test
     public void testLabelsFromScope() {
         assertEquals(tags, YammerMetricsCollector.labelsFromScope("k1.v1.k2.v2"));
@@ -16,7 +16,6 @@
  */
 package com.mickaelmaison;
 
-import io.prometheus.client.CollectorRegistry;
 import kafka.utils.VerifiableProperties;
 import org.junit.Before;
 import org.junit.Test;
@@ -27,7 +26,9 @@ public class YammerPrometheusMetricsReporterTest {
 
     @Before
     public void setup() {
-        CollectorRegistry.defaultRegistry.clear();
+        PrometheusMetricsReporterConfig.JVM_COLLECTORS.unregister();
+        PrometheusMetricsReporterConfig.COLLECTOR_REGISTRY.clear();
+        StreamingCollectorRegistry.defaultRegistry.clear();
     }
 
     @Test
@@ -37,5 +38,6 @@ public class YammerPrometheusMetricsReporterTest {
         configs.put("broker.id", "0");
         configs.put(PrometheusMetricsReporterConfig.PORT_CONFIG, "0");
         reporter.init(new VerifiableProperties(configs));
+        reporter.close();
     }
 }